@@ -0,0 +1,122 @@
+// SPDX-FileCopyrightText: 2025 shimiz98
+// SPDX-License-Identifier: MIT
+package io.github.shimiz98;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.builder.api.ConfigurationBuilder;
+import org.apache.logging.log4j.core.config.builder.api.ConfigurationBuilderFactory;
+import org.apache.logging.log4j.core.config.builder.impl.BuiltConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 実際の Log4j のロガーから CloudWatchAppender を通して FakeCloudWatchLogsServer に送る負荷試験
+ * <p>
+ * 実行例: mvn -Pjmh test-compile exec:exec -Djmh.args="CloudWatchAppenderLoadBenchmark -p throttlePercent=0,20"
+ * <ul>
+ *   <li>Throughput の結果が append() のスループット(events/sec)、SampleTime の p0.99 が append() の p99 レイテンシ。
+ *   <li>配達遅延(append() から FakeCloudWatchLogsServer が受け取るまで)と欠損は、@TearDown で出力する。
+ *       欠損 = ロガーに渡した数 - サーバが受け付けた数。内訳として appender の dropped/failed/rejected も出力する。
+ *   <li>障害は FakeCloudWatchLogsServer で注入する。(latencyMillis, throttlePercent, serverErrorPercent)
+ *   <li>ロガーを呼ぶスレッド数は @Threads(4)。変える場合は -t を指定する。
+ * </ul>
+ * appender の変更を本番に出す前に、変更前後でこの結果を比べること。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CloudWatchAppenderLoadBenchmark {
+    @Param({ CloudWatchAppender.SENDER_MODE_SYNC, CloudWatchAppender.SENDER_MODE_ASYNC })
+    public String senderMode;
+
+    @Param({ LogEventQueue.TYPE_ARRAY_BLOCKING_QUEUE })
+    public String queueType;
+
+    @Param({ LogEventOverflowPolicy.DROP_NEWEST })
+    public String overflowPolicy;
+
+    @Param({ "20" })
+    public long latencyMillis;
+
+    @Param({ "0", "20" })
+    public int throttlePercent;
+
+    @Param({ "0" })
+    public int serverErrorPercent;
+
+    private FakeCloudWatchLogsServer server;
+    private LoggerContext loggerContext;
+    private Logger logger;
+    private final AtomicLong seq = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        System.setProperty("aws.accessKeyId", "dummy");
+        System.setProperty("aws.secretAccessKey", "dummy");
+        server = new FakeCloudWatchLogsServer().setKeepEvents(false).setLatencyMillis(latencyMillis)
+                .setThrottlePercent(throttlePercent).setServerErrorPercent(serverErrorPercent);
+
+        ConfigurationBuilder<BuiltConfiguration> builder = ConfigurationBuilderFactory.newConfigurationBuilder();
+        builder.setStatusLevel(org.apache.logging.log4j.Level.WARN);
+        builder.add(builder.newAppender("cw", "CloudWatchAppender")
+                .addAttribute("endpointUrl", server.getEndpointUrl())
+                .addAttribute("senderMode", senderMode)
+                .addAttribute("queueType", queueType)
+                .addAttribute("overflowPolicy", overflowPolicy)
+                .addAttribute("maxSendDelayMillis", 200)
+                .addAttribute("maxStopDelayMillis", 10_000)
+                .add(builder.newLayout("PatternLayout").addAttribute("pattern", "%m").addAttribute("charset", "UTF-8")));
+        builder.add(builder.newRootLogger(org.apache.logging.log4j.Level.INFO).add(builder.newAppenderRef("cw")));
+        Configuration config = builder.build();
+        loggerContext = new LoggerContext(CloudWatchAppenderLoadBenchmark.class.getSimpleName());
+        loggerContext.start(config);
+        logger = loggerContext.getLogger(CloudWatchAppenderLoadBenchmark.class.getName());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        CloudWatchAppender appender = loggerContext.getConfiguration().getAppender("cw");
+        loggerContext.stop(10, TimeUnit.SECONDS); // appender の stop() で残りを送る
+        server.close();
+        CloudWatchAppenderMetrics metrics = appender.getMetrics();
+        long logged = seq.get();
+        long delivered = server.getReceivedEventCount();
+        System.out.printf("%n[INFO] load: logged=%d delivered=%d lost=%d (%.3f%%) dropped=%d failed=%d rejected=%d"
+                + " retries=%d requests=%d throttled=%d%n", logged, delivered, logged - delivered,
+                logged == 0 ? 0.0 : 100.0 * (logged - delivered) / logged, metrics.getDroppedEventCount(),
+                metrics.getFailedEventCount(), metrics.getRejectedEventCount(), metrics.getRetryCount(),
+                server.getRequestCount(), server.getThrottledRequestCount());
+        System.out.printf("[INFO] load: deliveryLatency p50=%dms p99=%dms max=%dms%n",
+                TimeUnit.NANOSECONDS.toMillis(server.deliveryLatency.getPercentile(50)),
+                TimeUnit.NANOSECONDS.toMillis(server.deliveryLatency.getPercentile(99)),
+                TimeUnit.NANOSECONDS.toMillis(server.deliveryLatency.getMax()));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void log() {
+        logger.info("seq={} " + FakeCloudWatchLogsServer.SENT_NANO_TIME + "{}", seq.incrementAndGet(),
+                System.nanoTime());
+    }
+}
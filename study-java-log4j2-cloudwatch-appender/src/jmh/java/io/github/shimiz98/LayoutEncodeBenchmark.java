@@ -0,0 +1,83 @@
+// SPDX-FileCopyrightText: 2025 shimiz98
+// SPDX-License-Identifier: MIT
+package io.github.shimiz98;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.ThreadContext;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.config.DefaultConfiguration;
+import org.apache.logging.log4j.core.impl.MutableLogEvent;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.layout.template.json.JsonTemplateLayout;
+import org.apache.logging.log4j.message.ReusableParameterizedMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 1イベントあたりのメッセージ変換のアロケーションの比較
+ * <p>
+ * 実行例: mvn -Pjmh test-compile exec:exec -Djmh.args="LayoutEncodeBenchmark -prof gc"
+ * <p>
+ * 結果の gc.alloc.rate.norm (B/op) が1イベントあたりのアロケーション。
+ * <ul>
+ *   <li>formattedMessage: 変更前の方式。getFormattedMessage() で String を作り、UTF-8 のバイト数を数えるために getBytes() する。
+ *   <li>encodePatternLayout, encodeJsonTemplateLayout: 変更後の方式。Layout.encode() で再利用する ByteBuffer に書き込む。
+ * </ul>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LayoutEncodeBenchmark {
+    private final MutableLogEvent logEvent = new MutableLogEvent();
+    private LogEventSnapshot patternLayoutSnapshot;
+    private LogEventSnapshot jsonTemplateLayoutSnapshot;
+
+    @Setup
+    public void setUp() {
+        ReusableParameterizedMessage message = new ReusableParameterizedMessage();
+        message.set("ログ出力 {} {}", "hello", 123);
+        logEvent.setLoggerName("dummy");
+        logEvent.setLevel(Level.INFO);
+        logEvent.setTimeMillis(11);
+        logEvent.setMessage(message);
+        logEvent.setContextStack(ThreadContext.EMPTY_STACK);
+
+        Layout<?> patternLayout = PatternLayout.newBuilder().withPattern("%p %c - %m")
+                .withCharset(StandardCharsets.UTF_8).build();
+        patternLayoutSnapshot = new LogEventSnapshot(patternLayout);
+        Layout<?> jsonTemplateLayout = JsonTemplateLayout.newBuilder().setConfiguration(new DefaultConfiguration())
+                .setEventTemplateUri("classpath:EcsLayout.json").build();
+        jsonTemplateLayoutSnapshot = new LogEventSnapshot(jsonTemplateLayout);
+    }
+
+    @Benchmark
+    public int formattedMessage() {
+        return logEvent.getMessage().getFormattedMessage().getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    @Benchmark
+    public int encodePatternLayout() {
+        patternLayoutSnapshot.set(logEvent);
+        return patternLayoutSnapshot.getMessageLength();
+    }
+
+    @Benchmark
+    public int encodeJsonTemplateLayout() {
+        jsonTemplateLayoutSnapshot.set(logEvent);
+        return jsonTemplateLayoutSnapshot.getMessageLength();
+    }
+}
@@ -0,0 +1,102 @@
+// SPDX-FileCopyrightText: 2025 shimiz98
+// SPDX-License-Identifier: MIT
+package io.github.shimiz98;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ArrayBlockingQueue とリングバッファの offer() の比較
+ * <p>
+ * 実行例: mvn -Pjmh test-compile exec:exec -Djmh.args="LogEventQueueBenchmark"
+ * <ul>
+ *   <li>producer のスレッド数(1, 8, 32, 128)ごとにベンチマークメソッドを分けている。(@Threads はパラメータ化できないため)
+ *   <li>consumer はログ転送スレッドの代わりに、ひたすら poll() するスレッドを1個動かす。
+ *   <li>満杯で offer() が失敗した回数も結果に含まれるので、スループットだけでなく満杯率も見ること。
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogEventQueueBenchmark {
+    @Param({ LogEventQueue.TYPE_ARRAY_BLOCKING_QUEUE, LogEventQueue.TYPE_RING_BUFFER })
+    public String queueType;
+
+    @Param({ "1024" })
+    public int capacity;
+
+    private LogEventQueue logEventQueue;
+    private Thread consumerThread;
+    private volatile boolean consumerStopFlag;
+    private final LogEvent logEvent = Log4jLogEvent.newBuilder().setLoggerName("dummy")
+            .setMessage(new SimpleMessage("hello world")).build();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        logEventQueue = LogEventQueue.newInstance(queueType, capacity, CloudWatchAppender.newDefaultLayout());
+        consumerStopFlag = false;
+        consumerThread = new Thread("consumer") {
+            public void run() {
+                try {
+                    while (!consumerStopFlag) {
+                        logEventQueue.poll(1, TimeUnit.MILLISECONDS);
+                    }
+                } catch (InterruptedException e) {
+                    // 終了
+                }
+            }
+        };
+        consumerThread.setDaemon(true);
+        consumerThread.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        consumerStopFlag = true;
+        consumerThread.join();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean offer1Thread() {
+        return logEventQueue.offer(logEvent);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean offer8Threads() {
+        return logEventQueue.offer(logEvent);
+    }
+
+    @Benchmark
+    @Threads(32)
+    public boolean offer32Threads() {
+        return logEventQueue.offer(logEvent);
+    }
+
+    @Benchmark
+    @Threads(128)
+    public boolean offer128Threads() {
+        return logEventQueue.offer(logEvent);
+    }
+}
@@ -0,0 +1,142 @@
+// SPDX-FileCopyrightText: 2025 shimiz98
+// SPDX-License-Identifier: MIT
+package io.github.shimiz98;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+
+/**
+ * ArrayBlockingQueue によるキュー(従来の方式)
+ * <p>
+ * offer() と poll() が1個のロックを取り合うため、ログ出力するスレッドが多いと競合する。
+ * <p>
+ * LogEventSnapshot は生成時に (容量 + 1) 個を確保して使い回し、offer() では new しない。(+1 は poll() で返した分)
+ * poll() で返したスナップショットは、次の poll() で空きに戻す。
+ */
+class ArrayBlockingLogEventQueue implements LogEventQueue {
+    private final BlockingQueue<LogEventSnapshot> blockingQueue;
+    private final BlockingQueue<LogEventSnapshot> freeSnapshots; // 空きのスナップショット
+    private LogEventSnapshot polled; // poll() で返して、まだ空きに戻していないスナップショット。consumer だけが使う
+
+    ArrayBlockingLogEventQueue(int capacity, Layout<?> layout) {
+        this(capacity, layout, LogEventSnapshot.DEFAULT_INITIAL_BUFFER_BYTES, LogEventSnapshot.DEFAULT_MAX_BUFFER_BYTES);
+    }
+
+    ArrayBlockingLogEventQueue(int capacity, Layout<?> layout, int initialBufferBytes, int maxBufferBytes) {
+        this(capacity, layout, initialBufferBytes, maxBufferBytes, null);
+    }
+
+    ArrayBlockingLogEventQueue(int capacity, Layout<?> layout, int initialBufferBytes, int maxBufferBytes,
+            LogRouter router) {
+        this.blockingQueue = new ArrayBlockingQueue<>(capacity);
+        this.freeSnapshots = new ArrayBlockingQueue<>(capacity + 1);
+        for (int i = 0; i <= capacity; i++) {
+            freeSnapshots.add(new LogEventSnapshot(layout, initialBufferBytes, maxBufferBytes, router));
+        }
+    }
+
+    @Override
+    public boolean offer(LogEvent event) {
+        LogEventSnapshot snapshot = freeSnapshots.poll();
+        if (snapshot == null) {
+            return false;
+        }
+        set(snapshot, event);
+        if (blockingQueue.offer(snapshot)) {
+            return true;
+        }
+        release(snapshot);
+        return false;
+    }
+
+    @Override
+    public boolean offer(LogEvent event, long timeout, TimeUnit unit) throws InterruptedException {
+        final long startNanos = System.nanoTime();
+        LogEventSnapshot snapshot = freeSnapshots.poll(timeout, unit);
+        if (snapshot == null) {
+            return false;
+        }
+        set(snapshot, event);
+        return offer(snapshot, unit.toNanos(timeout) - (System.nanoTime() - startNanos));
+    }
+
+    @Override
+    public boolean offer(LogEventSnapshot other, long timeout, TimeUnit unit) throws InterruptedException {
+        final long startNanos = System.nanoTime();
+        LogEventSnapshot snapshot = freeSnapshots.poll(timeout, unit);
+        if (snapshot == null) {
+            return false;
+        }
+        snapshot.set(other);
+        return offer(snapshot, unit.toNanos(timeout) - (System.nanoTime() - startNanos));
+    }
+
+    @Override
+    public LogEventSnapshot poll(long timeout, TimeUnit unit) throws InterruptedException {
+        if (polled != null) {
+            release(polled);
+            polled = null;
+        }
+        polled = blockingQueue.poll(timeout, unit);
+        return polled;
+    }
+
+    @Override
+    public int size() {
+        return blockingQueue.size();
+    }
+
+    @Override
+    public boolean discardOldest() {
+        LogEventSnapshot oldest = blockingQueue.poll();
+        if (oldest == null) {
+            return false;
+        }
+        if (!oldest.isStopSenderThread()) {
+            release(oldest);
+            return true;
+        }
+        // STOP_SENDER_THREAD は捨てずに末尾に戻す。取り出した隙に他のスレッドが offer() して満杯なら、
+        // 代わりに先頭のログを捨ててから戻す。(戻せないと、ログ転送スレッドが stop() に気付かない)
+        boolean discarded = false;
+        while (!blockingQueue.offer(oldest)) {
+            LogEventSnapshot next = blockingQueue.poll();
+            if (next != null) {
+                release(next);
+                discarded = true;
+            }
+        }
+        return discarded;
+    }
+
+    private void set(LogEventSnapshot snapshot, LogEvent event) {
+        try {
+            snapshot.set(event);
+        } catch (RuntimeException e) {
+            release(snapshot); // Layout.encode() や LogRouter.route() の失敗
+            throw e;
+        }
+    }
+
+    /** 空きのスナップショットがあっても、consumer がまだ poll() していなければキューは満杯の場合がある */
+    private boolean offer(LogEventSnapshot snapshot, long timeoutNanos) throws InterruptedException {
+        boolean offered = false;
+        try {
+            offered = blockingQueue.offer(snapshot, Math.max(0, timeoutNanos), TimeUnit.NANOSECONDS);
+            return offered;
+        } finally {
+            if (!offered) {
+                release(snapshot);
+            }
+        }
+    }
+
+    private void release(LogEventSnapshot snapshot) {
+        snapshot.clear(); // 大きくなった ByteBuffer は clear() で手放す
+        freeSnapshots.offer(snapshot);
+    }
+}
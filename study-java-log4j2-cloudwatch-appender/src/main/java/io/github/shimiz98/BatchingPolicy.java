@@ -0,0 +1,129 @@
+// SPDX-FileCopyrightText: 2025 shimiz98
+// SPDX-License-Identifier: MIT
+package io.github.shimiz98;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * バッチを送るまでに待つ時間(linger)と、バッチのログ数の目標
+ * <ul>
+ *   <li>"Fixed" : 従来どおり、最初のログから常に maxSendDelayMillis 待つ。目標は maxCountPerSend。
+ *   <li>"Adaptive" : ログの到着間隔と PutLogEvents の応答時間から決める。
+ *       <ul>
+ *         <li>ログがCloudWatchに届くまでの時間(linger + 応答時間)が latencySloMillis に収まるように、linger を短くする。
+ *         <li>linger の間に次のログが来そうにない(閑散としている)なら、待たずに送る。
+ *         <li>maxCountPerSend 個が溜まる時間より長くは待たない。忙しいときは上限まで詰めたバッチになる。
+ *       </ul>
+ * </ul>
+ * 到着間隔と応答時間は指数移動平均(EWMA)で平滑化する。
+ * onArrival() はログ転送スレッドだけから呼ぶ。onRoundTrip() は PutLogEvents を呼んだどのスレッドから呼んでもよい。
+ * <p>
+ * 送信先ごとにログ転送スレッドがある場合は forLane() で到着間隔を別々に測る。応答時間は共有する。
+ */
+class BatchingPolicy {
+    static final String FIXED = "Fixed";
+    static final String ADAPTIVE = "Adaptive";
+    private static final double ALPHA = 0.2; // EWMA の重み。直近の5回程度を重視する
+
+    private final boolean adaptive;
+    private final long maxSendDelayNanos;
+    private final int maxCountPerSend;
+    private final long latencySloNanos;
+    private final BatchingPolicy roundTripSource; // 応答時間を記録しているインスタンス
+
+    // ログ転送スレッドだけが使う
+    private double arrivalGapNanos = Double.POSITIVE_INFINITY; // まだログが来ていないときは閑散としているとみなす
+    private long lastArrivalNanos;
+    private boolean arrived;
+    // 複数のスレッドから更新するが、平均なので更新が1回失われても問題ない
+    private volatile double roundTripNanos;
+
+    /**
+     * @param type             "Fixed" または "Adaptive"
+     * @param latencySloMillis "Adaptive" で、append() からCloudWatchに届くまでの時間の目標
+     */
+    BatchingPolicy(String type, long maxSendDelayMillis, int maxCountPerSend, long latencySloMillis) {
+        if (!FIXED.equals(type) && !ADAPTIVE.equals(type)) {
+            throw new IllegalArgumentException("batchingMode: " + type);
+        }
+        this.adaptive = ADAPTIVE.equals(type);
+        this.maxSendDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxSendDelayMillis);
+        this.maxCountPerSend = maxCountPerSend;
+        this.latencySloNanos = TimeUnit.MILLISECONDS.toNanos(latencySloMillis);
+        this.roundTripSource = this;
+    }
+
+    private BatchingPolicy(BatchingPolicy parent) {
+        this.adaptive = parent.adaptive;
+        this.maxSendDelayNanos = parent.maxSendDelayNanos;
+        this.maxCountPerSend = parent.maxCountPerSend;
+        this.latencySloNanos = parent.latencySloNanos;
+        this.roundTripSource = parent;
+    }
+
+    /**
+     * @return 設定と応答時間はこのインスタンスと同じで、到着間隔は別々に測るインスタンス
+     */
+    BatchingPolicy forLane() {
+        return new BatchingPolicy(this);
+    }
+
+    boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /** ログをキューから取り出したときに呼ぶ。 */
+    void onArrival(long nowNanos) {
+        if (!adaptive) {
+            return;
+        }
+        if (arrived) {
+            double gap = Math.max(0, nowNanos - lastArrivalNanos);
+            arrivalGapNanos = Double.isInfinite(arrivalGapNanos) ? gap : arrivalGapNanos + ALPHA * (gap - arrivalGapNanos);
+        }
+        lastArrivalNanos = nowNanos;
+        arrived = true;
+    }
+
+    /** PutLogEvents の応答時間を記録する。 */
+    void onRoundTrip(long nanos) {
+        if (!adaptive) {
+            return;
+        }
+        BatchingPolicy source = roundTripSource;
+        double rtt = source.roundTripNanos;
+        source.roundTripNanos = rtt == 0 ? nanos : rtt + ALPHA * (nanos - rtt);
+    }
+
+    /**
+     * @return バッチの最初のログから、送るまでに待つ時間
+     */
+    long lingerNanos() {
+        if (!adaptive) {
+            return maxSendDelayNanos;
+        }
+        double budget = Math.min(maxSendDelayNanos, latencySloNanos - roundTripSource.roundTripNanos);
+        if (budget <= 0 || budget < arrivalGapNanos) {
+            return 0; // 待っても次のログが来そうにないか、応答時間だけで SLO を超えている
+        }
+        double fillNanos = arrivalGapNanos * maxCountPerSend; // maxCountPerSend 個が溜まる時間
+        return (long) Math.min(budget, fillNanos);
+    }
+
+    /**
+     * @return この数が溜まったら linger を待たずに送る
+     */
+    int targetBatchEvents() {
+        if (!adaptive || arrivalGapNanos == 0) {
+            return maxCountPerSend;
+        }
+        long expected = (long) (lingerNanos() / arrivalGapNanos) + 1;
+        return (int) Math.max(1, Math.min(maxCountPerSend, expected));
+    }
+
+    @Override
+    public String toString() {
+        return adaptive ? "Adaptive arrivalGap=" + (long) arrivalGapNanos + "ns roundTrip=" + (long) roundTripSource.roundTripNanos
+                + "ns linger=" + lingerNanos() + "ns target=" + targetBatchEvents() : "Fixed";
+    }
+}
@@ -2,119 +2,931 @@
 // SPDX-License-Identifier: MIT
 package io.github.shimiz98;
 
+import java.io.IOException;
 import java.io.Serializable;
-import java.util.ArrayList;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.core.Appender;
 import org.apache.logging.log4j.core.Filter;
 import org.apache.logging.log4j.core.Layout;
 import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.StringLayout;
 import org.apache.logging.log4j.core.appender.AbstractAppender;
-import org.apache.logging.log4j.core.config.Configuration;
 import org.apache.logging.log4j.core.config.Node;
 import org.apache.logging.log4j.core.config.Property;
 import org.apache.logging.log4j.core.config.plugins.Plugin;
-import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
-import org.apache.logging.log4j.core.config.plugins.PluginConfiguration;
-import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
 import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.PatternLayout;
 
+import software.amazon.awssdk.awscore.retry.AwsRetryStrategy;
 import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.cloudwatchlogs.CloudWatchLogsAsyncClient;
+import software.amazon.awssdk.services.cloudwatchlogs.CloudWatchLogsAsyncClientBuilder;
 import software.amazon.awssdk.services.cloudwatchlogs.CloudWatchLogsClient;
+import software.amazon.awssdk.services.cloudwatchlogs.CloudWatchLogsClientBuilder;
+import software.amazon.awssdk.services.cloudwatchlogs.model.CreateLogGroupRequest;
+import software.amazon.awssdk.services.cloudwatchlogs.model.CreateLogStreamRequest;
 import software.amazon.awssdk.services.cloudwatchlogs.model.InputLogEvent;
 import software.amazon.awssdk.services.cloudwatchlogs.model.PutLogEventsRequest;
 import software.amazon.awssdk.services.cloudwatchlogs.model.PutLogEventsResponse;
+import software.amazon.awssdk.services.cloudwatchlogs.model.RejectedLogEventsInfo;
+import software.amazon.awssdk.services.cloudwatchlogs.model.ResourceAlreadyExistsException;
+import software.amazon.awssdk.services.cloudwatchlogs.model.ResourceNotFoundException;
 
 @Plugin(name = "CloudWatchAppender", category = Node.CATEGORY, elementType = Appender.ELEMENT_TYPE)
 public class CloudWatchAppender extends AbstractAppender {
     // ===== 定数 =====
-    private final int CWL_MAX_EVENT_COUNT = 10_000;
+    static final String OVERSIZED_LOG_EVENT_POLICY_TRUNCATE = "Truncate";
+    static final String OVERSIZED_LOG_EVENT_POLICY_SPLIT = "Split";
+    static final String SENDER_MODE_SYNC = "Sync";
+    static final String SENDER_MODE_ASYNC = "Async";
     // https://docs.oracle.com/javase/jp/8/docs/api/java/util/concurrent/BlockingQueue.html
     // コンシューマによって取得されたときに適宜解釈される特殊なend-of-streamまたはpoisonオブジェクトを挿入するという一般的な方法があります。
-    private final LogEvent STOP_SENDER_THREAD_LOG_EVENT = new Log4jLogEvent();
+    static final LogEvent STOP_SENDER_THREAD_LOG_EVENT = new Log4jLogEvent();
+    // SenderLane の nextSpoolRecords で、spool から読んだログでないことを表す。(ArrayDeque には null を入れられない)
+    private static final LogEventSpool.Record NO_SPOOL_RECORD = new LogEventSpool.Record(-1, 0, -1);
+    static final long SPOOL_POLL_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    // キューや spool が満杯で捨てたログを System.err に出力する間隔。捨てたログの数は metrics で数える
+    static final long DROP_REPORT_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
      
     // ===== static メソッド =====
     // https://logging.apache.org/log4j/2.x/manual/plugins.html#plugin-discovery
-    @PluginFactory
-    public static CloudWatchAppender createAppender( // @formatter:off
-            @PluginConfiguration final Configuration config,
-            @PluginAttribute("name") String name) {
-            // @formatter:on
-        return new CloudWatchAppender(name, null, null, false, null);
+    @PluginBuilderFactory
+    public static <B extends Builder<B>> B newBuilder() {
+        return new Builder<B>().asBuilder();
+    }
+
+    /**
+     * log4j2.xml の属性で設定する。属性名はフィールド名と同じ。
+     * <ul>
+     *   <li>logStreamShards が2以上なら、logStreamName ではなく "logStreamName-0" 〜 "logStreamName-(logStreamShards-1)" の
+     *       ログストリームに、バッチごとに順に送る。これらのログストリームは、最初に送る前に作る。(振り分け先と同じ)
+     * </ul>
+     */
+    public static class Builder<B extends Builder<B>> extends AbstractAppender.Builder<B>
+            implements org.apache.logging.log4j.core.util.Builder<CloudWatchAppender> {
+        // ===== キュー =====
+        @PluginBuilderAttribute
+        private String queueType = LogEventQueue.TYPE_ARRAY_BLOCKING_QUEUE;
+        @PluginBuilderAttribute
+        private int maxQueueLength = 999;
+        @PluginBuilderAttribute
+        private int initialMessageBufferBytes = LogEventSnapshot.DEFAULT_INITIAL_BUFFER_BYTES;
+        @PluginBuilderAttribute
+        private int maxMessageBufferBytes = LogEventSnapshot.DEFAULT_MAX_BUFFER_BYTES;
+        @PluginBuilderAttribute
+        private String overflowPolicy = LogEventOverflowPolicy.DROP_NEWEST;
+        @PluginBuilderAttribute
+        private long blockTimeoutMillis = 1_000;
+        @PluginBuilderAttribute
+        private String overflowMinLevel = "WARN";
+        @PluginBuilderAttribute
+        private int samplePercent = 10;
+        @PluginBuilderAttribute
+        private String spoolDirectory;
+        @PluginBuilderAttribute
+        private int spoolSegmentBytes = 16 * 1024 * 1024;
+        @PluginBuilderAttribute
+        private int spoolMaxSegments = 64;
+        // ===== バッチ =====
+        @PluginBuilderAttribute
+        private long maxSendDelayMillis = 2_000;
+        @PluginBuilderAttribute
+        private int maxCountPerSend = CwLogEventBatch.MAX_EVENT_COUNT;
+        @PluginBuilderAttribute
+        private int maxBytesPerSend = CwLogEventBatch.MAX_BATCH_BYTES;
+        @PluginBuilderAttribute
+        private String oversizedLogEventPolicy = OVERSIZED_LOG_EVENT_POLICY_TRUNCATE;
+        @PluginBuilderAttribute
+        private long maxStopDelayMillis = 1_000;
+        @PluginBuilderAttribute
+        private String batchingMode = BatchingPolicy.FIXED;
+        @PluginBuilderAttribute
+        private long latencySloMillis = 1_000;
+        @PluginBuilderAttribute
+        private long aggregationWindowMillis = 0;
+        // ===== 送信先 =====
+        @PluginBuilderAttribute
+        private String regionName = "ap-northeast-1";
+        @PluginBuilderAttribute
+        private String endpointUrl;
+        @PluginBuilderAttribute
+        private String logGroupName = "myapp-lg";
+        @PluginBuilderAttribute
+        private String logStreamName = "myapp-ls";
+        @PluginBuilderAttribute
+        private int logStreamShards = 1;
+        @PluginBuilderAttribute
+        private int maxLogStreams = 100;
+        // ===== 送信 =====
+        @PluginBuilderAttribute
+        private String senderMode = SENDER_MODE_SYNC;
+        @PluginBuilderAttribute
+        private int senderThreads = 1;
+        @PluginBuilderAttribute
+        private int maxInFlightBatches = 4;
+        @PluginBuilderAttribute
+        private int maxRetryAttempts = 10;
+        @PluginBuilderAttribute
+        private long retryBaseDelayMillis = 100;
+        @PluginBuilderAttribute
+        private long retryMaxDelayMillis = 20_000;
+        @PluginBuilderAttribute
+        private double maxRequestsPerSecond = 0;
+        @PluginBuilderAttribute
+        private double maxBytesPerSecond = 0;
+        // ===== メトリクス (EMF) =====
+        @PluginBuilderAttribute
+        private String emfNamespace;
+        @PluginBuilderAttribute
+        private String emfDimensions = EmfMetricsAggregator.DIMENSION_LEVEL;
+        @PluginBuilderAttribute
+        private String emfFields = "";
+        @PluginBuilderAttribute
+        private long emfFlushIntervalMillis = 60_000;
+        @PluginBuilderAttribute
+        private int emfMaxSeries = 100;
+        @PluginBuilderAttribute
+        private String emfLogStreamName;
+        @PluginBuilderAttribute
+        private String rawLogMinLevel = "ALL";
+
+        @Override
+        public CloudWatchAppender build() {
+            requireOneOf("queueType", queueType, LogEventQueue.TYPE_ARRAY_BLOCKING_QUEUE, LogEventQueue.TYPE_RING_BUFFER);
+            requireOneOf("oversizedLogEventPolicy", oversizedLogEventPolicy, OVERSIZED_LOG_EVENT_POLICY_TRUNCATE,
+                    OVERSIZED_LOG_EVENT_POLICY_SPLIT);
+            requireOneOf("senderMode", senderMode, SENDER_MODE_SYNC, SENDER_MODE_ASYNC);
+            requireOneOf("batchingMode", batchingMode, BatchingPolicy.FIXED, BatchingPolicy.ADAPTIVE);
+            requirePositive("maxQueueLength", maxQueueLength);
+            requirePositive("initialMessageBufferBytes", initialMessageBufferBytes);
+            if (maxMessageBufferBytes < initialMessageBufferBytes) {
+                throw new IllegalArgumentException("maxMessageBufferBytes: " + maxMessageBufferBytes);
+            }
+            requirePositive("maxSendDelayMillis", maxSendDelayMillis);
+            requirePositive("maxStopDelayMillis", maxStopDelayMillis);
+            requirePositive("latencySloMillis", latencySloMillis);
+            requireNonNegative("aggregationWindowMillis", aggregationWindowMillis);
+            // PutLogEvents の上限を超える値は、送信時にエラーになるので受け付けない
+            if (maxCountPerSend < 1 || CwLogEventBatch.MAX_EVENT_COUNT < maxCountPerSend) {
+                throw new IllegalArgumentException("maxCountPerSend: " + maxCountPerSend);
+            }
+            if (maxBytesPerSend <= CwLogEventBatch.EVENT_OVERHEAD_BYTES
+                    || CwLogEventBatch.MAX_BATCH_BYTES < maxBytesPerSend) {
+                throw new IllegalArgumentException("maxBytesPerSend: " + maxBytesPerSend);
+            }
+            requirePositive("logStreamShards", logStreamShards);
+            requirePositive("maxLogStreams", maxLogStreams);
+            if (1 < logStreamShards && (LogRouter.isPattern(logGroupName) || LogRouter.isPattern(logStreamName))) {
+                throw new IllegalArgumentException("logStreamShards: " + logStreamShards + ": logStreamName: "
+                        + logStreamName);
+            }
+            requirePositive("senderThreads", senderThreads);
+            requirePositive("maxInFlightBatches", maxInFlightBatches);
+            if (spoolSegmentBytes <= CwLogEventBatch.MAX_EVENT_MESSAGE_BYTES) {
+                throw new IllegalArgumentException("spoolSegmentBytes: " + spoolSegmentBytes);
+            }
+            requirePositive("spoolMaxSegments", spoolMaxSegments);
+            requireLevel("overflowMinLevel", overflowMinLevel);
+            requirePositive("maxRetryAttempts", maxRetryAttempts);
+            // 負の値は、リトライの待ち時間の乱数(ログ転送スレッドの中)で IllegalArgumentException になるので、ここで受け付けない
+            requireNonNegative("retryBaseDelayMillis", retryBaseDelayMillis);
+            requireNonNegative("retryMaxDelayMillis", retryMaxDelayMillis);
+            if (LogEventOverflowPolicy.DROP_OLDEST.equals(overflowPolicy)
+                    && LogEventQueue.TYPE_RING_BUFFER.equals(queueType)) {
+                throw new IllegalArgumentException("overflowPolicy: " + overflowPolicy + ": queueType: " + queueType);
+            }
+            if (endpointUrl != null) {
+                URI.create(endpointUrl); // 不正なURLなら IllegalArgumentException
+            }
+            requirePositive("emfFlushIntervalMillis", emfFlushIntervalMillis);
+            requirePositive("emfMaxSeries", emfMaxSeries);
+            // EMF のドキュメントは1個の送信先に送るので、パターンは使えない
+            if (emfNamespace != null && (LogRouter.isPattern(logGroupName)
+                    || LogRouter.isPattern(emfLogStreamName != null ? emfLogStreamName : logStreamName))) {
+                throw new IllegalArgumentException("emfLogStreamName: " + emfLogStreamName + ": logGroupName: "
+                        + logGroupName + ": logStreamName: " + logStreamName);
+            }
+            requireLevel("rawLogMinLevel", rawLogMinLevel);
+            return new CloudWatchAppender(this);
+        }
+
+        private static void requireOneOf(String name, String value, String... candidates) {
+            if (!Arrays.asList(candidates).contains(value)) {
+                throw new IllegalArgumentException(name + ": " + value);
+            }
+        }
+
+        private static void requirePositive(String name, long value) {
+            if (value < 1) {
+                throw new IllegalArgumentException(name + ": " + value);
+            }
+        }
+
+        private static void requireNonNegative(String name, long value) {
+            if (value < 0) {
+                throw new IllegalArgumentException(name + ": " + value);
+            }
+        }
+
+        /** Level.toLevel() のように、知らない名前を既定のレベルにはしない */
+        private static void requireLevel(String name, String value) {
+            if (value == null || Level.getLevel(value.toUpperCase()) == null) {
+                throw new IllegalArgumentException(name + ": " + value);
+            }
+        }
+
+        public B setQueueType(String queueType) {
+            this.queueType = queueType;
+            return asBuilder();
+        }
+
+        public B setMaxQueueLength(int maxQueueLength) {
+            this.maxQueueLength = maxQueueLength;
+            return asBuilder();
+        }
+
+        public B setInitialMessageBufferBytes(int initialMessageBufferBytes) {
+            this.initialMessageBufferBytes = initialMessageBufferBytes;
+            return asBuilder();
+        }
+
+        public B setMaxMessageBufferBytes(int maxMessageBufferBytes) {
+            this.maxMessageBufferBytes = maxMessageBufferBytes;
+            return asBuilder();
+        }
+
+        public B setOverflowPolicy(String overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+            return asBuilder();
+        }
+
+        public B setBlockTimeoutMillis(long blockTimeoutMillis) {
+            this.blockTimeoutMillis = blockTimeoutMillis;
+            return asBuilder();
+        }
+
+        public B setOverflowMinLevel(String overflowMinLevel) {
+            this.overflowMinLevel = overflowMinLevel;
+            return asBuilder();
+        }
+
+        public B setSamplePercent(int samplePercent) {
+            this.samplePercent = samplePercent;
+            return asBuilder();
+        }
+
+        public B setSpoolDirectory(String spoolDirectory) {
+            this.spoolDirectory = spoolDirectory;
+            return asBuilder();
+        }
+
+        public B setSpoolSegmentBytes(int spoolSegmentBytes) {
+            this.spoolSegmentBytes = spoolSegmentBytes;
+            return asBuilder();
+        }
+
+        public B setSpoolMaxSegments(int spoolMaxSegments) {
+            this.spoolMaxSegments = spoolMaxSegments;
+            return asBuilder();
+        }
+
+        public B setMaxSendDelayMillis(long maxSendDelayMillis) {
+            this.maxSendDelayMillis = maxSendDelayMillis;
+            return asBuilder();
+        }
+
+        public B setMaxCountPerSend(int maxCountPerSend) {
+            this.maxCountPerSend = maxCountPerSend;
+            return asBuilder();
+        }
+
+        public B setMaxBytesPerSend(int maxBytesPerSend) {
+            this.maxBytesPerSend = maxBytesPerSend;
+            return asBuilder();
+        }
+
+        public B setOversizedLogEventPolicy(String oversizedLogEventPolicy) {
+            this.oversizedLogEventPolicy = oversizedLogEventPolicy;
+            return asBuilder();
+        }
+
+        public B setMaxStopDelayMillis(long maxStopDelayMillis) {
+            this.maxStopDelayMillis = maxStopDelayMillis;
+            return asBuilder();
+        }
+
+        /**
+         * @param batchingMode "Fixed"(常に maxSendDelayMillis 待つ) または "Adaptive"(到着間隔と応答時間から待ち時間を決める)
+         */
+        public B setBatchingMode(String batchingMode) {
+            this.batchingMode = batchingMode;
+            return asBuilder();
+        }
+
+        /**
+         * @param latencySloMillis batchingMode="Adaptive" で、append() からCloudWatchに届くまでの時間の目標
+         */
+        public B setLatencySloMillis(long latencySloMillis) {
+            this.latencySloMillis = latencySloMillis;
+            return asBuilder();
+        }
+
+        /**
+         * @param aggregationWindowMillis この時間の中で繰り返したログを、バッチごとにまとめる。0ならまとめない。
+         */
+        public B setAggregationWindowMillis(long aggregationWindowMillis) {
+            this.aggregationWindowMillis = aggregationWindowMillis;
+            return asBuilder();
+        }
+
+        public B setRegionName(String regionName) {
+            this.regionName = regionName;
+            return asBuilder();
+        }
+
+        /** ローカルの CloudWatch Logs 互換サーバなどに送る場合に指定する。(例: http://localhost:4566) */
+        public B setEndpointUrl(String endpointUrl) {
+            this.endpointUrl = endpointUrl;
+            return asBuilder();
+        }
+
+        public B setLogGroupName(String logGroupName) {
+            this.logGroupName = logGroupName;
+            return asBuilder();
+        }
+
+        public B setLogStreamName(String logStreamName) {
+            this.logStreamName = logStreamName;
+            return asBuilder();
+        }
+
+        public B setLogStreamShards(int logStreamShards) {
+            this.logStreamShards = logStreamShards;
+            return asBuilder();
+        }
+
+        /** logGroupName/logStreamName がパターンの場合に、振り分ける送信先の数の上限。超えた送信先のログは捨てる。 */
+        public B setMaxLogStreams(int maxLogStreams) {
+            this.maxLogStreams = maxLogStreams;
+            return asBuilder();
+        }
+
+        public B setSenderMode(String senderMode) {
+            this.senderMode = senderMode;
+            return asBuilder();
+        }
+
+        /** senderMode="Sync" で、PutLogEvents を並行して呼ぶスレッド数 */
+        public B setSenderThreads(int senderThreads) {
+            this.senderThreads = senderThreads;
+            return asBuilder();
+        }
+
+        public B setMaxInFlightBatches(int maxInFlightBatches) {
+            this.maxInFlightBatches = maxInFlightBatches;
+            return asBuilder();
+        }
+
+        public B setMaxRetryAttempts(int maxRetryAttempts) {
+            this.maxRetryAttempts = maxRetryAttempts;
+            return asBuilder();
+        }
+
+        public B setRetryBaseDelayMillis(long retryBaseDelayMillis) {
+            this.retryBaseDelayMillis = retryBaseDelayMillis;
+            return asBuilder();
+        }
+
+        public B setRetryMaxDelayMillis(long retryMaxDelayMillis) {
+            this.retryMaxDelayMillis = retryMaxDelayMillis;
+            return asBuilder();
+        }
+
+        public B setMaxRequestsPerSecond(double maxRequestsPerSecond) {
+            this.maxRequestsPerSecond = maxRequestsPerSecond;
+            return asBuilder();
+        }
+
+        public B setMaxBytesPerSecond(double maxBytesPerSecond) {
+            this.maxBytesPerSecond = maxBytesPerSecond;
+            return asBuilder();
+        }
+
+        /**
+         * @param emfNamespace 指定すると、ログの数と emfFields の値を集計し、emfFlushIntervalMillis ごとに EMF のログとして送る。
+         *                     null なら集計しない。(EmfMetricsAggregator)
+         */
+        public B setEmfNamespace(String emfNamespace) {
+            this.emfNamespace = emfNamespace;
+            return asBuilder();
+        }
+
+        /** @param emfDimensions "Logger", "Level", "Marker" のカンマ区切り。この値の組み合わせごとに集計する */
+        public B setEmfDimensions(String emfDimensions) {
+            this.emfDimensions = emfDimensions;
+            return asBuilder();
+        }
+
+        /** @param emfFields 値を集計する ThreadContext(MDC) または MapMessage のキーのカンマ区切り */
+        public B setEmfFields(String emfFields) {
+            this.emfFields = emfFields;
+            return asBuilder();
+        }
+
+        public B setEmfFlushIntervalMillis(long emfFlushIntervalMillis) {
+            this.emfFlushIntervalMillis = emfFlushIntervalMillis;
+            return asBuilder();
+        }
+
+        /**
+         * 集計するディメンションの値の組み合わせの数の上限。超えた組み合わせのログは数えない。(JMX の EmfDroppedEventCount)
+         * emfFlushIntervalMillis の間ログが無かった組み合わせは削除する。
+         */
+        public B setEmfMaxSeries(int emfMaxSeries) {
+            this.emfMaxSeries = emfMaxSeries;
+            return asBuilder();
+        }
+
+        /** EMF のログを送るログストリーム。null なら logStreamName。(logGroupName に送る) */
+        public B setEmfLogStreamName(String emfLogStreamName) {
+            this.emfLogStreamName = emfLogStreamName;
+            return asBuilder();
+        }
+
+        /**
+         * @param rawLogMinLevel このレベルより低いログは、EMF の集計だけに使い、ログとしては送らない。
+         *                       (例: "WARN" なら INFO のログは件数だけをメトリクスにする)
+         */
+        public B setRawLogMinLevel(String rawLogMinLevel) {
+            this.rawLogMinLevel = rawLogMinLevel;
+            return asBuilder();
+        }
     }
 
     // ===== インスタンス変数 =====
-    private final BlockingQueue<LogEvent> blockingQueue;
+    private final LogEventQueue logEventQueue;
     CloudWatchLogsClient cwLogsClient; // TODO junitのためprivateを外したのを戻す
-    private Thread logSenderThread;
-
-    private int cfgMaxQueueLength = 999;
-    private long cfgMaxSendDelayNano = 2_000_000_000;
-    private long cfgMaxStopDelay = 1_000;
-    // private long cfgCwMaxCountPerSend = 10_000;
-    // private long cfgCwMaxBytesPerSend
-    // private long cfgCwMaxBytesPerLogEvent
-    private String cfgRegionName = "ap-northeast-1";
-    // TODO private String cfgEndpointUrl = null;
-    private String cfgLogGroupName = "myapp-lg";
-    private String cfgLogStreamName = "myapp-ls";
+    CloudWatchLogsAsyncClient cwLogsAsyncClient; // senderMode="Async"の場合だけ使う。junitのためprivateにしない
+    private Thread logSenderThread; // 振り分けない場合は SenderLane のスレッド、振り分ける場合は waitAndRouteLogs() のスレッド
+    private final LogRouter router; // logGroupName/logStreamName がパターンでなければ null
+    private final Map<LogDestination, SenderLane> senderLanes = new ConcurrentHashMap<>(); // 振り分ける場合だけ使う
+    private Semaphore inFlightBatches; // 並行して送るPutLogEventsの数を制限する
+    private int inFlightPermits;
+    private volatile ExecutorService senderExecutor; // senderMode="Sync"でsenderThreadsが2以上の場合と、stop()の後に使う
+    private ScheduledExecutorService retryScheduler; // senderMode="Async"で、リトライとレート制限の待ちに使う
+    private final PutLogEventsRetryPolicy retryPolicy;
+    private final PutLogEventsRateLimiter rateLimiter;
+    private final LogEventOverflowPolicy overflowPolicy;
+    private final BatchingPolicy batchingPolicy;
+    private volatile boolean stopRequested; // stop()が呼ばれた
+    private volatile long stopDeadlineNanoTime; // stop()の期限。stopRequestedがtrueの場合だけ有効
+    private volatile boolean stopSenderThreadReceived; // ログ転送スレッドがSTOP_SENDER_THREADを取り出した
+    private final CloudWatchAppenderMetrics metrics;
+    private boolean debugEnabled; // status="debug" の場合だけ、ログごとの動作を出力する
+    private final AtomicLong unsentEvents = new AtomicLong(); // キューから取り出して、まだ送り終えていないログの数
+    private final AtomicLong lastDropReportNanoTime = new AtomicLong(System.nanoTime() - DROP_REPORT_INTERVAL_NANOS);
+    private LogEventSpool spool; // spoolDirectoryを指定した場合だけ使う
+    private LogEventSnapshot spoolSnapshot; // spoolから読んだログ。ログ転送スレッドだけが使う
+    private final EmfMetricsAggregator emfMetrics; // emfNamespaceを指定しなければ null
+    private final LogDestination emfDestination; // emfNamespaceを指定しなければ null
+    private final LogDestination[] shardDestinations; // logStreamShardsが1なら null
+    private ScheduledExecutorService emfScheduler; // emfNamespaceを指定した場合だけ使う
+    private final Level rawLogMinLevel;
+
+    private final String cfgQueueType;
+    private final int cfgMaxQueueLength;
+    private final int cfgInitialMessageBufferBytes;
+    private final int cfgMaxMessageBufferBytes;
+    private final long cfgMaxStopDelay;
+    private final int cfgCwMaxCountPerSend;
+    private final int cfgCwMaxBytesPerSend;
+    private final int cfgCwMaxBytesPerLogEvent;
+    private final String cfgOversizedLogEventPolicy;
+    private final String cfgRegionName;
+    private final String cfgEndpointUrl;
+    private final String cfgLogGroupName;
+    private final String cfgLogStreamName;
+    private final String cfgSenderMode;
+    private final int cfgSenderThreads;
+    private final int cfgMaxInFlightBatches;
+    private final int cfgLogStreamShards;
+    private final String cfgSpoolDirectory;
+    private final int cfgSpoolSegmentBytes;
+    private final int cfgSpoolMaxSegments;
+    private final long cfgEmfFlushIntervalMillis;
+    private final long cfgAggregationWindowMillis; // 0ならまとめない
 
     // ===== コンストラクタ =====
     public CloudWatchAppender(final String name, final Filter filter, final Layout<? extends Serializable> layout,
             final boolean ignoreExceptions, final Property[] properties) {
-        super(name, filter, layout, ignoreExceptions, properties);
-        blockingQueue = new ArrayBlockingQueue<>(cfgMaxQueueLength);
+        this(name, filter, layout, ignoreExceptions, properties, LogEventQueue.TYPE_ARRAY_BLOCKING_QUEUE);
+    }
+
+    /**
+     * queueType 以外の設定は既定値にする。
+     *
+     * @param layout    null なら "%m"(メッセージと例外)の PatternLayout。CloudWatch Logs は UTF-8 なので、charset は UTF-8 にすること。
+     * @param queueType "ArrayBlockingQueue"(従来の方式) または "RingBuffer"(ロックを使わない方式)
+     */
+    public CloudWatchAppender(final String name, final Filter filter, final Layout<? extends Serializable> layout,
+            final boolean ignoreExceptions, final Property[] properties, final String queueType) {
+        this(CloudWatchAppender.newBuilder().setName(name).setFilter(filter).setLayout(layout)
+                .setIgnoreExceptions(ignoreExceptions).setPropertyArray(properties).setQueueType(queueType));
+    }
+
+    private CloudWatchAppender(Builder<?> builder) {
+        super(builder.getName(), builder.getFilter(),
+                builder.getLayout() != null ? builder.getLayout() : newDefaultLayout(), builder.isIgnoreExceptions(),
+                builder.getPropertyArray());
+        if (getLayout() instanceof StringLayout
+                && !StandardCharsets.UTF_8.equals(((StringLayout) getLayout()).getCharset())) {
+            System.err.printf("[WARN] Layout charset is not UTF-8: %s: %s\n", ((StringLayout) getLayout()).getCharset(),
+                    this.getClass().getName());
+        }
+        cfgQueueType = builder.queueType;
+        cfgMaxQueueLength = builder.maxQueueLength;
+        cfgInitialMessageBufferBytes = builder.initialMessageBufferBytes;
+        cfgMaxMessageBufferBytes = builder.maxMessageBufferBytes;
+        cfgMaxStopDelay = builder.maxStopDelayMillis;
+        cfgCwMaxCountPerSend = builder.maxCountPerSend;
+        cfgCwMaxBytesPerSend = builder.maxBytesPerSend;
+        // 1個のログだけで1回の PutLogEvents の上限に収まるようにする
+        cfgCwMaxBytesPerLogEvent = Math.min(CwLogEventBatch.MAX_EVENT_MESSAGE_BYTES,
+                builder.maxBytesPerSend - CwLogEventBatch.EVENT_OVERHEAD_BYTES);
+        cfgOversizedLogEventPolicy = builder.oversizedLogEventPolicy;
+        cfgRegionName = builder.regionName;
+        cfgEndpointUrl = builder.endpointUrl;
+        cfgLogGroupName = builder.logGroupName;
+        cfgLogStreamName = builder.logStreamName;
+        cfgSenderMode = builder.senderMode;
+        cfgSenderThreads = builder.senderThreads;
+        cfgMaxInFlightBatches = builder.maxInFlightBatches;
+        cfgLogStreamShards = builder.logStreamShards;
+        cfgSpoolDirectory = builder.spoolDirectory;
+        cfgSpoolSegmentBytes = builder.spoolSegmentBytes;
+        cfgSpoolMaxSegments = builder.spoolMaxSegments;
+        cfgEmfFlushIntervalMillis = builder.emfFlushIntervalMillis;
+        cfgAggregationWindowMillis = builder.aggregationWindowMillis;
+        retryPolicy = new PutLogEventsRetryPolicy(builder.maxRetryAttempts, builder.retryBaseDelayMillis,
+                builder.retryMaxDelayMillis);
+        // per-second per-account の制限なので、同じ送信先に送る appender で共有する
+        rateLimiter = PutLogEventsRateLimiter.shared(cfgEndpointUrl != null ? cfgEndpointUrl : cfgRegionName,
+                builder.maxRequestsPerSecond, builder.maxBytesPerSecond);
+        batchingPolicy = new BatchingPolicy(builder.batchingMode, builder.maxSendDelayMillis, builder.maxCountPerSend,
+                builder.latencySloMillis);
+        overflowPolicy = new LogEventOverflowPolicy(builder.overflowPolicy, builder.blockTimeoutMillis,
+                Level.getLevel(builder.overflowMinLevel.toUpperCase()), builder.samplePercent);
+        if (builder.emfNamespace != null) {
+            emfMetrics = new EmfMetricsAggregator(builder.emfNamespace, builder.emfDimensions, builder.emfFields,
+                    builder.emfMaxSeries);
+            emfDestination = new LogDestination(cfgLogGroupName,
+                    builder.emfLogStreamName != null ? builder.emfLogStreamName : cfgLogStreamName);
+        } else {
+            emfMetrics = null;
+            emfDestination = null;
+        }
+        rawLogMinLevel = Level.getLevel(builder.rawLogMinLevel.toUpperCase());
+        if (1 < cfgLogStreamShards) {
+            shardDestinations = new LogDestination[cfgLogStreamShards];
+            for (int i = 0; i < cfgLogStreamShards; i++) {
+                shardDestinations[i] = new LogDestination(cfgLogGroupName, cfgLogStreamName + "-" + i);
+            }
+        } else {
+            shardDestinations = null;
+        }
+        router = LogRouter.isPattern(cfgLogGroupName) || LogRouter.isPattern(cfgLogStreamName)
+                ? new LogRouter(cfgLogGroupName, cfgLogStreamName, builder.maxLogStreams)
+                : null;
+        logEventQueue = LogEventQueue.newInstance(cfgQueueType, cfgMaxQueueLength, getLayout(),
+                cfgInitialMessageBufferBytes, cfgMaxMessageBufferBytes, router);
+        metrics = new CloudWatchAppenderMetrics(logEventQueue::size, () -> {
+            LogEventSpool spool = this.spool;
+            return spool != null ? spool.getPendingCount() : 0;
+        }, overflowPolicy, () -> emfMetrics != null ? emfMetrics.getDroppedEventCount() : 0);
+    }
+
+    static Layout<? extends Serializable> newDefaultLayout() {
+        return PatternLayout.newBuilder().withPattern("%m").withCharset(StandardCharsets.UTF_8).build();
     }
 
     // ===== AbstractAppender の Override メソッド =====
     @Override
     public void append(LogEvent event) {
-        System.out.printf("===append()=== %s\n", event.getMessage().getFormattedMessage());
-        if (blockingQueue.offer(event) == false) {
-            System.err.printf("[ERROR] blockingQueue is full: size=%d: %s\n", blockingQueue.size(),
-                    this.getClass().getName());
+        final long startNanos = System.nanoTime();
+        if (debugEnabled) {
+            LOGGER.debug("CloudWatchAppender.append: {}", event.getMessage().getFormattedMessage());
+        }
+        if (emfMetrics != null) {
+            emfMetrics.record(event);
+        }
+        if (event.getLevel().isMoreSpecificThan(rawLogMinLevel)) {
+            enqueue(event);
+        }
+        metrics.enqueueLatency.record(System.nanoTime() - startNanos);
+    }
+
+    private void enqueue(LogEvent event) {
+        LogEventSpool spool = this.spool;
+        if (spool != null && spool.hasPending()) {
+            // spoolに溜まっている間はspoolに書き、古いログを追い越さないようにする
+            if (spool.write(event) == false) {
+                metrics.spoolDroppedEvents.increment();
+                reportDropped("logEventSpool");
+            }
+            return;
+        }
+        if (logEventQueue.offer(event) == false) {
+            if (spool != null && spool.write(event)) {
+                return; // キューがあふれた分はspoolに退避する
+            }
+            if (overflowPolicy.overflow(event, logEventQueue) == false) {
+                reportDropped("logEventQueue");
+            }
+        }
+    }
+
+    /**
+     * ログを捨てたことを、DROP_REPORT_INTERVAL_NANOS に1回だけ出力する。
+     * 満杯の間はログごとに呼ばれるので、ログ出力するスレッドで毎回 System.err に書かないようにする。
+     */
+    private void reportDropped(String where) {
+        long last = lastDropReportNanoTime.get();
+        long now = System.nanoTime();
+        if (now - last < DROP_REPORT_INTERVAL_NANOS || !lastDropReportNanoTime.compareAndSet(last, now)) {
+            return;
         }
+        System.err.printf("[ERROR] %s is full: queueSize=%d spoolPending=%d dropped=%d: %s\n", where,
+                metrics.getQueueSize(), metrics.getSpoolPendingCount(), metrics.getDroppedEventCount(),
+                this.getClass().getName());
     }
 
     @Override
     public void start() {
-        System.out.printf("===start()===\n", this.getClass().getName());
         super.start();
+        this.debugEnabled = LOGGER.isDebugEnabled();
+        this.metrics.register(getName());
         this.cwLogsClient = newCloudWatchLogsClient();
+        if (cfgSpoolDirectory != null) {
+            try {
+                // 前回の終了時に送れなかったログが残っていれば、ログ転送スレッドが先に送る
+                this.spool = new LogEventSpool(Paths.get(cfgSpoolDirectory), cfgSpoolSegmentBytes, cfgSpoolMaxSegments,
+                        getLayout(), router);
+                this.spoolSnapshot = new LogEventSnapshot(getLayout(), cfgInitialMessageBufferBytes,
+                        cfgMaxMessageBufferBytes);
+                if (spool.hasPending()) {
+                    System.out.printf("[INFO] logEventSpool: replay pending=%d: %s\n", spool.getPendingCount(),
+                            this.getClass().getName());
+                }
+            } catch (IOException e) {
+                System.err.printf("[ERROR] logEventSpool: %s: %s: %s\n", cfgSpoolDirectory, this.getClass().getName(), e);
+            }
+        }
+        if (SENDER_MODE_ASYNC.equals(cfgSenderMode)) {
+            this.cwLogsAsyncClient = newCloudWatchLogsAsyncClient();
+            this.inFlightPermits = cfgMaxInFlightBatches;
+            this.retryScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, this.getClass().getName() + "-retry");
+                t.setDaemon(true);
+                return t;
+            });
+        } else if (1 < cfgSenderThreads) {
+            this.inFlightPermits = cfgSenderThreads;
+            this.senderExecutor = newSenderExecutor(cfgSenderThreads);
+        } else {
+            // 通常はログ転送スレッドで送る。stop()の後だけ、maxInFlightBatches 個のスレッドで並行して送る
+            this.inFlightPermits = cfgMaxInFlightBatches;
+        }
+        this.inFlightBatches = new Semaphore(inFlightPermits);
         this.logSenderThread = newLogSenderThread();
         this.logSenderThread.start();
+        if (emfMetrics != null) {
+            this.emfScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, this.getClass().getName() + "-emf");
+                t.setDaemon(true);
+                return t;
+            });
+            this.emfScheduler.scheduleAtFixedRate(this::flushEmfMetrics, cfgEmfFlushIntervalMillis,
+                    cfgEmfFlushIntervalMillis, TimeUnit.MILLISECONDS);
+        }
     }
 
+    /**
+     * 残っているログを、期限までに送れるだけ送ってから停止する。
+     * <ul>
+     *   <li>キューへの STOP_SENDER_THREAD の追加、ログ転送スレッドの終了待ち、応答待ちの PutLogEvents の完了待ちは、
+     *       すべて1個の期限(timeout)の中で行う。timeout が0以下なら maxStopDelayMillis を使う。
+     *   <li>stop() の後はバッチを溜めるのを待たずに、maxInFlightBatches(senderThreads が2以上ならその数)個まで並行して送る。
+     *   <li>期限までに送れた数と、送れなかった数を出力する。spool に残ったログは送れなかった数に含めない。(次の start() で送る)
+     *   <li>spool を使う場合は、期限までに送れずにキューに残ったログを spool に書き、次の start() で送る。
+     *       ただし、そのキューから読むログ転送スレッドが(送信中のまま)終わっていなければ、書かずに送れなかった数に含める。
+     *   <li>emfNamespace を指定した場合は、ログ転送スレッドが終わった後に、最後の間隔の EMF のログを送る。
+     * </ul>
+     * log4j の停止(LoggerContext.stop())からはこのメソッドが呼ばれ、stop() からも timeout=0 で呼ばれる。
+     *
+     * @return 期限までにすべて送り終えた場合は true
+     */
     @Override
-    public void stop() {
-        System.out.printf("===stop()===\n", this.getClass().getName());
-        
+    public boolean stop(long timeout, TimeUnit timeUnit) {
+        setStopping();
+        final long timeoutNanos = 0 < timeout ? timeUnit.toNanos(timeout)
+                : TimeUnit.MILLISECONDS.toNanos(cfgMaxStopDelay);
+        final long deadline = System.nanoTime() + timeoutNanos;
+        final long sentEventsAtStop = metrics.getSentEventCount();
+        final long failedEventsAtStop = metrics.getFailedEventCount();
+        boolean flushed = false;
+        boolean stopSenderThreadOffered = false;
+        long queuedEvents = 0; // 送れずにキューに残ったログの数
+        long spooledEvents = 0; // そのうち spool に書いた数
         try {
-            if (this.blockingQueue.offer(STOP_SENDER_THREAD_LOG_EVENT, cfgMaxStopDelay, TimeUnit.MICROSECONDS)) {
-                System.err.printf("[ERROR} blockingQueue is full: STOP_SENDER_THREAD\n");
+            if (this.senderExecutor == null && !SENDER_MODE_ASYNC.equals(cfgSenderMode)) {
+                this.senderExecutor = newSenderExecutor(inFlightPermits);
             }
-            this.logSenderThread.join(cfgMaxStopDelay); // TODO offer()とjoin()のそれぞれ最大1秒待ちを、合計で最大1秒待ちにする
+            this.stopDeadlineNanoTime = deadline;
+            this.stopRequested = true; // volatile 書き込み。ここまでの設定をログ転送スレッドから見えるようにする
+            // STOP_SENDER_THREAD はログ転送スレッドを起こすためのもの。キューが満杯で入らなくても、stopRequested で停止する
+            stopSenderThreadOffered = this.logEventQueue.offer(STOP_SENDER_THREAD_LOG_EVENT, remainingNanos(deadline),
+                    TimeUnit.NANOSECONDS);
+            if (stopSenderThreadOffered == false) {
+                System.err.printf("[WARN] logEventQueue is full: STOP_SENDER_THREAD: %s\n", this.getClass().getName());
+            }
+            TimeUnit.NANOSECONDS.timedJoin(this.logSenderThread, Math.max(1, remainingNanos(deadline)));
+            if (this.emfScheduler != null) {
+                // 実行中の flushEmfMetrics() が終わってから、最後の集計を送る
+                this.emfScheduler.shutdown();
+                if (this.emfScheduler.awaitTermination(remainingNanos(deadline), TimeUnit.NANOSECONDS)) {
+                    flushEmfMetrics();
+                }
+            }
+            // 応答待ちのPutLogEventsが終わるのを待つ
+            if (this.inFlightBatches.tryAcquire(inFlightPermits, remainingNanos(deadline), TimeUnit.NANOSECONDS)) {
+                this.inFlightBatches.release(inFlightPermits);
+                flushed = !this.logSenderThread.isAlive();
+            } else {
+                System.err.printf("[ERROR] PutLogEvents is still in flight: %s\n", this.getClass().getName());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // stop()を呼んだスレッドの割り込みは消さない
+        } finally {
+            if (this.emfScheduler != null) {
+                this.emfScheduler.shutdownNow();
+            }
+            if (this.retryScheduler != null) {
+                this.retryScheduler.shutdownNow();
+                this.cwLogsAsyncClient.close();
+            }
+            if (this.senderExecutor != null) {
+                this.senderExecutor.shutdownNow();
+            }
+            queuedEvents = logEventQueue.size()
+                    - (stopSenderThreadOffered && !stopSenderThreadReceived ? 1 : 0); // STOP_SENDER_THREAD は数えない
+            for (SenderLane lane : senderLanes.values()) {
+                queuedEvents += lane.queue.size() - (lane.stopOffered && !lane.stopReceived ? 1 : 0);
+            }
+            if (this.spool != null) {
+                // 送れなかったログは次のstart()で送る
+                spooledEvents = spoolQueuedLogEvents();
+                this.spool.close();
+            }
+        }
+        long flushedEvents = metrics.getSentEventCount() - sentEventsAtStop;
+        long lostEvents = metrics.getFailedEventCount() - failedEventsAtStop + unsentEvents.get() + queuedEvents
+                - spooledEvents;
+        System.out.printf("[INFO] stop(): flushed=%d lost=%d spooled=%d elapsed=%dms: %s\n", flushedEvents, lostEvents,
+                spooledEvents, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - (deadline - timeoutNanos)),
+                this.getClass().getName());
+        if (0 < overflowPolicy.getOverflowCount()) {
+            System.err.printf("[WARN] logEventQueue overflowed: %s: %s\n", overflowPolicy, this.getClass().getName());
+        }
+        LOGGER.debug("CloudWatchAppender.stop: {}: {}", getName(), metrics);
+        metrics.unregister();
+        boolean stopped = super.stop(timeout, timeUnit, false);
+        setStopped();
+        return flushed && stopped;
+    }
 
+    /**
+     * キューに残ったログを spool に書く。ログ転送スレッドが終わった後に呼ぶこと。(キューから読むのはログ転送スレッドだけのため)
+     * spool から読んだログは、送信済みにしていないので spool に残っている。書き直さない。
+     *
+     * @return spool に書いた数
+     */
+    /**
+     * stop() の期限までに送れずにキューに残ったログを spool に書く。
+     * キューから取り出すスレッドは1つだけにするため、ログ転送スレッドを止めてから、止まったスレッドのキューだけを書く。
+     *
+     * @return spool に書いたログの数。(spool から読んだログは、書き直さずに数える)
+     */
+    private long spoolQueuedLogEvents() {
+        long spooled = 0;
+        boolean interrupted = Thread.interrupted(); // stop() が割り込まれていても、スレッドの停止を待てるようにする
+        try {
+            for (SenderLane lane : senderLanes.values()) {
+                if (awaitSenderThread(lane.thread)) {
+                    spooled += spoolQueuedLogEvents(lane.queue);
+                }
+            }
+            if (awaitSenderThread(this.logSenderThread)) {
+                spooled += spoolQueuedLogEvents(logEventQueue);
+            }
         } catch (InterruptedException e) {
-            Thread.currentThread().interrupt(); // TODO stop()の仕様的にこれで良いか?
+            interrupted = true;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
         }
-        super.stop();
+        return spooled;
+    }
+
+    /** 期限を過ぎても動いているログ転送スレッドは、割り込んで少しだけ停止を待つ */
+    private static boolean awaitSenderThread(Thread thread) throws InterruptedException {
+        if (thread.isAlive()) {
+            thread.interrupt();
+            TimeUnit.NANOSECONDS.timedJoin(thread, SPOOL_POLL_INTERVAL_NANOS);
+        }
+        return !thread.isAlive();
+    }
+
+    private long spoolQueuedLogEvents(LogEventQueue queue) throws InterruptedException {
+        long spooled = 0;
+        LogEventSnapshot logEvent;
+        while ((logEvent = queue.poll(0, TimeUnit.NANOSECONDS)) != null) {
+            if (logEvent.isStopSenderThread()) {
+                continue;
+            }
+            if (logEvent.getSpoolRecord() != null || spool.write(logEvent)) {
+                spooled++;
+            }
+        }
+        return spooled;
+    }
+
+    private ExecutorService newSenderExecutor(int threads) {
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, this.getClass().getName() + "-sender");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private static long remainingNanos(long deadline) {
+        return Math.max(0, deadline - System.nanoTime());
+    }
+
+    private boolean isStopDeadlinePassed() {
+        return stopRequested && stopDeadlineNanoTime - System.nanoTime() <= 0;
     }
 
     // ===== 内部処理 =====
+    // リトライは PutLogEventsRetryPolicy で行うので、SDK のリトライは無効にする。(両方でリトライすると回数が掛け算になる)
     CloudWatchLogsClient newCloudWatchLogsClient() {
-        return CloudWatchLogsClient.builder().region(Region.of(cfgRegionName)).build();
+        CloudWatchLogsClientBuilder builder = CloudWatchLogsClient.builder().region(Region.of(cfgRegionName))
+                .overrideConfiguration(c -> c.retryStrategy(AwsRetryStrategy.doNotRetry()));
+        if (cfgEndpointUrl != null) {
+            builder.endpointOverride(URI.create(cfgEndpointUrl));
+        }
+        return builder.build();
+    }
+
+    CloudWatchLogsAsyncClient newCloudWatchLogsAsyncClient() {
+        CloudWatchLogsAsyncClientBuilder builder = CloudWatchLogsAsyncClient.builder().region(Region.of(cfgRegionName))
+                .overrideConfiguration(c -> c.retryStrategy(AwsRetryStrategy.doNotRetry()));
+        if (cfgEndpointUrl != null) {
+            builder.endpointOverride(URI.create(cfgEndpointUrl));
+        }
+        return builder.build();
     }
 
     Thread newLogSenderThread() {
-        String threadName = this.getClass().getName();
+        if (router == null) {
+            return new SenderLane(logEventQueue, null, batchingPolicy).thread;
+        }
+        String threadName = this.getClass().getName() + "-router";
         Thread t = new Thread(threadName) {
             public void run() {
-                waitAndSendLogs();
+                waitAndRouteLogs();
             }
         };
         t.setDaemon(true);
@@ -122,97 +934,684 @@ public class CloudWatchAppender extends AbstractAppender {
     }
 
     /**
-     * ログ転送する
+     * 1個の送信先にログ転送する。キューとバッチとログ転送スレッドを送信先ごとに持つので、
+     * ログの多い送信先があっても、他の送信先のバッチは待たされない。
+     * <p>
+     * logGroupName/logStreamName がパターンでなければ、logEventQueue と spool から読む SenderLane が1個だけある。(destination = null)
+     */
+    private class SenderLane {
+        final LogEventQueue queue;
+        final LogDestination destination; // null なら logGroupName/logStreamName(と logStreamShards)に送る
+        final BatchingPolicy batchingPolicy;
+        final LogEventAggregator aggregator; // LogEventAggregator はスレッドセーフでないので、SenderLane ごとに持つ。(aggregationWindowMillisが0なら null)
+        final Thread thread;
+        volatile boolean stopOffered; // waitAndRouteLogs() が STOP_SENDER_THREAD をキューに入れた
+        volatile boolean stopReceived; // STOP_SENDER_THREAD を取り出した
+        private int nextLogStreamShard;
+
+        SenderLane(LogEventQueue queue, LogDestination destination, BatchingPolicy batchingPolicy) {
+            this.queue = queue;
+            this.destination = destination;
+            this.batchingPolicy = batchingPolicy;
+            this.aggregator = 0 < cfgAggregationWindowMillis
+                    ? new LogEventAggregator(cfgAggregationWindowMillis, cfgCwMaxBytesPerLogEvent)
+                    : null;
+            String threadName = CloudWatchAppender.this.getClass().getName()
+                    + (destination != null ? "-" + destination : "");
+            this.thread = new Thread(this::waitAndSendLogs, threadName);
+            this.thread.setDaemon(true);
+        }
+
+        /**
+         * ログ転送する
+         * <ul>
+         *   <li>ログが来たら最大 maxSendDelayMillis(既定2秒)待ち、待っている間に来たログと1個のリクエストにしてCloudWatchへログ転送する
+         *       batchingMode="Adaptive" なら、待ち時間とログ数の目標は BatchingPolicy が決める。
+         *   <li>ただし、1回に送る上限(maxCountPerSend, maxBytesPerSend)を超えたら、直ちにCloudWatchへログ転送する。
+         *       上限は UTF-8 の正確なバイト数で判定し、入りきらなかったログは次のログ転送に回す。
+         *   <li>また stop() が呼ばれたら、キューに残っているログを待たずに次々とログ転送し、キューが空になったら return する。
+         *       spool にログが残っていれば、それもログ転送する。(stop() が待ちきれなかった分は、次の start() で送る)
+         *   <li>stop() の期限を過ぎたら、残りのログは送らずに return する。
+         *   <li>振り分け先の SenderLane は、STOP_SENDER_THREAD を受け取るまで停止しない。
+         *       (waitAndRouteLogs() がキューと spool に残ったログを振り分け終えるまで、キューが空になることがあるため)
+         * </ul>
+         */
+        void waitAndSendLogs() {
+            Deque<InputLogEvent> nextCwLogEvents = new ArrayDeque<>(); // 次にログ転送するログ。分割したログの残りもここに入る。
+            // nextCwLogEvents と同じ順に、spool から読んだログのレコード(spool から読んだログでなければ NO_SPOOL_RECORD)。spool を使わなければ空
+            Deque<LogEventSpool.Record> nextSpoolRecords = new ArrayDeque<>();
+            long nextSendNanoTime = 0; // 次のログ転送する時刻。System.nanoTime()はゼロになる可能性もあるので、このゼロを判定に使わないこと。
+            boolean logSenderThreadStopFlag = false;
+
+            while (logSenderThreadStopFlag == false || !nextCwLogEvents.isEmpty() || hasSpooledLogEvents()) {
+                if (isStopDeadlinePassed()) {
+                    break; // stop()の期限を過ぎたので、残りは送らない
+                }
+                CwLogEventBatch cwLogEvents = new CwLogEventBatch(cfgCwMaxCountPerSend, cfgCwMaxBytesPerSend);
+                boolean batchFull = fillBatch(cwLogEvents, nextCwLogEvents, nextSpoolRecords); // 前回入りきらなかったログを先に詰める
+                boolean queueDrained = false; // キューが空になった
+                if (!cwLogEvents.isEmpty()) {
+                    // 次にログ転送する時刻を決める
+                    nextSendNanoTime = System.nanoTime() + batchingPolicy.lingerNanos();
+                }
+                while (batchFull == false && (logSenderThreadStopFlag == false || hasSpooledLogEvents())) {
+                    long timeout;
+                    if (stopRequested) {
+                        if (isStopDeadlinePassed()) {
+                            break;
+                        }
+                        // stop()の後は、バッチが溜まるのを待たずに、キューに残っているログを送る
+                        // 振り分け先は、送るログが無ければ、STOP_SENDER_THREAD が来るまで待つ
+                        timeout = destination == null || !cwLogEvents.isEmpty() ? 0
+                                : remainingNanos(stopDeadlineNanoTime);
+                    } else if (cwLogEvents.isEmpty()) {
+                        timeout = Long.MAX_VALUE; // まだログが無いため、無限に待つ
+                    } else {
+                        timeout = nextSendNanoTime - System.nanoTime();
+                        if (timeout <= 0) {
+                            if (!batchingPolicy.isAdaptive() || queueDrained) {
+                                break; // 時間経過したため、ログ転送する
+                            }
+                            timeout = 0; // "Adaptive" では、キューに溜まっているログは待たずに詰めてから送る
+                        }
+                    }
+
+                    LogEventSnapshot logEvent; // append()の時点でコピーした内容。次のpoll()までに InputLogEvent に変換すること
+                    if (logSenderThreadStopFlag) {
+                        // stop()の後は、spoolに残ったログだけを送る
+                        if (spool.read(spoolSnapshot) == false) {
+                            break;
+                        }
+                        logEvent = spoolSnapshot;
+                    } else {
+                        try {
+                            logEvent = pollLogEvent(timeout);
+                        } catch (InterruptedException e) {
+                            // stop()が呼ばれたので、ループを抜けてログ転送してから、returnする
+                            logSenderThreadStopFlag = true; // TODO すぐに return する方が良いか?
+                            break;
+                        }
+                    }
+                    if (debugEnabled) {
+                        LOGGER.debug("CloudWatchAppender.poll: {}: {}", this, logEvent);
+                    }
+                    if (logEvent == null) {
+                        queueDrained = true;
+                        if (stopRequested && destination == null) {
+                            // キューが空になった。STOP_SENDER_THREAD がキューに入らなかった場合もここで停止する
+                            logSenderThreadStopFlag = true;
+                        } else if (stopRequested && !cwLogEvents.isEmpty()) {
+                            break; // 溜まったログを送ってから、次のログを待つ
+                        }
+                        continue; // 時間経過したかをループの先頭で判定する
+                    }
+                    if (logEvent.isStopSenderThread()) {
+                        stopReceived = true;
+                        if (destination == null) {
+                            stopSenderThreadReceived = true;
+                        }
+                        logSenderThreadStopFlag = true;
+                        continue; // stop()が呼ばれたので、ログ転送してから、returnする。spoolに残ったログがあれば続けて送る
+                    }
+                    if (batchingPolicy.isAdaptive()) {
+                        batchingPolicy.onArrival(System.nanoTime());
+                    }
+                    if (cwLogEvents.isEmpty()) {
+                        // 次にログ転送する時刻を決める
+                        nextSendNanoTime = System.nanoTime() + batchingPolicy.lingerNanos();
+                    }
+
+                    int parts = addCwLogEvents(logEvent, nextCwLogEvents);
+                    if (spool != null) {
+                        LogEventSpool.Record spoolRecord = logEvent.getSpoolRecord();
+                        for (int i = 0; i < parts; i++) {
+                            nextSpoolRecords.addLast(spoolRecord != null ? spoolRecord : NO_SPOOL_RECORD);
+                        }
+                    }
+                    // 合計サイズが超過したか、"Adaptive" の目標の数に達したら、ループを抜けて、ログ転送する
+                    batchFull = fillBatch(cwLogEvents, nextCwLogEvents, nextSpoolRecords)
+                            || batchingPolicy.targetBatchEvents() <= cwLogEvents.size();
+                }
+                if (!cwLogEvents.isEmpty() && !isStopDeadlinePassed()) { // stop()が呼ばれた場合は、emptyの可能性があるので判定する
+                    // CloudWatch へのログ転送する。※ここに書くと長いので別のメソッドに切り出した
+                    if (aggregator != null) {
+                        int aggregated = cwLogEvents.aggregate(aggregator);
+                        unsentEvents.addAndGet(-aggregated);
+                        metrics.aggregatedEvents.add(aggregated);
+                    }
+                    List<LogEventSpool.Record> spoolRecords = cwLogEvents.getSpoolRecords();
+                    if (!spoolRecords.isEmpty()) {
+                        // 送信が成功するまで、spool のレコードは送信済みにしない。(completeBatch())
+                        spool.sending(spoolRecords,
+                                nextSpoolRecords.peekFirst() == spoolRecords.get(spoolRecords.size() - 1));
+                    }
+                    sendLogs(cwLogEvents);
+                }
+            }
+        }
+
+        /**
+         * nextCwLogEvents から上限まで cwLogEvents に詰める。spool から読んだログなら、そのレコードも cwLogEvents に記録する。
+         *
+         * @return 上限に達して nextCwLogEvents に残りがある場合は true
+         */
+        private boolean fillBatch(CwLogEventBatch cwLogEvents, Deque<InputLogEvent> nextCwLogEvents,
+                Deque<LogEventSpool.Record> nextSpoolRecords) {
+            int before = cwLogEvents.size();
+            boolean batchFull = cwLogEvents.addAll(nextCwLogEvents);
+            for (int i = before; i < cwLogEvents.size() && !nextSpoolRecords.isEmpty(); i++) {
+                LogEventSpool.Record spoolRecord = nextSpoolRecords.removeFirst();
+                if (spoolRecord != NO_SPOOL_RECORD) {
+                    cwLogEvents.addSpoolRecord(spoolRecord);
+                }
+            }
+            return batchFull;
+        }
+
+        boolean hasSpooledLogEvents() {
+            return destination == null && CloudWatchAppender.this.hasSpooledLogEvents();
+        }
+
+        LogEventSnapshot pollLogEvent(long timeoutNanos) throws InterruptedException {
+            if (destination == null) {
+                return CloudWatchAppender.this.pollLogEvent(timeoutNanos);
+            }
+            return queue.poll(timeoutNanos, TimeUnit.NANOSECONDS);
+        }
+
+        void sendLogs(CwLogEventBatch cwLogEvents) {
+            LogDestination destination = this.destination != null ? this.destination : nextShardDestination();
+            if (destination == null) {
+                CloudWatchAppender.this.sendLogs(cwLogEvents, cfgLogGroupName, cfgLogStreamName);
+                return;
+            }
+            createLogStreamIfUnknown(destination);
+            CloudWatchAppender.this.sendLogs(cwLogEvents, destination.logGroupName, destination.logStreamName);
+        }
+
+        /**
+         * @return logStreamShards が2以上なら、バッチごとに順に "logStreamName-番号" の送信先。1なら null
+         */
+        LogDestination nextShardDestination() {
+            if (shardDestinations == null) {
+                return null;
+            }
+            // ログ転送スレッドだけから呼ばれるので、同期は不要
+            LogDestination shard = shardDestinations[nextLogStreamShard];
+            nextLogStreamShard = (nextLogStreamShard + 1) % shardDestinations.length;
+            return shard;
+        }
+
+        @Override
+        public String toString() {
+            return destination != null ? destination.toString() : cfgLogGroupName + ":" + cfgLogStreamName;
+        }
+    }
+
+    /**
+     * logGroupName/logStreamName がパターンの場合のログ転送スレッド。
+     * logEventQueue と spool から取り出したログを、append() の時点で決めた送信先の SenderLane のキューに振り分ける。
      * <ul>
-     *   <li>ログが来たら最大2秒待ち、待っている間に来たログと1個のリクエストにしてCloudWatchへログ転送する
-     *   <li>ただし、1回にCloudWatchにPutLogEventsできる上限を超えたら、直ちにCloudWatchへログ転送する。
-     *   <li>また STOP_SENDER_THREADが来たら、そこまでのログをログ転送してから、returnする。
+     *   <li>SenderLane は送信先の最初のログが来たときに作り、ログ転送スレッドを開始する。
+     *   <li>SenderLane のキューが満杯なら、そのログは捨てる。ログの多い送信先のために、他の送信先を待たせないため。
+     *   <li>送信先が maxLogStreams を超えたログも捨てる。
+     *   <li>stop() が呼ばれたら、キューと spool に残ったログを振り分けてから、各 SenderLane を停止して終わるのを待つ。
      * </ul>
+     * spool から読んだログは、SenderLane が送り終えたら送信済みにする。振り分けずに捨てたログは、その時点で送信済みにする。
      */
-    void waitAndSendLogs() {
-        InputLogEvent nextCwLogEvent = null; // 次にログ転送するログ。初回は無いのでnull。
-        long nextSendNanoTime = 0; // 次のログ転送する時刻。System.nanoTime()はゼロになる可能性もあるので、このゼロを判定に使わないこと。
-        boolean logSenderThreadStopFlag = false;
-        
-        while (logSenderThreadStopFlag == false) {
-            List<InputLogEvent> cwLogEvents = new ArrayList<>();
-            int cwLogEventsLength = 0;
-            if (nextCwLogEvent != null) {
-                cwLogEvents.add(nextCwLogEvent);
-                nextCwLogEvent = null;
-            }
-            // 「i=0」でないのが若干気持ち悪いが、1回のログ転送で最大10,000個を明確化するためfor文を使う
-            for (int i = cwLogEvents.size(); i < CWL_MAX_EVENT_COUNT; i++) {
-                long timeout;
-                if (cwLogEvents.isEmpty()) {
-                    timeout = Long.MAX_VALUE; // まだログが無いため、無限に待つ
+    void waitAndRouteLogs() {
+        boolean stopFlag = false;
+        try {
+            while (stopFlag == false || hasSpooledLogEvents()) {
+                if (isStopDeadlinePassed()) {
+                    break; // stop()の期限を過ぎたので、残りは送らない
+                }
+                LogEventSnapshot logEvent;
+                if (stopFlag) {
+                    // stop()の後は、spoolに残ったログだけを振り分ける
+                    if (spool.read(spoolSnapshot) == false) {
+                        break;
+                    }
+                    logEvent = spoolSnapshot;
                 } else {
-                    timeout = nextSendNanoTime - System.nanoTime();
-                    if (timeout <= 0) {
-                        break; // 時間経過したため、ログ転送する
+                    logEvent = pollLogEvent(stopRequested ? 0 : Long.MAX_VALUE);
+                }
+                if (logEvent == null) {
+                    if (stopRequested) {
+                        stopFlag = true; // キューが空になった
                     }
+                    continue;
+                }
+                if (logEvent.isStopSenderThread()) {
+                    stopSenderThreadReceived = true;
+                    stopFlag = true;
+                    continue;
                 }
+                routeLogEvent(logEvent);
+            }
+        } catch (InterruptedException e) {
+            // stop()が呼ばれたので、SenderLane を停止してから return する
+        } finally {
+            stopSenderLanes();
+        }
+    }
 
-                LogEvent logEvent;
+    private void routeLogEvent(LogEventSnapshot logEvent) throws InterruptedException {
+        LogDestination destination = logEvent.getDestination();
+        if (destination == null) {
+            metrics.routeDroppedEvents.increment(); // maxLogStreams を超えた
+            skipSpoolRecord(logEvent);
+            return;
+        }
+        SenderLane lane = senderLanes.get(destination);
+        if (lane == null) {
+            lane = new SenderLane(LogEventQueue.newInstance(cfgQueueType, cfgMaxQueueLength, getLayout(),
+                    cfgInitialMessageBufferBytes, cfgMaxMessageBufferBytes), destination, batchingPolicy.forLane());
+            senderLanes.put(destination, lane);
+            lane.thread.start();
+        }
+        if (lane.queue.offer(logEvent, 0, TimeUnit.NANOSECONDS) == false) {
+            metrics.routeDroppedEvents.increment();
+            skipSpoolRecord(logEvent);
+            if (debugEnabled) {
+                LOGGER.debug("CloudWatchAppender.route: queue is full: {}", destination);
+            }
+        }
+    }
+
+    private void skipSpoolRecord(LogEventSnapshot logEvent) {
+        if (logEvent.getSpoolRecord() != null) {
+            spool.skip(logEvent.getSpoolRecord());
+        }
+    }
+
+    private void stopSenderLanes() {
+        try {
+            for (SenderLane lane : senderLanes.values()) {
+                lane.stopOffered = lane.queue.offer(STOP_SENDER_THREAD_LOG_EVENT,
+                        remainingNanos(stopDeadlineNanoTime), TimeUnit.NANOSECONDS);
+            }
+            for (SenderLane lane : senderLanes.values()) {
+                TimeUnit.NANOSECONDS.timedJoin(lane.thread, Math.max(1, remainingNanos(stopDeadlineNanoTime)));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 送信先のログストリームが無ければ作る。(ロググループも無ければ作る)
+     * 作ったログストリームは LogDestination.known で覚えておき、2回目からは作らない。
+     */
+    void createLogStreamIfUnknown(LogDestination destination) {
+        if (destination.known) {
+            return;
+        }
+        try {
+            try {
+                createLogStream(destination);
+            } catch (ResourceNotFoundException e) {
                 try {
-                    logEvent = blockingQueue.poll(timeout, TimeUnit.NANOSECONDS);
-                } catch (InterruptedException e) {
-                    // stop()が呼ばれたので、ループを抜けてログ転送してから、returnする
-                    logSenderThreadStopFlag = true; // TODO すぐに return する方が良いか?
-                    break;
+                    cwLogsClient.createLogGroup(
+                            CreateLogGroupRequest.builder().logGroupName(destination.logGroupName).build());
+                } catch (ResourceAlreadyExistsException e2) {
+                    // 他の appender が作った
                 }
-                System.out.printf("===END== blockingQueue.poll()=== %s %s\n", this.getClass().getName(), logEvent);
-                if (logEvent == null) {
-                    break; // 時間経過したため、ループを抜けて、ログ転送する
+                createLogStream(destination);
+            }
+            destination.known = true;
+        } catch (RuntimeException e) {
+            // 作れなくても PutLogEvents は試す。次のバッチでもう一度作る
+            System.err.printf("[ERROR] CloudWatchClient.CreateLogStream: %s: %s: %s\n", destination,
+                    this.getClass().getName(), e);
+        }
+    }
+
+    private void createLogStream(LogDestination destination) {
+        try {
+            cwLogsClient.createLogStream(CreateLogStreamRequest.builder().logGroupName(destination.logGroupName)
+                    .logStreamName(destination.logStreamName).build());
+        } catch (ResourceAlreadyExistsException e) {
+            // 他の appender または他のプロセスが作った
+        }
+    }
+
+    /**
+     * PutLogEvents が ResourceNotFoundException になった送信先は、次のバッチでログストリームを作り直す。
+     */
+    private void forgetLogStream(PutLogEventsRequest req, Throwable e) {
+        while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null) {
+            e = e.getCause();
+        }
+        if (!(e instanceof ResourceNotFoundException)) {
+            return;
+        }
+        String key = LogDestination.key(req.logGroupName(), req.logStreamName());
+        if (emfDestination != null && emfDestination.key.equals(key)) {
+            emfDestination.known = false;
+        }
+        if (shardDestinations != null) {
+            for (LogDestination shard : shardDestinations) {
+                if (shard.key.equals(key)) {
+                    shard.known = false;
                 }
-                if (logEvent == STOP_SENDER_THREAD_LOG_EVENT) {
-                    logSenderThreadStopFlag = true;
-                    break; // stop()が呼ばれたので、ループを抜けてログ転送してから、returnする
+            }
+        }
+        if (router != null) {
+            LogDestination destination = router.destinationOf(key);
+            if (destination != null) {
+                destination.known = false;
+            }
+        }
+    }
+
+    boolean hasSpooledLogEvents() {
+        return spool != null && spool.hasPending();
+    }
+
+    /**
+     * 次のログを取り出す。
+     * <ul>
+     *   <li>spool を使わない場合は logEventQueue を待つだけ。
+     *   <li>spool にログがあれば、先に logEventQueue に入っていた古いログを取り出し、空なら spool から読む。
+     *   <li>spool には append() からログが書かれても通知が無いので、logEventQueue を待つのは最大 SPOOL_POLL_INTERVAL_NANOS にする。
+     * </ul>
+     *
+     * @return 時間経過した場合は null。timeout より早く null を返すこともある。
+     */
+    LogEventSnapshot pollLogEvent(long timeoutNanos) throws InterruptedException {
+        if (spool == null) {
+            return logEventQueue.poll(timeoutNanos, TimeUnit.NANOSECONDS);
+        }
+        LogEventSnapshot logEvent = logEventQueue.poll(
+                spool.hasPending() ? 0 : Math.min(timeoutNanos, SPOOL_POLL_INTERVAL_NANOS), TimeUnit.NANOSECONDS);
+        if (logEvent == null && spool.read(spoolSnapshot)) {
+            logEvent = spoolSnapshot;
+        }
+        return logEvent;
+    }
+
+    /**
+     * CloudWatch へログ転送する
+     * <ul>
+     *   <li>「The log events in the batch must be in chronological order by their timestamp.」のため、タイムスタンプ順に並べ替える。
+     *       複数のスレッドからappend()されると、キューの中ではタイムスタンプ順とは限らない。
+     *   <li>senderMode="Async"では応答を待たずに return し、その間に次のバッチを組み立てる。応答待ちが maxInFlightBatches 個に
+     *       達したら、空くまで待つ。senderMode="Sync"で senderThreads が2以上の場合も、senderThreads 個のスレッドで同様に送る。同じログストリームへの並行した PutLogEvents は許されており(シーケンストークンは廃止された)、
+     *       ログストリームの中ではタイムスタンプ順に並ぶ。
+     *   <li>logStreamShards が2以上なら、バッチごとに "ログストリーム名-番号" のログストリームに振り分ける。(SenderLane.nextShardDestination())
+     *       ログストリームをまたいだ順序は保証しない。
+     * </ul>
+     */
+    void sendLogs(CwLogEventBatch cwLogEvents, String logGroupName, String logStreamName) {
+        final List<LogEventSpool.Record> spoolRecords = cwLogEvents.getSpoolRecords();
+        cwLogEvents.sortByTimestamp();
+        PutLogEventsRequest req = PutLogEventsRequest.builder().logGroupName(logGroupName)
+                .logStreamName(logStreamName).logEvents(cwLogEvents.getCwLogEvents()).build();
+        final int length = cwLogEvents.length();
+        metrics.batchEvents.record(cwLogEvents.size());
+        metrics.batchBytes.record(length);
+        if (SENDER_MODE_ASYNC.equals(cfgSenderMode)) {
+            inFlightBatches.acquireUninterruptibly();
+            putLogEventsAsync(req, spoolRecords, length, 1);
+            return;
+        }
+        if (senderExecutor != null) {
+            inFlightBatches.acquireUninterruptibly();
+            try {
+                senderExecutor.execute(() -> {
+                    try {
+                        putLogEvents(req, spoolRecords, length);
+                    } finally {
+                        inFlightBatches.release();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // stop()の後なので諦める
+                inFlightBatches.release();
+                completeBatch(req, spoolRecords, false);
+                System.err.printf("[ERROR] CloudWatchClient.PutLogEvents: stopped: %s\n", this.getClass().getName());
+            }
+            return;
+        }
+        putLogEvents(req, spoolRecords, length);
+    }
+
+    /**
+     * PutLogEvents を呼ぶ。一時的な失敗なら retryPolicy に従ってリトライする。
+     * <p>
+     * https://docs.aws.amazon.com/AmazonCloudWatchLogs/latest/APIReference/API_PutLogEvents.html
+     * 「The quota of five requests per second per log stream has been removed. Instead, PutLogEvents actions are throttled based on a per-second per-account quota.」
+     * <p>
+     * リトライしても失敗したら、そのバッチは捨てる。(spool から読んだログは、spool から読み直して送る)
+     * 例外を投げるとログ転送スレッドが終了してしまうため、投げない。
+     * stop() の後は、期限までに間に合わないリトライはしない。
+     *
+     * @param spoolRecords req に含まれる、spool から読んだログのレコード
+     */
+    void putLogEvents(PutLogEventsRequest req, List<LogEventSpool.Record> spoolRecords, int length) {
+        for (int attempt = 1; /* nop */ ; attempt++) {
+            try {
+                rateLimiter.acquire(length);
+                long startNanos = System.nanoTime();
+                PutLogEventsResponse res;
+                try {
+                    res = cwLogsClient.putLogEvents(req);
+                } finally {
+                    long elapsedNanos = System.nanoTime() - startNanos;
+                    metrics.putLogEventsLatency.record(elapsedNanos);
+                    batchingPolicy.onRoundTrip(elapsedNanos);
                 }
-                if (cwLogEvents.isEmpty()) {
-                    // 次にログ転送する時刻を決める
-                    nextSendNanoTime = System.nanoTime() + cfgMaxSendDelayNano;
+                checkResponse(req, res);
+                completeBatch(req, spoolRecords, true);
+                return;
+            } catch (RuntimeException e) {
+                forgetLogStream(req, e);
+                long delay = retryDelayNanos(e, attempt);
+                if (0 <= delay) {
+                    metrics.retries.increment();
+                }
+                if (delay < 0) {
+                    System.err.printf("[ERROR] CloudWatchClient.PutLogEvents: attempt=%d: %s: %s\n", attempt,
+                            this.getClass().getName(), e);
+                    completeBatch(req, spoolRecords, false);
+                    return;
                 }
+                try {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    System.err.printf("[ERROR] CloudWatchClient.PutLogEvents: interrupted: %s: %s\n",
+                            this.getClass().getName(), e);
+                    completeBatch(req, spoolRecords, false);
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                System.err.printf("[ERROR] CloudWatchClient.PutLogEvents: interrupted: %s\n", this.getClass().getName());
+                completeBatch(req, spoolRecords, false);
+                return;
+            }
+        }
+    }
 
-                InputLogEvent cwLogEvent = newCwLogEvent(logEvent);
+    /**
+     * @return リトライまでの待ち時間。リトライしない場合は -1
+     */
+    private long retryDelayNanos(Throwable e, int attempt) {
+        if (!retryPolicy.shouldRetry(e, attempt)) {
+            return -1;
+        }
+        long delay = retryPolicy.delayNanos(attempt);
+        if (stopRequested && stopDeadlineNanoTime - System.nanoTime() < delay) {
+            return -1; // stop()の期限までに間に合わない
+        }
+        return delay;
+    }
 
-                // TODO check 「Each log event can be no larger than 1 MB.」
-                // WANT-TO 1MBを超えた部分は切り捨てと、1MBごとに分割してログ転送を選択可能にする。
+    /**
+     * 送り終えた、または諦めたバッチの件数を数える。stop() で送れた数と送れなかった数を出力するために使う。
+     * spool から読んだログは、送れたら送信済みにし、諦めたら spool から読み直す。
+     */
+    private void completeBatch(PutLogEventsRequest req, List<LogEventSpool.Record> spoolRecords, boolean sent) {
+        int count = req.logEvents().size();
+        (sent ? metrics.sentEvents : metrics.failedEvents).add(count);
+        unsentEvents.addAndGet(-count);
+        if (!spoolRecords.isEmpty()) {
+            spool.acknowledge(spoolRecords, sent);
+        }
+    }
 
-                cwLogEventsLength += cwLogEvent.message().length() + 26; // TODO 正確に UTF-8 で計算する
-                if (1_048_576 < cwLogEventsLength) {
-                    // https://docs.aws.amazon.com/AmazonCloudWatchLogs/latest/APIReference/API_PutLogEvents.html
-                    // check 「The maximum batch size is 1,048,576 bytes. UTF-8,plus 26 bytes for
-                    // each log event.」
-                    nextCwLogEvent = cwLogEvent;
-                    // TODO 次にログ転送する時刻を決める
-                    break; // 合計サイズが超過したため、ループを抜けて、ログ転送する
-                }
-                cwLogEvents.add(cwLogEvent);
+    /**
+     * putLogEvents() の非同期版。レート制限とリトライの待ちは retryScheduler で行い、呼び出し元のスレッドを待たせない。
+     * 成功または諦めたときに inFlightBatches を1個返す。
+     */
+    void putLogEventsAsync(PutLogEventsRequest req, List<LogEventSpool.Record> spoolRecords, int length, int attempt) {
+        long wait = rateLimiter.reserve(length);
+        if (0 < wait) {
+            scheduleAsync(req, spoolRecords, () -> callPutLogEventsAsync(req, spoolRecords, length, attempt), wait);
+        } else {
+            callPutLogEventsAsync(req, spoolRecords, length, attempt);
+        }
+    }
+
+    private void callPutLogEventsAsync(PutLogEventsRequest req, List<LogEventSpool.Record> spoolRecords, int length,
+            int attempt) {
+        final long startNanos = System.nanoTime();
+        CompletableFuture<PutLogEventsResponse> future;
+        try {
+            future = cwLogsAsyncClient.putLogEvents(req);
+        } catch (RuntimeException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+        future.whenComplete((res, e) -> {
+            long elapsedNanos = System.nanoTime() - startNanos;
+            metrics.putLogEventsLatency.record(elapsedNanos);
+            batchingPolicy.onRoundTrip(elapsedNanos);
+            long delay = e == null ? -1 : retryDelayNanos(e, attempt);
+            if (e != null) {
+                forgetLogStream(req, e);
             }
-            if (!cwLogEvents.isEmpty()) { // stop()が呼ばれた場合は、emptyの可能性があるので判定する
-                // CloudWatch へのログ転送する。※ここに書くと長いので別のメソッドに切り出した
-                sendLogs(cwLogEvents);
+            if (e == null) {
+                completeBatch(req, spoolRecords, true);
+                inFlightBatches.release();
+                checkResponse(req, res);
+            } else if (0 <= delay) {
+                metrics.retries.increment();
+                scheduleAsync(req, spoolRecords, () -> putLogEventsAsync(req, spoolRecords, length, attempt + 1),
+                        delay);
+            } else {
+                completeBatch(req, spoolRecords, false);
+                inFlightBatches.release();
+                System.err.printf("[ERROR] CloudWatchAsyncClient.PutLogEvents: attempt=%d: %s: %s\n", attempt,
+                        this.getClass().getName(), e);
             }
+        });
+    }
+
+    private void scheduleAsync(PutLogEventsRequest req, List<LogEventSpool.Record> spoolRecords, Runnable task,
+            long delayNanos) {
+        try {
+            retryScheduler.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // stop()の後なので諦める
+            completeBatch(req, spoolRecords, false);
+            inFlightBatches.release();
+            System.err.printf("[ERROR] CloudWatchAsyncClient.PutLogEvents: stopped: %s\n", this.getClass().getName());
         }
     }
 
-    void sendLogs(List<InputLogEvent> cwLogEvents) {
-        PutLogEventsRequest req = PutLogEventsRequest.builder().logGroupName(cfgLogGroupName)
-                .logStreamName(cfgLogStreamName).logEvents(cwLogEvents).build();
-        PutLogEventsResponse res = cwLogsClient.putLogEvents(req);
-        // TODO 10回くらいリトライする ※ per-second per-account の rate limit と、一時的なネットワーク障害への対処として。
-        // https://docs.aws.amazon.com/AmazonCloudWatchLogs/latest/APIReference/API_PutLogEvents.html
-        // The quota of five requests per second per log stream has been removed. Instead, PutLogEvents actions are throttled based on a per-second per-account quota. You can request an increase to the per-second throttling quota by using the Service Quotas service.
-        if (res.rejectedLogEventsInfo() != null) {
+    void checkResponse(PutLogEventsRequest req, PutLogEventsResponse res) {
+        RejectedLogEventsInfo info = res.rejectedLogEventsInfo();
+        if (info != null) {
+            metrics.rejectedEvents.add(countRejected(info, req.logEvents().size()));
             System.err.printf("[ERROR] CloudWatchClient.PutLogEvents: %s: %s\n", this.getClass().getName(),
                     res);
-        }        
+        }
+    }
+
+    /**
+     * 拒否されたログの数。古すぎる(期限切れの)ログは先頭から EndIndex の直前まで、新しすぎるログは StartIndex から最後まで。
+     */
+    static int countRejected(RejectedLogEventsInfo info, int count) {
+        int oldEnd = Math.max(info.tooOldLogEventEndIndex() != null ? info.tooOldLogEventEndIndex() : 0,
+                info.expiredLogEventEndIndex() != null ? info.expiredLogEventEndIndex() : 0);
+        int newStart = info.tooNewLogEventStartIndex() != null ? info.tooNewLogEventStartIndex() : count;
+        return Math.min(count, oldEnd + Math.max(0, count - Math.max(newStart, oldEnd)));
+    }
+
+    /**
+     * EMF の集計を emfDestination に送る。emfScheduler のスレッドと、stop() から呼ばれる。(同時には呼ばれない)
+     * <ul>
+     *   <li>ログと同じく sendLogs() で送るので、リトライ、レート制限、senderMode、stop() の送信数の集計もログと同じ。
+     *   <li>ログストリームが無ければ作る。(ログの送信先とは別のログストリームを指定できるため)
+     * </ul>
+     */
+    void flushEmfMetrics() {
+        try {
+            long timeMillis = System.currentTimeMillis();
+            Deque<InputLogEvent> documents = new ArrayDeque<>();
+            for (String document : emfMetrics.flush(timeMillis)) {
+                documents.addLast(newCwLogEvent(timeMillis, document));
+            }
+            if (documents.isEmpty()) {
+                return;
+            }
+            createLogStreamIfUnknown(emfDestination);
+            while (!documents.isEmpty()) {
+                CwLogEventBatch cwLogEvents = new CwLogEventBatch(cfgCwMaxCountPerSend, cfgCwMaxBytesPerSend);
+                cwLogEvents.addAll(documents);
+                if (cwLogEvents.isEmpty()) {
+                    System.err.printf("[ERROR] EMF document is too large: %d bytes: %s\n",
+                            Utf8.encodedLength(documents.removeFirst().message()), this.getClass().getName());
+                    continue;
+                }
+                unsentEvents.addAndGet(cwLogEvents.size());
+                sendLogs(cwLogEvents, emfDestination.logGroupName, emfDestination.logStreamName);
+            }
+        } catch (RuntimeException e) {
+            // 例外を投げると scheduleAtFixedRate() の次の実行が止まるので、投げない
+            System.err.printf("[ERROR] flushEmfMetrics: %s: %s\n", this.getClass().getName(), e);
+        }
+    }
+
+    /** junit と JMX 以外では使わない */
+    CloudWatchAppenderMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 1個のログを InputLogEvent に変換して out に追加する。
+     * <p>
+     * 「Each log event can be no larger than 1 MB.」のため、上限を超えたログは cfgOversizedLogEventPolicy に従って
+     * 切り捨て("Truncate")または分割("Split")する。どちらも UTF-8 の文字の途中では切らない。
+     *
+     * @return out に追加した数
+     */
+    int addCwLogEvents(LogEventSnapshot logEvent, Deque<InputLogEvent> out) {
+        // append()の時点でLayoutによりUTF-8に変換済み
+        final int length = logEvent.getMessageLength();
+        if (length <= cfgCwMaxBytesPerLogEvent) {
+            out.addLast(newCwLogEvent(logEvent.getTimeMillis(), logEvent.getMessageString()));
+            unsentEvents.incrementAndGet();
+            return 1;
+        }
+        final byte[] bytes = logEvent.getMessageBytes();
+        int offset = 0;
+        int parts = 0;
+        do {
+            int end = Utf8.chunkEnd(bytes, offset, length, cfgCwMaxBytesPerLogEvent);
+            out.addLast(newCwLogEvent(logEvent.getTimeMillis(),
+                    new String(bytes, offset, end - offset, StandardCharsets.UTF_8)));
+            unsentEvents.incrementAndGet();
+            parts++;
+            offset = end;
+        } while (offset < length && OVERSIZED_LOG_EVENT_POLICY_SPLIT.equals(cfgOversizedLogEventPolicy));
+        return parts;
     }
 
-    InputLogEvent newCwLogEvent(LogEvent log4j2LogEvent) {
-        // TODO Layoutを使って文字列に変換する
-        return InputLogEvent.builder().timestamp(log4j2LogEvent.getTimeMillis())
-                .message(log4j2LogEvent.getMessage().getFormattedMessage()).build();
+    InputLogEvent newCwLogEvent(long timeMillis, String message) {
+        return InputLogEvent.builder().timestamp(timeMillis).message(message).build();
     }
 }
@@ -0,0 +1,214 @@
+// SPDX-FileCopyrightText: 2025 shimiz98
+// SPDX-License-Identifier: MIT
+package io.github.shimiz98;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.apache.logging.log4j.util.PropertiesUtil;
+
+/**
+ * CloudWatchAppender の計測値
+ * <ul>
+ *   <li>ホットパス(append() とログ転送スレッド)では LongAdder と LongHistogram を加算するだけで、出力はしない。
+ *   <li>値は JMX で参照する。また status="debug" なら stop() で StatusLogger に出力する。
+ *   <li>log4j2.disableJmx=true なら JMX に登録しない。
+ * </ul>
+ */
+class CloudWatchAppenderMetrics implements CloudWatchAppenderMetricsMBean {
+    static final String JMX_DOMAIN = "io.github.shimiz98";
+    // 再設定では新しい appender の start() が古い appender の stop() より先に呼ばれるため、登録したインスタンスを覚えておく
+    private static final ConcurrentMap<ObjectName, CloudWatchAppenderMetrics> REGISTERED = new ConcurrentHashMap<>();
+
+    private final IntSupplier queueSize;
+    private final LongSupplier spoolPendingCount;
+    private final LogEventOverflowPolicy overflowPolicy;
+    private final LongSupplier emfDroppedEventCount;
+
+    final LongHistogram enqueueLatency = new LongHistogram(); // append() の処理時間
+    final LongHistogram batchEvents = new LongHistogram(); // 1回の PutLogEvents のログ数
+    final LongHistogram batchBytes = new LongHistogram(); // 1回の PutLogEvents のバイト数
+    final LongHistogram putLogEventsLatency = new LongHistogram(); // 1回の PutLogEvents の応答時間(リトライごと)
+    final LongAdder retries = new LongAdder();
+    final LongAdder sentEvents = new LongAdder(); // 送れたログの数
+    final LongAdder failedEvents = new LongAdder(); // リトライしても送れずに捨てたログの数
+    final LongAdder rejectedEvents = new LongAdder(); // rejectedLogEventsInfo で拒否されたログの数
+    final LongAdder spoolDroppedEvents = new LongAdder(); // spool が一杯で捨てたログの数
+    final LongAdder aggregatedEvents = new LongAdder(); // 繰り返しとしてまとめて、送らなかったログの数
+    final LongAdder routeDroppedEvents = new LongAdder(); // 送信先ごとのキューが満杯、または maxLogStreams を超えて捨てたログの数
+    private ObjectName objectName;
+
+    CloudWatchAppenderMetrics(IntSupplier queueSize, LongSupplier spoolPendingCount,
+            LogEventOverflowPolicy overflowPolicy, LongSupplier emfDroppedEventCount) {
+        this.queueSize = queueSize;
+        this.spoolPendingCount = spoolPendingCount;
+        this.overflowPolicy = overflowPolicy;
+        this.emfDroppedEventCount = emfDroppedEventCount;
+    }
+
+    /**
+     * JMX に登録する。同じ名前の appender が登録済みなら置き換える。
+     */
+    void register(String appenderName) {
+        if (PropertiesUtil.getProperties().getBooleanProperty("log4j2.disableJmx")) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(
+                    JMX_DOMAIN + ":type=CloudWatchAppender,name=" + ObjectName.quote(appenderName));
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new StandardMBean(this, CloudWatchAppenderMetricsMBean.class), name);
+            REGISTERED.put(name, this);
+            objectName = name;
+        } catch (JMException e) {
+            System.err.printf("[WARN] CloudWatchAppenderMetrics.register: %s: %s\n", appenderName, e);
+        }
+    }
+
+    /**
+     * JMX から削除する。他のインスタンスに置き換えられていたら何もしない。
+     */
+    void unregister() {
+        ObjectName name = objectName;
+        if (name == null || !REGISTERED.remove(name, this)) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            System.err.printf("[WARN] CloudWatchAppenderMetrics.unregister: %s: %s\n", name, e);
+        }
+    }
+
+    ObjectName getObjectName() {
+        return objectName;
+    }
+
+    // ===== CloudWatchAppenderMetricsMBean の実装 =====
+    @Override
+    public long getAppendedEventCount() {
+        return enqueueLatency.getCount();
+    }
+
+    @Override
+    public double getEnqueueLatencyMeanNanos() {
+        return enqueueLatency.getMean();
+    }
+
+    @Override
+    public long getEnqueueLatencyP99Nanos() {
+        return enqueueLatency.getPercentile(99);
+    }
+
+    @Override
+    public long getEnqueueLatencyMaxNanos() {
+        return enqueueLatency.getMax();
+    }
+
+    @Override
+    public int getQueueSize() {
+        return queueSize.getAsInt();
+    }
+
+    @Override
+    public long getSpoolPendingCount() {
+        return spoolPendingCount.getAsLong();
+    }
+
+    @Override
+    public long getDroppedEventCount() {
+        return overflowPolicy.getDroppedCount() + spoolDroppedEvents.sum() + routeDroppedEvents.sum();
+    }
+
+    @Override
+    public long getBatchCount() {
+        return batchEvents.getCount();
+    }
+
+    @Override
+    public double getBatchEventsMean() {
+        return batchEvents.getMean();
+    }
+
+    @Override
+    public long getBatchEventsMax() {
+        return batchEvents.getMax();
+    }
+
+    @Override
+    public double getBatchBytesMean() {
+        return batchBytes.getMean();
+    }
+
+    @Override
+    public long getBatchBytesMax() {
+        return batchBytes.getMax();
+    }
+
+    @Override
+    public double getPutLogEventsLatencyMeanNanos() {
+        return putLogEventsLatency.getMean();
+    }
+
+    @Override
+    public long getPutLogEventsLatencyP99Nanos() {
+        return putLogEventsLatency.getPercentile(99);
+    }
+
+    @Override
+    public long getPutLogEventsLatencyMaxNanos() {
+        return putLogEventsLatency.getMax();
+    }
+
+    @Override
+    public long getRetryCount() {
+        return retries.sum();
+    }
+
+    @Override
+    public long getSentEventCount() {
+        return sentEvents.sum();
+    }
+
+    @Override
+    public long getFailedEventCount() {
+        return failedEvents.sum();
+    }
+
+    @Override
+    public long getRejectedEventCount() {
+        return rejectedEvents.sum();
+    }
+
+    @Override
+    public long getAggregatedEventCount() {
+        return aggregatedEvents.sum();
+    }
+
+    @Override
+    public long getEmfDroppedEventCount() {
+        return emfDroppedEventCount.getAsLong();
+    }
+
+    @Override
+    public String toString() {
+        return "enqueueLatency[" + enqueueLatency + "] queueSize=" + getQueueSize() + " spoolPending="
+                + getSpoolPendingCount() + " dropped=" + getDroppedEventCount() + " batchEvents[" + batchEvents
+                + "] batchBytes[" + batchBytes + "] putLogEventsLatency[" + putLogEventsLatency + "] retries="
+                + getRetryCount() + " sent=" + getSentEventCount() + " failed=" + getFailedEventCount()
+                + " rejected=" + getRejectedEventCount() + " aggregated=" + getAggregatedEventCount()
+                + " emfDropped=" + getEmfDroppedEventCount();
+    }
+}
@@ -0,0 +1,57 @@
+// SPDX-FileCopyrightText: 2025 shimiz98
+// SPDX-License-Identifier: MIT
+package io.github.shimiz98;
+
+/**
+ * CloudWatchAppender の JMX の属性。ObjectName は "io.github.shimiz98:type=CloudWatchAppender,name=(appender名)"
+ * <p>
+ * 時間の単位は ns、サイズの単位は UTF-8 のバイト数。
+ */
+public interface CloudWatchAppenderMetricsMBean {
+    // ===== append() =====
+    long getAppendedEventCount();
+
+    double getEnqueueLatencyMeanNanos();
+
+    long getEnqueueLatencyP99Nanos();
+
+    long getEnqueueLatencyMaxNanos();
+
+    // ===== キュー =====
+    int getQueueSize();
+
+    long getSpoolPendingCount();
+
+    long getDroppedEventCount();
+
+    // ===== PutLogEvents =====
+    long getBatchCount();
+
+    double getBatchEventsMean();
+
+    long getBatchEventsMax();
+
+    double getBatchBytesMean();
+
+    long getBatchBytesMax();
+
+    double getPutLogEventsLatencyMeanNanos();
+
+    long getPutLogEventsLatencyP99Nanos();
+
+    long getPutLogEventsLatencyMaxNanos();
+
+    long getRetryCount();
+
+    long getSentEventCount();
+
+    long getFailedEventCount();
+
+    long getRejectedEventCount();
+
+    long getAggregatedEventCount();
+
+    // ===== EMF =====
+    /** emfMaxSeries を超えて、EMF のメトリクスに数えなかったログの数。(ログは送る) */
+    long getEmfDroppedEventCount();
+}
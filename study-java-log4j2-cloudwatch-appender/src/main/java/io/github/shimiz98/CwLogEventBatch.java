@@ -0,0 +1,141 @@
+// SPDX-FileCopyrightText: 2025 shimiz98
+// SPDX-License-Identifier: MIT
+package io.github.shimiz98;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+
+import software.amazon.awssdk.services.cloudwatchlogs.model.InputLogEvent;
+
+/**
+ * 1回の PutLogEvents で送るログ
+ * <p>
+ * https://docs.aws.amazon.com/AmazonCloudWatchLogs/latest/APIReference/API_PutLogEvents.html
+ * <ul>
+ *   <li>「The maximum batch size is 1,048,576 bytes. This size is calculated as the sum of all event messages in UTF-8, plus 26 bytes for each log event.」
+ *   <li>「The maximum number of log events in a batch is 10,000.」
+ * </ul>
+ */
+class CwLogEventBatch {
+    static final int MAX_EVENT_COUNT = 10_000;
+    static final int MAX_BATCH_BYTES = 1_048_576;
+    static final int EVENT_OVERHEAD_BYTES = 26;
+    /** 1個のログのメッセージの上限。1個だけで1回の PutLogEvents の上限になる。 */
+    static final int MAX_EVENT_MESSAGE_BYTES = MAX_BATCH_BYTES - EVENT_OVERHEAD_BYTES;
+
+    private final int maxEventCount;
+    private final int maxBatchBytes;
+    private final List<InputLogEvent> cwLogEvents = new ArrayList<>();
+    private int length; // UTF-8 のバイト数 + 26 * 件数
+    private List<LogEventSpool.Record> spoolRecords = Collections.emptyList(); // LogEventSpool から読んだログのレコード。読んだ順
+
+    CwLogEventBatch() {
+        this(MAX_EVENT_COUNT, MAX_BATCH_BYTES);
+    }
+
+    /**
+     * @param maxEventCount 件数の上限。PutLogEvents の上限以下にすること。
+     * @param maxBatchBytes バイト数の上限。PutLogEvents の上限以下にすること。
+     */
+    CwLogEventBatch(int maxEventCount, int maxBatchBytes) {
+        this.maxEventCount = maxEventCount;
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    /**
+     * 上限を超えない場合だけ追加する。
+     *
+     * @return 追加した場合は true
+     */
+    boolean tryAdd(InputLogEvent cwLogEvent) {
+        if (maxEventCount <= cwLogEvents.size()) {
+            return false;
+        }
+        int eventLength = Utf8.encodedLength(cwLogEvent.message()) + EVENT_OVERHEAD_BYTES;
+        if (maxBatchBytes < length + eventLength) {
+            return false;
+        }
+        cwLogEvents.add(cwLogEvent);
+        length += eventLength;
+        return true;
+    }
+
+    /**
+     * 上限を超えない範囲で、先頭から順に取り出して追加する。
+     *
+     * @return 上限に達して from に残りがある場合は true
+     */
+    boolean addAll(Deque<InputLogEvent> from) {
+        while (!from.isEmpty()) {
+            if (!tryAdd(from.peekFirst())) {
+                return true;
+            }
+            from.removeFirst();
+        }
+        return false;
+    }
+
+    /**
+     * 追加したログが LogEventSpool から読んだログなら、そのレコードを記録する。分割したログは1個だけ記録する。
+     */
+    void addSpoolRecord(LogEventSpool.Record record) {
+        if (spoolRecords.isEmpty()) {
+            spoolRecords = new ArrayList<>();
+        } else if (spoolRecords.get(spoolRecords.size() - 1) == record) {
+            return;
+        }
+        spoolRecords.add(record);
+    }
+
+    List<LogEventSpool.Record> getSpoolRecords() {
+        return spoolRecords;
+    }
+
+    /**
+     * 繰り返しのログをまとめる。まとめると上限を超える場合は、まとめない。
+     *
+     * @return まとめて減ったログの数
+     */
+    int aggregate(LogEventAggregator aggregator) {
+        List<InputLogEvent> aggregated = aggregator.aggregate(cwLogEvents);
+        int aggregatedLength = 0;
+        for (InputLogEvent cwLogEvent : aggregated) {
+            aggregatedLength += Utf8.encodedLength(cwLogEvent.message()) + EVENT_OVERHEAD_BYTES;
+        }
+        if (maxBatchBytes < aggregatedLength) {
+            return 0;
+        }
+        int removed = cwLogEvents.size() - aggregated.size();
+        cwLogEvents.clear();
+        cwLogEvents.addAll(aggregated);
+        length = aggregatedLength;
+        return removed;
+    }
+
+    /**
+     * 「The log events in the batch must be in chronological order by their timestamp.」のため、タイムスタンプ順に並べ替える。
+     * 安定ソートなので、分割したログの順序は変わらない。
+     */
+    void sortByTimestamp() {
+        cwLogEvents.sort(Comparator.comparingLong(InputLogEvent::timestamp));
+    }
+
+    boolean isEmpty() {
+        return cwLogEvents.isEmpty();
+    }
+
+    int size() {
+        return cwLogEvents.size();
+    }
+
+    int length() {
+        return length;
+    }
+
+    List<InputLogEvent> getCwLogEvents() {
+        return cwLogEvents;
+    }
+}
@@ -0,0 +1,334 @@
+// SPDX-FileCopyrightText: 2025 shimiz98
+// SPDX-License-Identifier: MIT
+package io.github.shimiz98;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.message.MapMessage;
+import org.apache.logging.log4j.message.Message;
+
+/**
+ * ログから件数と数値を集計し、一定間隔ごとに CloudWatch Embedded Metric Format (EMF) の JSON にする。
+ * CloudWatch Logs のメトリクスフィルタを使わずに、エラーの数や処理時間をメトリクスにするため。
+ * <ul>
+ *   <li>dimensions("Logger", "Level", "Marker" の組み合わせ)の値ごとに系列を作り、ログの数(Count)を数える。
+ *   <li>fields のキーの値を ThreadContext(MDC) または MapMessage から取り出し、LongHistogram に記録する。数値でなければ無視する。
+ *   <li>系列が maxSeries 個に達したら、新しい系列のログは数えない。(ロガー名の種類が多すぎる場合など)
+ *       flush() の間隔の間にログが無かった系列は削除するので、使われなくなった系列の分は、また新しい系列を作れる。
+ *   <li>EMF の値には分布を書けないので、field ごとに "(field)Count", "Sum", "Max", "P50", "P99" のメトリクスにする。
+ *       P50, P99 は LongHistogram と同じく、最大2倍の誤差がある。
+ * </ul>
+ * record() はログ出力するスレッドから同時に呼ばれる。LongAdder を加算するだけで、系列が無いときだけ ConcurrentHashMap に追加する。
+ * 系列を探すキーはスレッドごとに使い回すので、既にある系列ならオブジェクトを作らない。
+ * <p>
+ * https://docs.aws.amazon.com/AmazonCloudWatch/latest/monitoring/CloudWatch_Embedded_Metric_Format_Specification.html
+ */
+class EmfMetricsAggregator {
+    static final String DIMENSION_LOGGER = "Logger";
+    static final String DIMENSION_LEVEL = "Level";
+    static final String DIMENSION_MARKER = "Marker";
+    static final String COUNT = "Count";
+    static final String NO_MARKER = "None";
+    // 「A CloudWatchMetrics array can contain up to 100 metrics.」
+    static final int MAX_METRICS = 100;
+    private static final String[] STATISTICS = { "Count", "Sum", "Max", "P50", "P99" };
+    private static final long NO_VALUE = Long.MIN_VALUE;
+
+    private final String namespace;
+    private final List<String> dimensions; // 設定した順
+    private final boolean byLogger;
+    private final boolean byLevel;
+    private final boolean byMarker;
+    private final String[] fields;
+    private final int maxSeries;
+    private final ConcurrentMap<SeriesKey, Series> series = new ConcurrentHashMap<>();
+    private final ThreadLocal<SeriesKey> lookupKeys = ThreadLocal.withInitial(SeriesKey::new); // series.get() だけに使う
+    private final LongAdder droppedEvents = new LongAdder(); // maxSeries を超えて数えなかったログの数
+    private long reportedDroppedEvents; // flush() で System.err に出力した droppedEvents
+
+    /**
+     * @param dimensions "Logger", "Level", "Marker" のカンマ区切り。空ならディメンションなし
+     * @param fields     数値を集計するキーのカンマ区切り。空なら件数だけ
+     */
+    EmfMetricsAggregator(String namespace, String dimensions, String fields, int maxSeries) {
+        if (namespace == null || namespace.isEmpty()) {
+            throw new IllegalArgumentException("emfNamespace: " + namespace);
+        }
+        this.namespace = namespace;
+        this.dimensions = split(dimensions);
+        for (String dimension : this.dimensions) {
+            if (!Arrays.asList(DIMENSION_LOGGER, DIMENSION_LEVEL, DIMENSION_MARKER).contains(dimension)
+                    || this.dimensions.indexOf(dimension) != this.dimensions.lastIndexOf(dimension)) {
+                throw new IllegalArgumentException("emfDimensions: " + dimensions);
+            }
+        }
+        this.byLogger = this.dimensions.contains(DIMENSION_LOGGER);
+        this.byLevel = this.dimensions.contains(DIMENSION_LEVEL);
+        this.byMarker = this.dimensions.contains(DIMENSION_MARKER);
+        this.fields = split(fields).toArray(new String[0]);
+        for (String field : this.fields) {
+            // メトリクス名はドキュメントのトップレベルのキーなので、ディメンションや Count と重ならないようにする
+            if (this.dimensions.contains(field) || field.equals(COUNT)
+                    || Arrays.asList(this.fields).indexOf(field) != Arrays.asList(this.fields).lastIndexOf(field)) {
+                throw new IllegalArgumentException("emfFields: " + fields);
+            }
+        }
+        if (MAX_METRICS < 1 + this.fields.length * STATISTICS.length) {
+            throw new IllegalArgumentException("emfFields: too many: " + fields);
+        }
+        this.maxSeries = maxSeries;
+    }
+
+    private static List<String> split(String csv) {
+        List<String> list = new ArrayList<>();
+        if (csv != null) {
+            for (String s : csv.split(",")) {
+                if (!s.trim().isEmpty()) {
+                    list.add(s.trim());
+                }
+            }
+        }
+        return list;
+    }
+
+    /**
+     * 系列のキー。series に入れたキーは変更しない。lookupKeys のキーだけ set() で書き換える。
+     */
+    private static final class SeriesKey {
+        String logger; // ディメンションでなければ null
+        String level;
+        String marker;
+        int hash;
+
+        SeriesKey() {
+        }
+
+        SeriesKey(String logger, String level, String marker) {
+            set(logger, level, marker);
+        }
+
+        SeriesKey set(String logger, String level, String marker) {
+            this.logger = logger;
+            this.level = level;
+            this.marker = marker;
+            this.hash = (Objects.hashCode(logger) * 31 + Objects.hashCode(level)) * 31 + Objects.hashCode(marker);
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof SeriesKey)) {
+                return false;
+            }
+            SeriesKey other = (SeriesKey) obj;
+            return hash == other.hash && Objects.equals(logger, other.logger) && Objects.equals(level, other.level)
+                    && Objects.equals(marker, other.marker);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Series {
+        final SeriesKey key;
+        final LongAdder count = new LongAdder();
+        final LongHistogram[] histograms; // fields と同じ順
+
+        Series(SeriesKey key, int fields) {
+            this.key = key;
+            this.histograms = new LongHistogram[fields];
+            for (int i = 0; i < fields; i++) {
+                histograms[i] = new LongHistogram();
+            }
+        }
+    }
+
+    void record(LogEvent event) {
+        Series s = seriesOf(event);
+        if (s == null) {
+            droppedEvents.increment();
+            return;
+        }
+        s.count.increment();
+        for (int i = 0; i < fields.length; i++) {
+            long value = valueOf(event, fields[i]);
+            if (value != NO_VALUE) {
+                s.histograms[i].record(value);
+            }
+        }
+    }
+
+    private Series seriesOf(LogEvent event) {
+        String logger = null;
+        if (byLogger) {
+            logger = event.getLoggerName() == null || event.getLoggerName().isEmpty() ? "root"
+                    : event.getLoggerName();
+        }
+        String level = byLevel ? event.getLevel().name() : null;
+        String marker = byMarker ? (event.getMarker() != null ? event.getMarker().getName() : NO_MARKER) : null;
+        Series s = series.get(lookupKeys.get().set(logger, level, marker));
+        if (s != null) {
+            return s;
+        }
+        if (maxSeries <= series.size()) {
+            return null; // flush() でまとめて出力する
+        }
+        return series.computeIfAbsent(new SeriesKey(logger, level, marker), k -> new Series(k, fields.length));
+    }
+
+    /**
+     * @return 数値でない、または無い場合は NO_VALUE
+     */
+    static long valueOf(LogEvent event, String field) {
+        Object value = event.getContextData().getValue(field);
+        if (value == null) {
+            Message message = event.getMessage();
+            if (message instanceof MapMessage) {
+                value = ((MapMessage<?, ?>) message).get(field);
+            }
+        }
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof Number) {
+            return Math.round(((Number) value).doubleValue());
+        }
+        if (value instanceof String) {
+            return parse((String) value);
+        }
+        return NO_VALUE;
+    }
+
+    private static long parse(String s) {
+        try {
+            return Long.parseLong(s.trim());
+        } catch (NumberFormatException e) {
+            try {
+                double d = Double.parseDouble(s.trim());
+                return Double.isFinite(d) ? Math.round(d) : NO_VALUE;
+            } catch (NumberFormatException e2) {
+                return NO_VALUE;
+            }
+        }
+    }
+
+    /**
+     * 前回の flush() からの集計を、系列ごとに1個の EMF ドキュメントにする。ログが無かった系列は出力せずに削除する。
+     * EMF ではディメンションの値をドキュメントのトップレベルに書くので、系列をまたいで1個にはできない。
+     * <p>
+     * 集計中の値は LongAdder.sumThenReset() で取り出すので、flush() 中に record() された値は次の flush() に入ることがある。
+     * flush() は同時に呼ばないこと。
+     * また、maxSeries を超えて数えなかったログがあれば、その数を System.err に出力する。(flush() の間隔ごとに1回)
+     *
+     * @param timeMillis EMF の Timestamp
+     */
+    List<String> flush(long timeMillis) {
+        List<String> documents = new ArrayList<>();
+        for (Series s : series.values()) {
+            long count = s.count.sumThenReset();
+            LongHistogram[] drained = new LongHistogram[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                drained[i] = s.histograms[i].drain();
+            }
+            if (count == 0) {
+                evict(s);
+                continue;
+            }
+            documents.add(toDocument(timeMillis, s.key, count, drained));
+        }
+        long dropped = droppedEvents.sum();
+        if (dropped != reportedDroppedEvents) {
+            System.err.printf("[ERROR] EmfMetricsAggregator: too many series: max=%d dropped=%d\n", maxSeries,
+                    dropped - reportedDroppedEvents);
+            reportedDroppedEvents = dropped;
+        }
+        return documents;
+    }
+
+    /**
+     * 削除する直前に seriesOf() で系列を取り出したスレッドが数えた分は、系列を戻して次の flush() で送る。
+     * 戻す前に同じキーの系列が作られていたら件数だけ移す。(その間の fields の値は数えない)
+     */
+    private void evict(Series s) {
+        if (!series.remove(s.key, s) || s.count.sum() == 0) {
+            return;
+        }
+        Series current = series.putIfAbsent(s.key, s);
+        if (current != null) {
+            current.count.add(s.count.sumThenReset());
+        }
+    }
+
+    private String toDocument(long timeMillis, SeriesKey key, long count, LongHistogram[] drained) {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("{\"_aws\":{\"Timestamp\":").append(timeMillis).append(",\"CloudWatchMetrics\":[{\"Namespace\":");
+        appendString(sb, namespace);
+        sb.append(",\"Dimensions\":[[");
+        for (int i = 0; i < dimensions.size(); i++) {
+            appendString(sb.append(i == 0 ? "" : ","), dimensions.get(i));
+        }
+        sb.append("]],\"Metrics\":[{\"Name\":\"").append(COUNT).append("\",\"Unit\":\"Count\"}");
+        for (int i = 0; i < fields.length; i++) {
+            if (drained[i].getCount() == 0) {
+                continue;
+            }
+            for (String statistic : STATISTICS) {
+                appendString(sb.append(",{\"Name\":"), fields[i] + statistic);
+                sb.append(statistic.equals("Count") ? ",\"Unit\":\"Count\"}" : "}");
+            }
+        }
+        sb.append("]}]}");
+        for (String dimension : dimensions) {
+            String value = dimension.equals(DIMENSION_LOGGER) ? key.logger
+                    : dimension.equals(DIMENSION_LEVEL) ? key.level : key.marker;
+            appendString(sb.append(','), dimension);
+            appendString(sb.append(':'), value);
+        }
+        sb.append(",\"").append(COUNT).append("\":").append(count);
+        for (int i = 0; i < fields.length; i++) {
+            LongHistogram h = drained[i];
+            if (h.getCount() == 0) {
+                continue;
+            }
+            long[] values = { h.getCount(), h.getSum(), h.getMax(), h.getPercentile(50), h.getPercentile(99) };
+            for (int j = 0; j < STATISTICS.length; j++) {
+                appendString(sb.append(','), fields[i] + STATISTICS[j]);
+                sb.append(':').append(values[j]);
+            }
+        }
+        return sb.append('}').toString();
+    }
+
+    /** JSON の文字列として書く。制御文字と " と \ をエスケープする */
+    static StringBuilder appendString(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"');
+    }
+
+    int size() {
+        return series.size();
+    }
+
+    long getDroppedEventCount() {
+        return droppedEvents.sum();
+    }
+}
@@ -0,0 +1,31 @@
+// SPDX-FileCopyrightText: 2025 shimiz98
+// SPDX-License-Identifier: MIT
+package io.github.shimiz98;
+
+/**
+ * ログの送信先(ロググループとログストリーム)
+ * <p>
+ * LogRouter がキャッシュするので、同じ送信先は同じインスタンスになる。equals() は実装しない。
+ */
+final class LogDestination {
+    final String logGroupName;
+    final String logStreamName;
+    final String key; // LogEventSpool に書く文字列。"ロググループ名\nログストリーム名"
+    // CreateLogStream 済み、または PutLogEvents が成功した。ResourceNotFoundException になったら false に戻す
+    volatile boolean known;
+
+    LogDestination(String logGroupName, String logStreamName) {
+        this.logGroupName = logGroupName;
+        this.logStreamName = logStreamName;
+        this.key = key(logGroupName, logStreamName);
+    }
+
+    static String key(String logGroupName, String logStreamName) {
+        return logGroupName + '\n' + logStreamName;
+    }
+
+    @Override
+    public String toString() {
+        return logGroupName + ":" + logStreamName;
+    }
+}
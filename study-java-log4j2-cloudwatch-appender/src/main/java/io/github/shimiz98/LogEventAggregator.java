@@ -0,0 +1,122 @@
+// SPDX-FileCopyrightText: 2025 shimiz98
+// SPDX-License-Identifier: MIT
+package io.github.shimiz98;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import software.amazon.awssdk.services.cloudwatchlogs.model.InputLogEvent;
+
+/**
+ * 1回の PutLogEvents で送るログのうち、繰り返しのログをまとめる。
+ * <ul>
+ *   <li>メッセージが同じログは、windowMillis 以内なら最初の1個に「[repeated N times in Xms]」を付けて、残りは送らない。
+ *   <li>スタックトレースが同じログは、windowMillis 以内の最初の1個だけスタックトレースを全部送り、
+ *       2個目以降はスタックトレースを「[stack trace (fingerprint) omitted]」に置き換える。
+ *       fingerprint はバッチをまたいで覚えておくので、エラーが多発しても最初の1個でスタックトレースを確認できる。
+ *   <li>まとめたログのメッセージが maxMessageBytes を超える場合はまとめない。
+ * </ul>
+ * 1個の SenderLane(ログ転送スレッド)だけから呼ぶので、同期はしない。SenderLane ごとに作ること。
+ */
+class LogEventAggregator {
+    static final String STACK_TRACE_START = "\n\tat ";
+    private static final int MAX_FINGERPRINTS = 1024;
+    private static final int MAX_SUFFIX_BYTES = 64; // 「 [repeated N times in Xms]」の最大の長さ
+
+    private final long windowMillis;
+    private final int maxMessageBytes;
+    private final Map<String, Long> stackTraceFirstMillis = new HashMap<>(); // fingerprint と、全部を送った時刻
+
+    /**
+     * @param windowMillis    この時間の中で繰り返したログをまとめる
+     * @param maxMessageBytes 1個のログのメッセージの上限
+     */
+    LogEventAggregator(long windowMillis, int maxMessageBytes) {
+        this.windowMillis = windowMillis;
+        this.maxMessageBytes = maxMessageBytes;
+    }
+
+    private static class Repeat {
+        final int index; // 結果の List の位置
+        final long firstMillis;
+        long lastMillis;
+        int count = 1;
+        boolean tooLong; // 「[repeated ...]」を付けると上限を超えるので、まとめない
+
+        Repeat(int index, long firstMillis) {
+            this.index = index;
+            this.firstMillis = firstMillis;
+            this.lastMillis = firstMillis;
+        }
+    }
+
+    /**
+     * @param events 到着順のログ
+     * @return まとめた後のログ。順序は最初の1個の位置のまま
+     */
+    List<InputLogEvent> aggregate(List<InputLogEvent> events) {
+        if (MAX_FINGERPRINTS < stackTraceFirstMillis.size()) {
+            stackTraceFirstMillis.clear();
+        }
+        Map<String, Repeat> repeats = new HashMap<>();
+        List<Repeat> repeated = new ArrayList<>();
+        List<InputLogEvent> out = new ArrayList<>(events.size());
+        for (InputLogEvent event : events) {
+            String message = event.message();
+            long timeMillis = event.timestamp();
+            Repeat repeat = repeats.get(message);
+            if (repeat != null && !repeat.tooLong && timeMillis - repeat.firstMillis < windowMillis) {
+                if (repeat.count == 1) {
+                    repeat.tooLong = maxMessageBytes < Utf8.encodedLength(out.get(repeat.index).message())
+                            + MAX_SUFFIX_BYTES;
+                    if (repeat.tooLong) {
+                        out.add(omitStackTrace(event));
+                        continue;
+                    }
+                    repeated.add(repeat);
+                }
+                repeat.count++;
+                repeat.lastMillis = Math.max(repeat.lastMillis, timeMillis);
+                continue;
+            }
+            repeats.put(message, new Repeat(out.size(), timeMillis));
+            out.add(omitStackTrace(event));
+        }
+        for (Repeat repeat : repeated) {
+            InputLogEvent first = out.get(repeat.index);
+            out.set(repeat.index, first.toBuilder().message(first.message() + " [repeated " + repeat.count
+                    + " times in " + (repeat.lastMillis - repeat.firstMillis) + "ms]").build());
+        }
+        return out;
+    }
+
+    private InputLogEvent omitStackTrace(InputLogEvent event) {
+        String message = event.message();
+        int start = message.indexOf(STACK_TRACE_START);
+        if (start < 0) {
+            return event;
+        }
+        String fingerprint = fingerprint(message, start);
+        Long firstMillis = stackTraceFirstMillis.get(fingerprint);
+        if (firstMillis == null || windowMillis <= event.timestamp() - firstMillis) {
+            stackTraceFirstMillis.put(fingerprint, event.timestamp()); // 最初の1個は全部送る
+            return event;
+        }
+        return event.toBuilder()
+                .message(message.substring(0, start) + "\n\t[stack trace " + fingerprint + " omitted]").build();
+    }
+
+    /**
+     * スタックトレース(最初の "\n\tat " から最後まで)の 64bit FNV-1a ハッシュ
+     */
+    static String fingerprint(String message, int start) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = start; i < message.length(); i++) {
+            hash ^= message.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return String.format("%016x", hash);
+    }
+}
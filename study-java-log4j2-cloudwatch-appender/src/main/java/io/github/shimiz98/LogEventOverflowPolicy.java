@@ -0,0 +1,167 @@
+// SPDX-FileCopyrightText: 2025 shimiz98
+// SPDX-License-Identifier: MIT
+package io.github.shimiz98;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+
+/**
+ * logEventQueue が満杯のときに append() がどうするか
+ * <ul>
+ *   <li>"DropNewest" : 待たずに、そのログを捨てる。(従来の動作)
+ *   <li>"Block" : 最大 blockTimeoutMillis だけ空きを待ち、それでも満杯ならそのログを捨てる。
+ *   <li>"DropOldest" : キューの先頭(最も古い)ログを捨てて、そのログを入れる。queueType="ArrayBlockingQueue" だけで使える。
+ *   <li>"DropBelowLevel" : minLevel より重要度が低いログは捨て、minLevel 以上(例: WARN, ERROR)は "Block" と同じく待つ。
+ *   <li>"Sample" : samplePercent % のログだけ "Block" と同じく待ち、残りは捨てる。
+ * </ul>
+ * 待つのは ReentrantLock の Condition(ArrayBlockingQueue) または LockSupport.parkNanos()(RingBuffer) なので、
+ * ログ出力するスレッドが仮想スレッドでも carrier thread を pin しない。synchronized の中では待たないこと。
+ * <p>
+ * カウンタは複数のスレッドから同時に加算されるため LongAdder を使う。
+ */
+class LogEventOverflowPolicy {
+    static final String DROP_NEWEST = "DropNewest";
+    static final String BLOCK = "Block";
+    static final String DROP_OLDEST = "DropOldest";
+    static final String DROP_BELOW_LEVEL = "DropBelowLevel";
+    static final String SAMPLE = "Sample";
+    // DropOldest で捨てた直後の空きを、他のスレッドに取られたときに繰り返す回数
+    private static final int DROP_OLDEST_MAX_TRIES = 3;
+
+    private final String type;
+    private final long blockTimeoutNanos;
+    private final Level minLevel;
+    private final int samplePercent;
+
+    private final LongAdder overflowCount = new LongAdder(); // キューが満杯だった回数
+    private final LongAdder blockedCount = new LongAdder(); // 待って入れられた数
+    private final LongAdder droppedNewestCount = new LongAdder(); // 満杯または待ちのタイムアウトで捨てたログの数
+    private final LongAdder droppedOldestCount = new LongAdder(); // DropOldest でキューから捨てたログの数
+    private final LongAdder droppedBelowLevelCount = new LongAdder();
+    private final LongAdder sampledOutCount = new LongAdder();
+
+    /**
+     * @param blockTimeoutMillis "Block", "DropBelowLevel", "Sample" で待つ時間の上限
+     * @param minLevel           "DropBelowLevel" で捨てないレベル
+     * @param samplePercent      "Sample" で捨てない割合(0〜100)
+     */
+    LogEventOverflowPolicy(String type, long blockTimeoutMillis, Level minLevel, int samplePercent) {
+        switch (type) {
+        case DROP_NEWEST:
+        case BLOCK:
+        case DROP_OLDEST:
+        case DROP_BELOW_LEVEL:
+        case SAMPLE:
+            break;
+        default:
+            throw new IllegalArgumentException("overflowPolicy: " + type);
+        }
+        if (blockTimeoutMillis < 0) {
+            throw new IllegalArgumentException("blockTimeoutMillis: " + blockTimeoutMillis);
+        }
+        if (samplePercent < 0 || 100 < samplePercent) {
+            throw new IllegalArgumentException("samplePercent: " + samplePercent);
+        }
+        this.type = type;
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+        this.minLevel = minLevel != null ? minLevel : Level.WARN;
+        this.samplePercent = samplePercent;
+    }
+
+    /**
+     * queue.offer(event) が満杯で失敗した後に呼ぶ。
+     *
+     * @return 最終的にキューに入れた場合は true、捨てた場合は false
+     */
+    boolean overflow(LogEvent event, LogEventQueue queue) {
+        overflowCount.increment();
+        switch (type) {
+        case BLOCK:
+            return block(event, queue);
+        case DROP_OLDEST:
+            for (int i = 0; i < DROP_OLDEST_MAX_TRIES; i++) {
+                if (queue.discardOldest()) {
+                    droppedOldestCount.increment();
+                }
+                if (queue.offer(event)) {
+                    return true;
+                }
+            }
+            droppedNewestCount.increment();
+            return false;
+        case DROP_BELOW_LEVEL:
+            Level level = event.getLevel();
+            if (level != null && !level.isMoreSpecificThan(minLevel)) {
+                droppedBelowLevelCount.increment();
+                return false;
+            }
+            return block(event, queue);
+        case SAMPLE:
+            if (samplePercent <= ThreadLocalRandom.current().nextInt(100)) {
+                sampledOutCount.increment();
+                return false;
+            }
+            return block(event, queue);
+        default: // DROP_NEWEST
+            droppedNewestCount.increment();
+            return false;
+        }
+    }
+
+    private boolean block(LogEvent event, LogEventQueue queue) {
+        try {
+            if (queue.offer(event, blockTimeoutNanos, TimeUnit.NANOSECONDS)) {
+                blockedCount.increment();
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // ログ出力したスレッドの割り込みは消さない
+        }
+        droppedNewestCount.increment();
+        return false;
+    }
+
+    String getType() {
+        return type;
+    }
+
+    long getOverflowCount() {
+        return overflowCount.sum();
+    }
+
+    long getBlockedCount() {
+        return blockedCount.sum();
+    }
+
+    long getDroppedNewestCount() {
+        return droppedNewestCount.sum();
+    }
+
+    long getDroppedOldestCount() {
+        return droppedOldestCount.sum();
+    }
+
+    long getDroppedBelowLevelCount() {
+        return droppedBelowLevelCount.sum();
+    }
+
+    long getSampledOutCount() {
+        return sampledOutCount.sum();
+    }
+
+    /** 捨てたログの合計 */
+    long getDroppedCount() {
+        return getDroppedNewestCount() + getDroppedOldestCount() + getDroppedBelowLevelCount() + getSampledOutCount();
+    }
+
+    @Override
+    public String toString() {
+        return "overflowPolicy=" + type + " overflow=" + getOverflowCount() + " blocked=" + getBlockedCount()
+                + " droppedNewest=" + getDroppedNewestCount() + " droppedOldest=" + getDroppedOldestCount()
+                + " droppedBelowLevel=" + getDroppedBelowLevelCount() + " sampledOut=" + getSampledOutCount();
+    }
+}
@@ -0,0 +1,82 @@
+// SPDX-FileCopyrightText: 2025 shimiz98
+// SPDX-License-Identifier: MIT
+package io.github.shimiz98;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+
+/**
+ * append() とログ転送スレッドの間でログを受け渡すキュー
+ * <ul>
+ *   <li>offer() は複数のスレッド(ログ出力するスレッド)から同時に呼ばれる。LogEvent の内容は offer() の中で
+ *       LogEventSnapshot にコピーするので、offer() から戻った後に LogEvent が再利用されても問題ない。
+ *   <li>poll() はログ転送スレッド1個だけから呼ばれる。
+ * </ul>
+ */
+interface LogEventQueue {
+    String TYPE_ARRAY_BLOCKING_QUEUE = "ArrayBlockingQueue";
+    String TYPE_RING_BUFFER = "RingBuffer";
+
+    /** キューが満杯なら待たずに false を返す。 */
+    boolean offer(LogEvent event);
+
+    /** キューが満杯なら最大 timeout だけ待ち、それでも満杯なら false を返す。 */
+    boolean offer(LogEvent event, long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * 他のキューから取り出したログをコピーして追加する。(送信先ごとのキューに振り分けるとき)
+     * キューが満杯なら最大 timeout だけ待ち、それでも満杯なら false を返す。
+     */
+    boolean offer(LogEventSnapshot snapshot, long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * キューが空なら最大 timeout だけ待ち、それでも空なら null を返す。
+     * <p>
+     * 戻り値は次に poll() を呼ぶまでの間だけ有効。(リングバッファではスロットを使い回すため)
+     */
+    LogEventSnapshot poll(long timeout, TimeUnit unit) throws InterruptedException;
+
+    int size();
+
+    /**
+     * ログ出力するスレッドから、先頭(最も古い)のログを1個捨てる。(overflowPolicy="DropOldest")
+     *
+     * @return 捨てた場合は true
+     * @throws UnsupportedOperationException poll() をログ転送スレッド以外から呼べないキューの場合
+     */
+    boolean discardOldest();
+
+    /**
+     * @param layout offer() で LogEvent を UTF-8 のバイト列に変換する Layout
+     */
+    static LogEventQueue newInstance(String queueType, int capacity, Layout<?> layout) {
+        return newInstance(queueType, capacity, layout, LogEventSnapshot.DEFAULT_INITIAL_BUFFER_BYTES,
+                LogEventSnapshot.DEFAULT_MAX_BUFFER_BYTES);
+    }
+
+    /**
+     * @param initialBufferBytes LogEventSnapshot の ByteBuffer の初期サイズ
+     * @param maxBufferBytes     LogEventSnapshot の ByteBuffer を使い回す上限のサイズ
+     */
+    static LogEventQueue newInstance(String queueType, int capacity, Layout<?> layout, int initialBufferBytes,
+            int maxBufferBytes) {
+        return newInstance(queueType, capacity, layout, initialBufferBytes, maxBufferBytes, null);
+    }
+
+    /**
+     * @param router offer() で送信先を決める LogRouter。null なら振り分けない
+     */
+    static LogEventQueue newInstance(String queueType, int capacity, Layout<?> layout, int initialBufferBytes,
+            int maxBufferBytes, LogRouter router) {
+        switch (queueType) {
+        case TYPE_ARRAY_BLOCKING_QUEUE:
+            return new ArrayBlockingLogEventQueue(capacity, layout, initialBufferBytes, maxBufferBytes, router);
+        case TYPE_RING_BUFFER:
+            return new RingBufferLogEventQueue(capacity, layout, initialBufferBytes, maxBufferBytes, router);
+        default:
+            throw new IllegalArgumentException("queueType: " + queueType);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+// SPDX-FileCopyrightText: 2025 shimiz98
+// SPDX-License-Identifier: MIT
+package io.github.shimiz98;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+import org.apache.logging.log4j.core.layout.ByteBufferDestinationHelper;
+import org.apache.logging.log4j.core.util.Constants;
+
+/**
+ * append() の時点でコピーしたログの内容
+ * <ul>
+ *   <li>garbage-free や非同期ロガーの LogEvent は再利用されて中身が変わるため、LogEvent の参照をキューに入れてはいけない。
+ *   <li>メッセージは Layout.encode() で UTF-8 のバイト列として直接 ByteBuffer に書き込む。
+ *       PatternLayout や JsonTemplateLayout はこの経路で中間の String を作らない。
+ *   <li>ByteBuffer は足りなければ拡張する。リングバッファではスロットごとに1個を生成時に確保し、使い回す。
+ *   <li>LogRouter を指定した場合は、送信先も append() の時点で決める。(ロガー名や MDC は後から参照できないため)
+ * </ul>
+ */
+class LogEventSnapshot implements ByteBufferDestination {
+    static final int DEFAULT_INITIAL_BUFFER_BYTES = Constants.INITIAL_REUSABLE_MESSAGE_SIZE;
+    // Constants.MAX_REUSABLE_MESSAGE_SIZE (518) は StringBuilder の文字数で、UTF-8 のバイト数には小さすぎる。
+    // それを超える長さのログが続くと、clear() のたびに捨てて2倍ずつ拡張し直すことになる
+    static final int DEFAULT_MAX_BUFFER_BYTES = 16 * 1024;
+
+    private final Layout<?> layout;
+    private final int initialBufferBytes;
+    private final int maxBufferBytes;
+    private final LogRouter router; // 振り分けない場合は null
+    private long timeMillis;
+    private LogDestination destination; // 振り分けない場合は null
+    private LogEventSpool.Record spoolRecord; // LogEventSpool から読んだログでなければ null
+    private ByteBuffer message;
+    private boolean stopSenderThread;
+    private boolean discarded; // set() の途中で例外が発生した。(リングバッファの読み飛ばすスロット)
+
+    LogEventSnapshot(Layout<?> layout) {
+        this(layout, DEFAULT_INITIAL_BUFFER_BYTES, DEFAULT_MAX_BUFFER_BYTES);
+    }
+
+    /**
+     * @param initialBufferBytes ByteBuffer の初期サイズ
+     * @param maxBufferBytes     これより大きくなった ByteBuffer は clear() で初期サイズに戻す
+     */
+    LogEventSnapshot(Layout<?> layout, int initialBufferBytes, int maxBufferBytes) {
+        this(layout, initialBufferBytes, maxBufferBytes, null);
+    }
+
+    /**
+     * @param router 送信先を決める。null なら振り分けない
+     */
+    LogEventSnapshot(Layout<?> layout, int initialBufferBytes, int maxBufferBytes, LogRouter router) {
+        this.layout = layout;
+        this.router = router;
+        this.initialBufferBytes = initialBufferBytes;
+        this.maxBufferBytes = maxBufferBytes;
+        this.message = ByteBuffer.allocate(initialBufferBytes);
+    }
+
+    void set(LogEvent event) {
+        clear();
+        if (event == CloudWatchAppender.STOP_SENDER_THREAD_LOG_EVENT) {
+            stopSenderThread = true;
+            return;
+        }
+        timeMillis = event.getTimeMillis();
+        if (router != null) {
+            destination = router.route(event);
+        }
+        layout.encode(event, this);
+    }
+
+    /**
+     * 他の LogEventSnapshot の内容をコピーする。(送信先ごとのキューに移すとき)
+     */
+    void set(LogEventSnapshot other) {
+        clear();
+        stopSenderThread = other.stopSenderThread;
+        timeMillis = other.timeMillis;
+        destination = other.destination;
+        spoolRecord = other.spoolRecord;
+        writeBytes(other.message.array(), 0, other.message.position());
+    }
+
+    /**
+     * Layout で変換済みのメッセージを設定する。(LogEventSpool から読んだログ)
+     *
+     * @param encoded position から limit までをコピーする
+     */
+    void setEncoded(long timeMillis, ByteBuffer encoded) {
+        clear();
+        this.timeMillis = timeMillis;
+        writeBytes(encoded);
+    }
+
+    void clear() {
+        timeMillis = 0;
+        destination = null;
+        spoolRecord = null;
+        // 前回の長いメッセージで大きくなった ByteBuffer を、いつまでも保持しないようにする
+        if (maxBufferBytes < message.capacity()) {
+            message = ByteBuffer.allocate(initialBufferBytes);
+        }
+        // Java 9 以降の ByteBuffer.clear() (戻り値が ByteBuffer) を呼ぶと、Java 8 では NoSuchMethodError になる
+        ((Buffer) message).clear();
+        stopSenderThread = false;
+        discarded = false;
+    }
+
+    /** 内容を捨てて、読み飛ばすスロットにする */
+    void discard() {
+        clear();
+        discarded = true;
+    }
+
+    boolean isDiscarded() {
+        return discarded;
+    }
+
+    long getTimeMillis() {
+        return timeMillis;
+    }
+
+    /** メッセージの UTF-8 のバイト数 */
+    int getMessageLength() {
+        return message.position();
+    }
+
+    /** メッセージの UTF-8 のバイト列。配列の先頭から getMessageLength() バイトが有効。 */
+    byte[] getMessageBytes() {
+        return message.array();
+    }
+
+    String getMessageString() {
+        return new String(message.array(), 0, message.position(), StandardCharsets.UTF_8);
+    }
+
+    LogDestination getDestination() {
+        return destination;
+    }
+
+    void setDestination(LogDestination destination) {
+        this.destination = destination;
+    }
+
+    LogEventSpool.Record getSpoolRecord() {
+        return spoolRecord;
+    }
+
+    void setSpoolRecord(LogEventSpool.Record spoolRecord) {
+        this.spoolRecord = spoolRecord;
+    }
+
+    boolean isStopSenderThread() {
+        return stopSenderThread;
+    }
+
+    // ===== ByteBufferDestination の実装 =====
+    @Override
+    public ByteBuffer getByteBuffer() {
+        return message;
+    }
+
+    @Override
+    public ByteBuffer drain(ByteBuffer buf) {
+        // 書き出し先が無いので、捨てずに2倍に拡張する
+        ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(buf.capacity() * 2, 1));
+        ((Buffer) buf).flip();
+        newBuffer.put(buf);
+        message = newBuffer;
+        return newBuffer;
+    }
+
+    @Override
+    public void writeBytes(ByteBuffer data) {
+        ByteBufferDestinationHelper.writeToUnsynchronized(data, this);
+    }
+
+    @Override
+    public void writeBytes(byte[] data, int offset, int length) {
+        ByteBufferDestinationHelper.writeToUnsynchronized(data, offset, length, this);
+    }
+
+    @Override
+    public String toString() {
+        return stopSenderThread ? "STOP_SENDER_THREAD" : timeMillis + " " + getMessageString();
+    }
+}
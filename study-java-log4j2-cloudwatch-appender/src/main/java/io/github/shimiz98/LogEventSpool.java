@@ -0,0 +1,478 @@
+// SPDX-FileCopyrightText: 2025 shimiz98
+// SPDX-License-Identifier: MIT
+package io.github.shimiz98;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+
+/**
+ * メモリのキューがあふれたログを退避するディスクのスプール
+ * <ul>
+ *   <li>固定サイズのセグメントファイルをメモリマップし、追記だけを行う。セグメントが一杯になったら次のセグメントを作る。
+ *   <li>ログ転送スレッドは古いセグメントから順に読む。read() したレコードは Record で表し、
+ *       そのレコード(分割したログならすべての部分)を含むバッチの送信が成功したら acknowledge() する。
+ *   <li>先頭から続けて acknowledge() 済みのレコードまでを送信済みとして、セグメントの先頭に読み込み位置を書き、
+ *       読み終えたセグメントを削除する。次の start() ではその続きから再送する。
+ *       送信が成功する前に JVM が終了した分は、もう一度送る。(at-least-once)
+ *   <li>送信に失敗したら(リトライしても失敗したら)、次の read() で送信済みの位置まで戻って読み直す。
+ *       CloudWatch Logs の障害中は、spool のログを捨てずに送り直し続ける。その間に送れたバッチも、もう一度送ることがある。
+ *   <li>ログ出力するスレッドとログ転送スレッドの間はロックで排他する。キューがあふれたときだけ使うので、ホットパスではない。
+ *       ロックは ReentrantLock なので、仮想スレッドでも carrier thread を pin しない。
+ * </ul>
+ * ファイルの形式:
+ * <pre>
+ * ヘッダ   : 読み込み位置(long) 形式のバージョン(long)
+ * レコード : メッセージのバイト数(int) タイムスタンプ(long) 送信先のバイト数(short) 送信先(UTF-8) メッセージ(UTF-8)
+ *            ... バイト数が0ならデータの終わり
+ * </pre>
+ * 送信先(LogDestination.key)は LogRouter で振り分ける場合だけ書く。バージョン0(送信先が無い形式)のファイルも読める。
+ */
+class LogEventSpool implements Closeable {
+    static final String FILE_PREFIX = "cloudwatch-spool-";
+    static final String FILE_SUFFIX = ".dat";
+    private static final int HEADER_BYTES = 16;
+    static final long FORMAT_VERSION = 1;
+    private static final byte[] EMPTY_KEY = new byte[0];
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final LogEventSnapshot writeSnapshot; // append() の LogEvent を Layout で変換するための作業領域
+    private final LogRouter router; // 振り分けない場合は null
+    private final ReentrantLock lock = new ReentrantLock();
+    private final List<Segment> segments = new ArrayList<>(); // 古い順。書き込み中のセグメントは最後
+    private int readSegmentIndex;
+    private final Deque<Record> unacknowledged = new ArrayDeque<>(); // read() した順
+    private long epoch; // rewind() で読み直すたびに増やす。前の epoch の Record は acknowledge() しても無視する
+    private volatile boolean rewindRequested; // 送信に失敗した。次の read() で rewind() する
+    private long nextSegmentNumber;
+    private volatile long pendingCount; // まだ読んでいないレコード数
+    private volatile boolean closed;
+
+    /**
+     * ディレクトリに残っているセグメントがあれば、commit() 済みの位置から読めるようにする。
+     */
+    LogEventSpool(Path directory, int segmentBytes, int maxSegments, Layout<?> layout) throws IOException {
+        this(directory, segmentBytes, maxSegments, layout, null);
+    }
+
+    /**
+     * @param router 送信先を決める。null なら振り分けない
+     */
+    LogEventSpool(Path directory, int segmentBytes, int maxSegments, Layout<?> layout, LogRouter router)
+            throws IOException {
+        if (segmentBytes <= HEADER_BYTES + recordHeaderBytes(FORMAT_VERSION) || maxSegments < 1) {
+            throw new IllegalArgumentException("segmentBytes=" + segmentBytes + " maxSegments=" + maxSegments);
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+        this.router = router;
+        this.writeSnapshot = new LogEventSnapshot(layout, LogEventSnapshot.DEFAULT_INITIAL_BUFFER_BYTES,
+                LogEventSnapshot.DEFAULT_MAX_BUFFER_BYTES, router);
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    private void recover() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(directory, FILE_PREFIX + "*" + FILE_SUFFIX)) {
+            ds.forEach(paths::add);
+        }
+        Collections.sort(paths, Comparator.comparingLong(LogEventSpool::segmentNumber));
+        for (Path path : paths) {
+            Segment segment = Segment.open(path, segmentNumber(path));
+            segments.add(segment);
+            pendingCount += segment.countRecords();
+            nextSegmentNumber = segment.number + 1;
+        }
+    }
+
+    static int recordHeaderBytes(long version) {
+        return version < 1 ? 4 + 8 : 4 + 8 + 2;
+    }
+
+    static long segmentNumber(Path path) {
+        String fileName = path.getFileName().toString();
+        return Long.parseLong(fileName.substring(FILE_PREFIX.length(), fileName.length() - FILE_SUFFIX.length()));
+    }
+
+    boolean hasPending() {
+        return !closed && (0 < pendingCount || rewindRequested);
+    }
+
+    long getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * LogEvent を Layout で変換して追記する。
+     *
+     * @return スプールが一杯、1個のセグメントに入らない大きさ、または close() 済みなら false
+     */
+    boolean write(LogEvent event) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            writeSnapshot.set(event);
+            return append(writeSnapshot);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Layout で変換済みのログを追記する。(stop() の期限までに送れずに、キューに残ったログ)
+     *
+     * @return スプールが一杯、1個のセグメントに入らない大きさ、または close() 済みなら false
+     */
+    boolean write(LogEventSnapshot snapshot) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            return append(snapshot);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** lock の中で呼ぶ */
+    private boolean append(LogEventSnapshot snapshot) {
+        try {
+            int length = snapshot.getMessageLength();
+            LogDestination destination = snapshot.getDestination();
+            byte[] key = destination != null ? destination.key.getBytes(StandardCharsets.UTF_8) : EMPTY_KEY;
+            int recordHeaderBytes = recordHeaderBytes(FORMAT_VERSION) + key.length;
+            int recordBytes = recordHeaderBytes + length;
+            if (segmentBytes - HEADER_BYTES < recordBytes) {
+                return false;
+            }
+            Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (segment == null || !segment.writable || segment.buffer.capacity() < segment.writeOffset + recordBytes) {
+                if (segment != null && segment.writable) {
+                    segment.buffer.force();
+                    segment.writable = false;
+                }
+                if (maxSegments <= segments.size()) {
+                    return false;
+                }
+                segment = Segment.create(directory.resolve(FILE_PREFIX + nextSegmentNumber + FILE_SUFFIX),
+                        nextSegmentNumber, segmentBytes);
+                nextSegmentNumber++;
+                segments.add(segment);
+            }
+            MappedByteBuffer buffer = segment.buffer;
+            int offset = segment.writeOffset;
+            ((Buffer) buffer).position(offset + recordHeaderBytes(FORMAT_VERSION)); // Java 8 の Buffer のメソッドを呼ぶ
+            buffer.put(key);
+            buffer.put(snapshot.getMessageBytes(), 0, length);
+            buffer.putLong(offset + 4, snapshot.getTimeMillis());
+            buffer.putShort(offset + 12, (short) key.length);
+            buffer.putInt(offset, length); // 途中で JVM が終了しても中途半端なレコードを読まないよう、バイト数は最後に書く
+            segment.writeOffset = offset + recordBytes;
+            pendingCount++;
+            return true;
+        } catch (IOException e) {
+            System.err.printf("[ERROR] LogEventSpool.write: %s: %s\n", directory, e);
+            return false;
+        }
+    }
+
+    /**
+     * 次のレコードを target にコピーし、target.getSpoolRecord() にそのレコードを設定する。
+     * 読み込み位置は acknowledge() するまでファイルに書かない。送信に失敗したバッチがあれば、先に送信済みの位置まで戻る。
+     *
+     * @return レコードが無い、または close() 済みなら false
+     */
+    boolean read(LogEventSnapshot target) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            if (rewindRequested) {
+                rewind();
+            }
+            while (readSegmentIndex < segments.size()) {
+                Segment segment = segments.get(readSegmentIndex);
+                if (segment.readOffset < segment.writeOffset) {
+                    MappedByteBuffer buffer = segment.buffer;
+                    int offset = segment.readOffset;
+                    int length = buffer.getInt(offset);
+                    long timeMillis = buffer.getLong(offset + 4);
+                    int keyLength = segment.keyLength(offset);
+                    int messageOffset = offset + recordHeaderBytes(segment.version) + keyLength;
+                    ((Buffer) buffer).limit(messageOffset + length).position(messageOffset);
+                    target.setEncoded(timeMillis, buffer);
+                    ((Buffer) buffer).limit(buffer.capacity());
+                    if (0 < keyLength && router != null) {
+                        byte[] key = new byte[keyLength];
+                        ((Buffer) buffer).position(messageOffset - keyLength);
+                        buffer.get(key);
+                        target.setDestination(router.destinationOf(new String(key, StandardCharsets.UTF_8)));
+                    }
+                    segment.readOffset = messageOffset + length;
+                    pendingCount--;
+                    Record record = new Record(segment.number, segment.readOffset, epoch);
+                    unacknowledged.addLast(record);
+                    target.setSpoolRecord(record);
+                    return true;
+                }
+                if (segment.writable) {
+                    return false; // 書き込み中のセグメントに追いついた
+                }
+                readSegmentIndex++;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 送信済みの位置(先頭のセグメントのヘッダ)まで戻って読み直す。送信中のレコードは、成功しても acknowledge() しない。
+     */
+    private void rewind() {
+        rewindRequested = false;
+        epoch++;
+        unacknowledged.clear();
+        long pending = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            segment.readOffset = i == 0 ? segment.committedOffset() : HEADER_BYTES;
+            pending += segment.countRecords();
+        }
+        readSegmentIndex = 0;
+        pendingCount = pending;
+        System.err.printf("[WARN] LogEventSpool: replay unsent records: pending=%d: %s\n", pending, directory);
+    }
+
+    /**
+     * records を含むバッチを送る前に呼ぶ。
+     *
+     * @param lastRecordContinues records の最後のレコードは分割したログで、残りの部分を次のバッチで送る
+     */
+    void sending(List<Record> records, boolean lastRecordContinues) {
+        lock.lock();
+        try {
+            for (int i = 0; i < records.size(); i++) {
+                Record record = records.get(i);
+                if (record.epoch != epoch) {
+                    continue;
+                }
+                record.pendingBatches++;
+                record.queued = record.queued || i < records.size() - 1 || !lastRecordContinues;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * sending() したバッチの送信が終わったときに呼ぶ。失敗したら、次の read() で送信済みの位置まで戻る。
+     */
+    void acknowledge(List<Record> records, boolean sent) {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            for (Record record : records) {
+                if (record.epoch != epoch) {
+                    continue;
+                }
+                if (!sent) {
+                    rewindRequested = true;
+                    return;
+                }
+                record.pendingBatches--;
+            }
+            commit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 送らずに捨てたレコードを、送信済みとして扱う。(LogRouter で振り分けられなかったログ)
+     */
+    void skip(Record record) {
+        lock.lock();
+        try {
+            if (closed || record.epoch != epoch) {
+                return;
+            }
+            record.queued = true;
+            commit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 先頭から続けて送信済みのレコードまでをファイルに記録し、読み終えたセグメントを削除する。
+     */
+    private void commit() {
+        Record last = null;
+        while (!unacknowledged.isEmpty() && unacknowledged.peekFirst().isAcknowledged()) {
+            last = unacknowledged.removeFirst();
+        }
+        if (last == null) {
+            return;
+        }
+        while (segments.get(0).number < last.segmentNumber) {
+            Segment segment = segments.remove(0);
+            readSegmentIndex--;
+            segment.delete(); // 読み終えて、もう書き込まないセグメント
+        }
+        segments.get(0).buffer.putLong(0, last.endOffset);
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (Segment segment : segments) {
+                segment.buffer.force();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * read() したレコード。フィールドは lock の中でだけ読み書きする。
+     */
+    static final class Record {
+        final long segmentNumber;
+        final int endOffset; // このレコードの次の位置
+        final long epoch;
+        int pendingBatches; // このレコードを含む、送信中のバッチの数
+        boolean queued; // すべての部分をバッチに入れた
+
+        Record(long segmentNumber, int endOffset, long epoch) {
+            this.segmentNumber = segmentNumber;
+            this.endOffset = endOffset;
+            this.epoch = epoch;
+        }
+
+        boolean isAcknowledged() {
+            return queued && pendingBatches == 0;
+        }
+    }
+
+    static class Segment {
+        final Path path;
+        final long number;
+        final MappedByteBuffer buffer;
+        long version;
+        int readOffset;
+        int writeOffset;
+        boolean writable;
+
+        private Segment(Path path, long number, MappedByteBuffer buffer) {
+            this.path = path;
+            this.number = number;
+            this.buffer = buffer;
+        }
+
+        static Segment create(Path path, long number, int segmentBytes) throws IOException {
+            Segment segment = new Segment(path, number, map(path, segmentBytes, true));
+            segment.readOffset = HEADER_BYTES;
+            segment.writeOffset = HEADER_BYTES;
+            segment.writable = true;
+            segment.version = FORMAT_VERSION;
+            segment.buffer.putLong(0, HEADER_BYTES);
+            segment.buffer.putLong(8, FORMAT_VERSION);
+            return segment;
+        }
+
+        /** 前回の JVM で書いたセグメントを開く。続きには書き込まない。 */
+        static Segment open(Path path, long number) throws IOException {
+            Segment segment = new Segment(path, number, map(path, Files.size(path), false));
+            MappedByteBuffer buffer = segment.buffer;
+            segment.version = buffer.getLong(8);
+            segment.readOffset = segment.committedOffset();
+            int recordHeaderBytes = recordHeaderBytes(segment.version);
+            int offset = HEADER_BYTES;
+            while (offset + recordHeaderBytes <= buffer.capacity()) {
+                int length = buffer.getInt(offset);
+                if (length <= 0) {
+                    break;
+                }
+                int recordBytes = recordHeaderBytes + segment.keyLength(offset) + length;
+                if (buffer.capacity() < offset + recordBytes) {
+                    break;
+                }
+                offset += recordBytes;
+            }
+            segment.writeOffset = offset;
+            segment.writable = false;
+            return segment;
+        }
+
+        private static MappedByteBuffer map(Path path, long size, boolean create) throws IOException {
+            try (FileChannel channel = create
+                    ? FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                            StandardOpenOption.WRITE)
+                    : FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // channel を閉じてもマップは有効
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+
+        /** ヘッダに書いた、送信済みの読み込み位置 */
+        int committedOffset() {
+            return (int) Math.max(HEADER_BYTES, Math.min(buffer.getLong(0), buffer.capacity()));
+        }
+
+        long countRecords() {
+            long count = 0;
+            int offset = readOffset;
+            while (offset < writeOffset) {
+                offset += recordHeaderBytes(version) + keyLength(offset) + buffer.getInt(offset);
+                count++;
+            }
+            return count;
+        }
+
+        int keyLength(int offset) {
+            return version < 1 ? 0 : buffer.getShort(offset + 12) & 0xffff;
+        }
+
+        void delete() {
+            try {
+                // Windows ではマップ中のファイルを削除できない。その場合は次の start() で読み終えたセグメントとして削除される。
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                System.err.printf("[WARN] LogEventSpool.delete: %s: %s\n", path, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+// SPDX-FileCopyrightText: 2025 shimiz98
+// SPDX-License-Identifier: MIT
+package io.github.shimiz98;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+
+/**
+ * ログごとに送信先のロググループとログストリームを決める。
+ * <ul>
+ *   <li>logGroupName と logStreamName に "%" を含む場合は PatternLayout のパターンとみなし、ログごとに評価する。
+ *       例: logStreamName="app-%X{tenant}-%level" (MDC の tenant とレベルで振り分ける)、"%c{1}"(ロガー名で振り分ける)
+ *   <li>CloudWatch Logs で使えない文字と、LogDestination.key の区切りの "\n" は "_" に置き換える。
+ *   <li>送信先はキャッシュし、maxDestinations 個を超えたら新しい送信先は作らずに null を返す。
+ *       MDC の値の種類が多すぎると、ログストリームとログ転送スレッドが増えすぎるため。
+ *   <li>パターンを評価した結果(置き換える前の名前)からも送信先を引けるようにしておき、
+ *       既にある送信先なら、名前の置き換えも LogDestination.key も作らない。(resolved)
+ * </ul>
+ * route() はログ出力するスレッドから(リングバッファのスロットを確保したまま)同時に呼ばれるので、
+ * 既にある送信先を返すだけなら、String を作らず、ロックもしない。
+ */
+class LogRouter {
+    // https://docs.aws.amazon.com/AmazonCloudWatchLogs/latest/APIReference/API_CreateLogStream.html
+    static final int MAX_NAME_LENGTH = 512;
+    // パターンを評価する StringBuilder は、これより大きくなったら縮める
+    private static final int MAX_FORMAT_BUFFER_LENGTH = MAX_NAME_LENGTH * 2;
+
+    private final String logGroupName;
+    private final String logStreamName;
+    private final PatternLayout logGroupLayout; // パターンでなければ null
+    private final PatternLayout logStreamLayout; // パターンでなければ null
+    private final int maxDestinations;
+    private final ConcurrentMap<String, LogDestination> destinations = new ConcurrentHashMap<>();
+    private final AtomicBoolean overflowWarned = new AtomicBoolean();
+    // パターンを評価した結果から送信先を引く、オープンアドレス法のハッシュ表。追加するときはコピーして差し替える
+    private volatile Resolved[] resolved = new Resolved[16];
+    private int resolvedCount; // synchronized (this)
+    private final ThreadLocal<StringBuilder[]> formatBuffers = ThreadLocal
+            .withInitial(() -> new StringBuilder[] { new StringBuilder(), new StringBuilder() });
+
+    LogRouter(String logGroupName, String logStreamName, int maxDestinations) {
+        this.logGroupName = logGroupName;
+        this.logStreamName = logStreamName;
+        this.logGroupLayout = isPattern(logGroupName) ? newLayout(logGroupName) : null;
+        this.logStreamLayout = isPattern(logStreamName) ? newLayout(logStreamName) : null;
+        this.maxDestinations = maxDestinations;
+    }
+
+    static boolean isPattern(String name) {
+        return name != null && 0 <= name.indexOf('%');
+    }
+
+    private static PatternLayout newLayout(String pattern) {
+        // 例外のスタックトレースを名前に含めない
+        return PatternLayout.newBuilder().withPattern(pattern).withCharset(StandardCharsets.UTF_8)
+                .withAlwaysWriteExceptions(false).build();
+    }
+
+    /**
+     * @return 送信先。maxDestinations を超えた場合は null
+     */
+    LogDestination route(LogEvent event) {
+        StringBuilder[] buffers = formatBuffers.get();
+        CharSequence group = format(logGroupLayout, logGroupName, buffers[0], event);
+        CharSequence stream = format(logStreamLayout, logStreamName, buffers[1], event);
+        int hash = hash(group) * 31 + hash(stream);
+        Resolved[] table = resolved;
+        for (int i = hash & (table.length - 1); table[i] != null; i = (i + 1) & (table.length - 1)) {
+            Resolved r = table[i];
+            if (r.hash == hash && r.group.contentEquals(group) && r.stream.contentEquals(stream)) {
+                return r.destination;
+            }
+        }
+        // 初めて見る名前
+        String rawGroup = group.toString();
+        String rawStream = stream.toString();
+        LogDestination destination = destinationOf(
+                logGroupLayout != null ? sanitizeLogGroupName(rawGroup) : rawGroup,
+                logStreamLayout != null ? sanitizeLogStreamName(rawStream) : rawStream);
+        if (destination != null) {
+            addResolved(new Resolved(rawGroup, rawStream, hash, destination));
+        }
+        return destination;
+    }
+
+    private static CharSequence format(PatternLayout layout, String name, StringBuilder buffer, LogEvent event) {
+        if (layout == null) {
+            return name;
+        }
+        if (MAX_FORMAT_BUFFER_LENGTH < buffer.capacity()) {
+            buffer.setLength(MAX_FORMAT_BUFFER_LENGTH);
+            buffer.trimToSize();
+        }
+        buffer.setLength(0);
+        layout.serialize(event, buffer);
+        return buffer;
+    }
+
+    private static int hash(CharSequence s) {
+        int h = 0;
+        for (int i = 0; i < s.length(); i++) {
+            h = 31 * h + s.charAt(i);
+        }
+        return h;
+    }
+
+    /**
+     * 名前を置き換えると同じ送信先になる resolved は複数ある。(例: "a:b" と "a*b")
+     * 多すぎる場合は追加しない。(route() が毎回 destinationOf() を呼ぶだけ)
+     */
+    private synchronized void addResolved(Resolved entry) {
+        if (maxDestinations * 4 <= resolvedCount) {
+            return;
+        }
+        Resolved[] table = resolved;
+        int capacity = table.length;
+        while (capacity < (resolvedCount + 1) * 2) {
+            capacity *= 2;
+        }
+        Resolved[] next = new Resolved[capacity];
+        for (Resolved r : table) {
+            if (r != null) {
+                if (r.hash == entry.hash && r.group.equals(entry.group) && r.stream.equals(entry.stream)) {
+                    return; // 他のスレッドが追加した
+                }
+                put(next, r);
+            }
+        }
+        put(next, entry);
+        resolvedCount++;
+        resolved = next;
+    }
+
+    private static void put(Resolved[] table, Resolved entry) {
+        int i = entry.hash & (table.length - 1);
+        while (table[i] != null) {
+            i = (i + 1) & (table.length - 1);
+        }
+        table[i] = entry;
+    }
+
+    /**
+     * LogEventSpool に書いた LogDestination.key から送信先を返す。
+     */
+    LogDestination destinationOf(String key) {
+        int separator = key.indexOf('\n');
+        if (separator < 0) {
+            return null;
+        }
+        return destinationOf(key.substring(0, separator), key.substring(separator + 1));
+    }
+
+    private LogDestination destinationOf(String group, String stream) {
+        String key = LogDestination.key(group, stream);
+        LogDestination destination = destinations.get(key);
+        if (destination != null) {
+            return destination;
+        }
+        if (maxDestinations <= destinations.size()) {
+            if (overflowWarned.compareAndSet(false, true)) {
+                System.err.printf("[ERROR] LogRouter: too many destinations: max=%d: %s\n", maxDestinations, key);
+            }
+            return null;
+        }
+        return destinations.computeIfAbsent(key, k -> new LogDestination(group, stream));
+    }
+
+    int size() {
+        return destinations.size();
+    }
+
+    /** ロググループ名に使える文字は [.-_/#A-Za-z0-9] だけ */
+    static String sanitizeLogGroupName(String name) {
+        StringBuilder sb = new StringBuilder(Math.min(name.length(), MAX_NAME_LENGTH));
+        for (int i = 0; i < name.length() && sb.length() < MAX_NAME_LENGTH; i++) {
+            char c = name.charAt(i);
+            boolean valid = ('a' <= c && c <= 'z') || ('A' <= c && c <= 'Z') || ('0' <= c && c <= '9')
+                    || c == '.' || c == '-' || c == '_' || c == '/' || c == '#';
+            sb.append(valid ? c : '_');
+        }
+        return sb.length() == 0 ? "_" : sb.toString();
+    }
+
+    /** ログストリーム名には ":" と "*" を使えない。また LogDestination.key の区切りの "\n" などの制御文字も置き換える */
+    static String sanitizeLogStreamName(String name) {
+        if (MAX_NAME_LENGTH < name.length()) {
+            name = name.substring(0, MAX_NAME_LENGTH);
+        }
+        char[] chars = null;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == ':' || c == '*' || Character.isISOControl(c)) {
+                if (chars == null) {
+                    chars = name.toCharArray();
+                }
+                chars[i] = '_';
+            }
+        }
+        if (chars != null) {
+            return new String(chars);
+        }
+        return name.isEmpty() ? "_" : name;
+    }
+
+    /** パターンを評価した結果(置き換える前の名前)と送信先 */
+    private static final class Resolved {
+        final String group;
+        final String stream;
+        final int hash;
+        final LogDestination destination;
+
+        Resolved(String group, String stream, int hash, LogDestination destination) {
+            this.group = group;
+            this.stream = stream;
+            this.hash = hash;
+            this.destination = destination;
+        }
+    }
+}
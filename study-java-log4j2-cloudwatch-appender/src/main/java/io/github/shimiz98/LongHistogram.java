@@ -0,0 +1,98 @@
+// SPDX-FileCopyrightText: 2025 shimiz98
+// SPDX-License-Identifier: MIT
+package io.github.shimiz98;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 値の分布を2の累乗ごとのバケットで数えるヒストグラム
+ * <ul>
+ *   <li>record() は LongAdder を加算するだけで、オブジェクトを生成しない。複数のスレッドから同時に呼んでよい。
+ *   <li>パーセンタイルはバケットの上限で返すので、最大2倍の誤差がある。(レイテンシの傾向を見るには十分)
+ * </ul>
+ */
+class LongHistogram {
+    private static final int BUCKETS = 64;
+
+    // buckets[i] は 2^(i-1) 以上 2^i 未満の値の数。buckets[0] は0以下の値の数
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    LongHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    void record(long value) {
+        buckets[bucketIndex(value)].increment();
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * ここまでの値を新しい LongHistogram に移して、この LongHistogram を空にする。(一定間隔ごとの集計に使う)
+     * 移している間に record() された値は、一部が次の drain() に入ることがある。
+     */
+    LongHistogram drain() {
+        LongHistogram drained = new LongHistogram();
+        for (int i = 0; i < BUCKETS; i++) {
+            drained.buckets[i].add(buckets[i].sumThenReset());
+        }
+        drained.count.add(count.sumThenReset());
+        drained.sum.add(sum.sumThenReset());
+        drained.max.accumulate(max.getThenReset());
+        return drained;
+    }
+
+    static int bucketIndex(long value) {
+        return value <= 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    long getSum() {
+        return sum.sum();
+    }
+
+    long getMax() {
+        return max.get();
+    }
+
+    double getMean() {
+        long n = getCount();
+        return n == 0 ? 0 : (double) getSum() / n;
+    }
+
+    /**
+     * @param percentile 0〜100
+     * @return percentile % の値が入るバケットの上限。ただし最大値は超えない
+     */
+    long getPercentile(double percentile) {
+        long n = getCount();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(n * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i].sum();
+            if (rank <= seen) {
+                return i == 0 ? 0 : Math.min(getMax(), (1L << i) - 1);
+            }
+        }
+        return getMax();
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + " mean=" + (long) getMean() + " p50=" + getPercentile(50) + " p99="
+                + getPercentile(99) + " max=" + getMax();
+    }
+}
@@ -0,0 +1,97 @@
+// SPDX-FileCopyrightText: 2025 shimiz98
+// SPDX-License-Identifier: MIT
+package io.github.shimiz98;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * PutLogEvents のリクエスト数/秒とバイト数/秒を制限するトークンバケット
+ * <ul>
+ *   <li>PutLogEvents は per-second per-account で制限されるため、同じリージョンに送る CloudWatchAppender はすべて
+ *       1個のインスタンスを共有する。(shared() を参照) 各 appender が別々にリトライすると、お互いをスロットリングさせてしまう。
+ *   <li>トークンの補充は「次にトークンが空く時刻」を進める方式で計算する。1秒分までのバーストを許す。
+ *   <li>ロックの中では待たないので、仮想スレッドでも carrier thread を pin しない。
+ * </ul>
+ */
+class PutLogEventsRateLimiter {
+    private static final ConcurrentMap<String, PutLogEventsRateLimiter> SHARED = new ConcurrentHashMap<>();
+    private static final long BURST_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /** 制限しない。 */
+    static final PutLogEventsRateLimiter UNLIMITED = new PutLogEventsRateLimiter(0, 0);
+
+    private final double requestsPerSecond;
+    private final double bytesPerSecond;
+    private long nextRequestNanos;
+    private long nextBytesNanos;
+
+    /**
+     * @param requestsPerSecond 0以下なら制限しない
+     * @param bytesPerSecond    0以下なら制限しない
+     */
+    PutLogEventsRateLimiter(double requestsPerSecond, double bytesPerSecond) {
+        this.requestsPerSecond = requestsPerSecond;
+        this.bytesPerSecond = bytesPerSecond;
+        long now = System.nanoTime();
+        this.nextRequestNanos = now - BURST_NANOS;
+        this.nextBytesNanos = now - BURST_NANOS;
+    }
+
+    /**
+     * JVM の中で key ごとに共有するインスタンスを返す。設定は最初に作った appender のものを使う。
+     */
+    static PutLogEventsRateLimiter shared(String key, double requestsPerSecond, double bytesPerSecond) {
+        if (requestsPerSecond <= 0 && bytesPerSecond <= 0) {
+            return UNLIMITED;
+        }
+        PutLogEventsRateLimiter rateLimiter = SHARED.computeIfAbsent(key,
+                k -> new PutLogEventsRateLimiter(requestsPerSecond, bytesPerSecond));
+        if (rateLimiter.requestsPerSecond != requestsPerSecond || rateLimiter.bytesPerSecond != bytesPerSecond) {
+            System.err.printf("[WARN] PutLogEventsRateLimiter is shared with different settings: key=%s: %s/s %s bytes/s\n",
+                    key, rateLimiter.requestsPerSecond, rateLimiter.bytesPerSecond);
+        }
+        return rateLimiter;
+    }
+
+    /**
+     * 1回のリクエストの分のトークンを予約し、使えるようになるまでの待ち時間を返す。
+     */
+    long reserve(int bytes) {
+        if (requestsPerSecond <= 0 && bytesPerSecond <= 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        synchronized (this) {
+            long wait = 0;
+            if (0 < requestsPerSecond) {
+                nextRequestNanos = Math.max(nextRequestNanos, now - BURST_NANOS)
+                        + (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond);
+                wait = Math.max(wait, nextRequestNanos - now);
+            }
+            if (0 < bytesPerSecond) {
+                nextBytesNanos = Math.max(nextBytesNanos, now - BURST_NANOS)
+                        + (long) (TimeUnit.SECONDS.toNanos(1) * (double) bytes / bytesPerSecond);
+                wait = Math.max(wait, nextBytesNanos - now);
+            }
+            return Math.max(0, wait);
+        }
+    }
+
+    /**
+     * トークンが使えるようになるまで待つ。
+     */
+    void acquire(int bytes) throws InterruptedException {
+        long wait = reserve(bytes);
+        final long deadline = System.nanoTime() + wait;
+        while (0 < wait) {
+            LockSupport.parkNanos(this, wait);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            wait = deadline - System.nanoTime();
+        }
+    }
+}
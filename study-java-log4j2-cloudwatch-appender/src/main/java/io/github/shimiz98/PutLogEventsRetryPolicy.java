@@ -0,0 +1,78 @@
+// SPDX-FileCopyrightText: 2025 shimiz98
+// SPDX-License-Identifier: MIT
+package io.github.shimiz98;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.exception.SdkClientException;
+
+/**
+ * PutLogEvents のリトライ判定と待ち時間
+ * <ul>
+ *   <li>リトライするのは、スロットリング(per-second per-account の rate limit)、5xx、ネットワーク障害などの一時的な失敗だけ。
+ *       InvalidParameterException や ResourceNotFoundException は何度送っても失敗するので、リトライしない。
+ *   <li>待ち時間は exponential backoff + full jitter。複数のアプリが同時にスロットリングされても、リトライが同じ時刻に集中しない。
+ *       参考: https://aws.amazon.com/jp/builders-library/timeouts-retries-and-backoff-with-jitter/
+ * </ul>
+ */
+class PutLogEventsRetryPolicy {
+    private final int maxAttempts;
+    private final long baseDelayNanos;
+    private final long maxDelayNanos;
+
+    /**
+     * @param maxAttempts    初回を含む最大の試行回数。1ならリトライしない。
+     * @param baseDelayMillis 1回目のリトライの最大待ち時間。リトライのたびに2倍にする。
+     * @param maxDelayMillis  待ち時間の上限
+     */
+    PutLogEventsRetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts: " + maxAttempts);
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseDelayNanos = TimeUnit.MILLISECONDS.toNanos(baseDelayMillis);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+    }
+
+    /**
+     * @param attempt 失敗した試行が何回目か(1から)
+     * @return リトライする場合は true
+     */
+    boolean shouldRetry(Throwable e, int attempt) {
+        return attempt < maxAttempts && isRetryable(e);
+    }
+
+    static boolean isRetryable(Throwable e) {
+        // CloudWatchLogsAsyncClient の CompletableFuture では CompletionException に包まれている
+        while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null) {
+            e = e.getCause();
+        }
+        if (e instanceof AwsServiceException) {
+            AwsServiceException ase = (AwsServiceException) e;
+            return ase.isThrottlingException() || 500 <= ase.statusCode()
+                    || "ServiceUnavailableException".equals(ase.awsErrorDetails() == null ? null
+                            : ase.awsErrorDetails().errorCode());
+        }
+        return e instanceof SdkClientException; // 接続失敗やタイムアウト
+    }
+
+    /**
+     * @param attempt 失敗した試行が何回目か(1から)
+     * @return 次の試行までの待ち時間。0 から min(maxDelay, baseDelay * 2^(attempt-1)) の一様乱数。
+     */
+    long delayNanos(int attempt) {
+        long ceiling = baseDelayNanos << Math.min(attempt - 1, 30);
+        if (ceiling <= 0 || maxDelayNanos < ceiling) {
+            ceiling = maxDelayNanos; // シフトのオーバーフローも上限にする
+        }
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    int getMaxAttempts() {
+        return maxAttempts;
+    }
+}
@@ -0,0 +1,196 @@
+// SPDX-FileCopyrightText: 2025 shimiz98
+// SPDX-License-Identifier: MIT
+package io.github.shimiz98;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+
+/**
+ * ロックを使わないリングバッファによるキュー(複数producer、単一consumer)
+ * <ul>
+ *   <li>スロット(LogEventSnapshot)は生成時に確保済みで、offer() でノードもスナップショットも new しない。
+ *   <li>producer は tail を CAS で進めてスロットを確保し、LogEvent の内容をコピーした後にスロットの sequence を更新して公開する。
+ *   <li>consumer(ログ転送スレッド)は sequence を見て公開済みのスロットだけを読む。空なら park して待つ。
+ *   <li>poll() で返したスロットは、次の poll() で空きに戻す。
+ *   <li>コピー中に例外(Layout.encode() や LogRouter.route() の失敗)が発生しても、スロットは読み飛ばす印を付けて公開する。
+ *       公開しないと、consumer がそのスロットを待ち続けるため。
+ *   <li>容量は 2 のべき乗に切り上げる。(例: 999 → 1024) また最小は 2 とする。(1 だと空きと公開済みの sequence が同じ値になるため)
+ * </ul>
+ * 参考: Dmitry Vyukov の bounded MPMC queue
+ */
+class RingBufferLogEventQueue implements LogEventQueue {
+    // producer が満杯で待つときの park 間隔。consumer は producer を起こさないため、一定間隔で再確認する。
+    private static final long PRODUCER_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final int capacity;
+    private final int mask;
+    private final LogEventSnapshot[] slots;
+    // sequence[i] == 位置 : 空き(その位置に書き込める)、sequence[i] == 位置 + 1 : 公開済み(読める)
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head; // consumer だけが更新する
+    private long polledPos = -1; // poll() で返して、まだ空きに戻していないスロットの位置。consumer だけが使う
+    private volatile Thread waitingConsumer;
+
+    RingBufferLogEventQueue(int requestedCapacity, Layout<?> layout) {
+        this(requestedCapacity, layout, LogEventSnapshot.DEFAULT_INITIAL_BUFFER_BYTES,
+                LogEventSnapshot.DEFAULT_MAX_BUFFER_BYTES);
+    }
+
+    RingBufferLogEventQueue(int requestedCapacity, Layout<?> layout, int initialBufferBytes, int maxBufferBytes) {
+        this(requestedCapacity, layout, initialBufferBytes, maxBufferBytes, null);
+    }
+
+    RingBufferLogEventQueue(int requestedCapacity, Layout<?> layout, int initialBufferBytes, int maxBufferBytes,
+            LogRouter router) {
+        if (requestedCapacity <= 0 || (1 << 30) < requestedCapacity) {
+            throw new IllegalArgumentException("capacity: " + requestedCapacity);
+        }
+        this.capacity = requestedCapacity <= 2 ? 2 : Integer.highestOneBit(requestedCapacity - 1) << 1;
+        this.mask = capacity - 1;
+        this.slots = new LogEventSnapshot[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new LogEventSnapshot(layout, initialBufferBytes, maxBufferBytes, router);
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * 単一 consumer なので、producer からは捨てられない。
+     */
+    @Override
+    public boolean discardOldest() {
+        throw new UnsupportedOperationException("discardOldest: " + TYPE_RING_BUFFER);
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    @Override
+    public boolean offer(LogEvent event) {
+        return offer(event, null);
+    }
+
+    /**
+     * event または snapshot のどちらかをスロットにコピーする。
+     */
+    private boolean offer(LogEvent event, LogEventSnapshot snapshot) {
+        long pos;
+        int index;
+        for (;;) {
+            pos = tail.get();
+            index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break; // スロットを確保できた
+                }
+            } else if (diff < 0) {
+                return false; // consumer がまだ読んでいない = 満杯
+            }
+            // 他の producer が先に確保したので、やり直す
+        }
+        boolean copied = false;
+        try {
+            if (snapshot != null) {
+                slots[index].set(snapshot);
+            } else {
+                slots[index].set(event);
+            }
+            copied = true;
+        } finally {
+            if (!copied) {
+                slots[index].discard();
+            }
+            // volatile 書き込みで公開する。直後の waitingConsumer の読み込みと順序が入れ替わらないよう lazySet() は使わない。
+            sequences.set(index, pos + 1);
+            Thread consumer = waitingConsumer;
+            if (consumer != null) {
+                LockSupport.unpark(consumer);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean offer(LogEvent event, long timeout, TimeUnit unit) throws InterruptedException {
+        return offer(event, null, timeout, unit);
+    }
+
+    @Override
+    public boolean offer(LogEventSnapshot snapshot, long timeout, TimeUnit unit) throws InterruptedException {
+        return offer(null, snapshot, timeout, unit);
+    }
+
+    private boolean offer(LogEvent event, LogEventSnapshot snapshot, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        final long deadline = System.nanoTime() + nanos;
+        while (!offer(event, snapshot)) {
+            if (nanos <= 0) {
+                return false;
+            }
+            LockSupport.parkNanos(this, Math.min(nanos, PRODUCER_PARK_NANOS));
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            nanos = deadline - System.nanoTime();
+        }
+        return true;
+    }
+
+    @Override
+    public LogEventSnapshot poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        final long deadline = System.nanoTime() + nanos; // オーバーフローしても差分の計算は正しい
+        for (;;) {
+            releasePolledSlot();
+            final long pos = head;
+            final int index = (int) (pos & mask);
+            while (sequences.get(index) != pos + 1) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                waitingConsumer = Thread.currentThread();
+                // waitingConsumer を設定した後に再確認しないと、producer の unpark() を取りこぼす
+                if (sequences.get(index) != pos + 1) {
+                    LockSupport.parkNanos(this, nanos);
+                }
+                waitingConsumer = null;
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                nanos = deadline - System.nanoTime();
+            }
+            polledPos = pos;
+            head = pos + 1;
+            if (!slots[index].isDiscarded()) {
+                return slots[index];
+            }
+            // コピーに失敗したスロット。空きに戻して、次のスロットを読む
+        }
+    }
+
+    private void releasePolledSlot() {
+        if (polledPos < 0) {
+            return;
+        }
+        int index = (int) (polledPos & mask);
+        slots[index].clear();
+        sequences.lazySet(index, polledPos + capacity); // スロットを空きに戻す
+        polledPos = -1;
+    }
+
+    @Override
+    public int size() {
+        long size = tail.get() - head;
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+}
@@ -0,0 +1,61 @@
+// SPDX-FileCopyrightText: 2025 shimiz98
+// SPDX-License-Identifier: MIT
+package io.github.shimiz98;
+
+/**
+ * UTF-8 のバイト数の計算
+ * <p>
+ * String.getBytes() でバイト配列を作らずに、CloudWatch Logs のサイズ上限の判定に使う正確なバイト数を求める。
+ */
+final class Utf8 {
+    private Utf8() {
+    }
+
+    /**
+     * 文字列を UTF-8 にしたときのバイト数。不正なサロゲートは String.getBytes() と同じく "?" の1バイトとして数える。
+     */
+    static int encodedLength(CharSequence s) {
+        int length = 0;
+        final int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4; // サロゲートペアは2文字で4バイト
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * bytes[offset] から最大 maxLength バイトを取り出すときに、UTF-8 の文字の途中で切らない終了位置を返す。
+     *
+     * @param end 有効なバイト列の終了位置(この位置は含まない)
+     * @return offset < 戻り値 <= min(end, offset + maxLength)。ただし先頭の1文字が maxLength を超える場合も1文字は含める。
+     */
+    static int chunkEnd(byte[] bytes, int offset, int end, int maxLength) {
+        if (end - offset <= maxLength) {
+            return end;
+        }
+        int chunkEnd = offset + maxLength;
+        // 継続バイト(10xxxxxx)の位置では切らずに、文字の先頭まで戻る
+        while (offset < chunkEnd && (bytes[chunkEnd] & 0xC0) == 0x80) {
+            chunkEnd--;
+        }
+        if (chunkEnd == offset) {
+            chunkEnd = offset + 1;
+            while (chunkEnd < end && (bytes[chunkEnd] & 0xC0) == 0x80) {
+                chunkEnd++;
+            }
+        }
+        return chunkEnd;
+    }
+}
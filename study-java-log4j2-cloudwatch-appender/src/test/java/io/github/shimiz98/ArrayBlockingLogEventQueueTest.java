@@ -0,0 +1,131 @@
+// SPDX-FileCopyrightText: 2025 shimiz98
+// SPDX-License-Identifier: MIT
+package io.github.shimiz98;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+class ArrayBlockingLogEventQueueTest {
+    private static final Layout<?> LAYOUT = CloudWatchAppender.newDefaultLayout();
+
+    @Test
+    void testOfferAndPoll() throws InterruptedException {
+        ArrayBlockingLogEventQueue testTarget = new ArrayBlockingLogEventQueue(2, LAYOUT);
+        assertTrue(testTarget.offer(newLogEvent("111")));
+        assertTrue(testTarget.offer(newLogEvent("222")));
+        assertFalse(testTarget.offer(newLogEvent("333"))); // 満杯
+        assertEquals(2, testTarget.size());
+
+        assertEquals("111", testTarget.poll(0, TimeUnit.NANOSECONDS).getMessageString());
+        assertEquals("222", testTarget.poll(0, TimeUnit.NANOSECONDS).getMessageString());
+        assertNull(testTarget.poll(1, TimeUnit.MILLISECONDS)); // 空
+        assertEquals(0, testTarget.size());
+    }
+
+    @Test
+    void testSnapshotIsReused() throws InterruptedException {
+        ArrayBlockingLogEventQueue testTarget = new ArrayBlockingLogEventQueue(1, LAYOUT);
+
+        assertTrue(testTarget.offer(newLogEvent("111")));
+        LogEventSnapshot snapshot1 = testTarget.poll(0, TimeUnit.NANOSECONDS);
+        assertTrue(testTarget.offer(newLogEvent("222"))); // poll()で返した分とは別のスナップショットを使う
+        assertFalse(testTarget.offer(newLogEvent("333"))); // 満杯
+        assertEquals("111", snapshot1.getMessageString()); // poll()で返したスナップショットは次のpoll()まで変わらない
+
+        LogEventSnapshot snapshot2 = testTarget.poll(0, TimeUnit.NANOSECONDS);
+        assertEquals("222", snapshot2.getMessageString());
+        assertTrue(testTarget.offer(newLogEvent("333")));
+        assertSame(snapshot1, testTarget.poll(0, TimeUnit.NANOSECONDS));
+        assertEquals("333", snapshot1.getMessageString());
+    }
+
+    @Test
+    void testOfferFailure() throws InterruptedException {
+        LogEvent failure = newLogEvent("encode failure");
+        Layout<?> layout = Mockito.mock(Layout.class);
+        Mockito.doAnswer(invocation -> {
+            LogEvent event = invocation.getArgument(0);
+            if (event == failure) {
+                throw new IllegalStateException("encode failure");
+            }
+            LAYOUT.encode(event, invocation.getArgument(1));
+            return null;
+        }).when(layout).encode(Mockito.any(), Mockito.any());
+        ArrayBlockingLogEventQueue testTarget = new ArrayBlockingLogEventQueue(1, layout);
+
+        // 失敗したスナップショットは空きに戻す
+        assertThrows(IllegalStateException.class, () -> testTarget.offer(failure));
+        assertThrows(IllegalStateException.class, () -> testTarget.offer(failure));
+        assertTrue(testTarget.offer(newLogEvent("111")));
+        assertEquals("111", testTarget.poll(0, TimeUnit.NANOSECONDS).getMessageString());
+    }
+
+    @Test
+    void testDiscardOldest() throws InterruptedException {
+        ArrayBlockingLogEventQueue testTarget = new ArrayBlockingLogEventQueue(2, LAYOUT);
+        for (int i = 0; i < 10; i++) {
+            if (!testTarget.offer(newLogEvent("m" + i))) {
+                assertTrue(testTarget.discardOldest());
+                assertTrue(testTarget.offer(newLogEvent("m" + i))); // 捨てたスナップショットは空きに戻す
+            }
+        }
+        assertEquals("m8", testTarget.poll(0, TimeUnit.NANOSECONDS).getMessageString());
+        assertEquals("m9", testTarget.poll(0, TimeUnit.NANOSECONDS).getMessageString());
+    }
+
+    @Test
+    void testDiscardOldestKeepsStopSenderThread() throws InterruptedException {
+        final int producerCount = 8;
+        final int eventCountPerProducer = 10_000;
+        ArrayBlockingLogEventQueue testTarget = new ArrayBlockingLogEventQueue(1, LAYOUT);
+        assertTrue(testTarget.offer(CloudWatchAppender.STOP_SENDER_THREAD_LOG_EVENT));
+        LogEvent log1 = newLogEvent("111");
+        CountDownLatch startLatch = new CountDownLatch(1);
+        Thread[] producers = new Thread[producerCount];
+        for (int p = 0; p < producerCount; p++) {
+            // STOP_SENDER_THREAD を末尾に戻す隙に、他のスレッドが offer() で割り込む
+            producers[p] = new Thread(() -> {
+                try {
+                    startLatch.await();
+                    for (int i = 0; i < eventCountPerProducer; i++) {
+                        if (!testTarget.offer(log1)) {
+                            testTarget.discardOldest();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            producers[p].start();
+        }
+        startLatch.countDown();
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        int stopCount = 0;
+        LogEventSnapshot snapshot;
+        while ((snapshot = testTarget.poll(0, TimeUnit.NANOSECONDS)) != null) {
+            stopCount += snapshot.isStopSenderThread() ? 1 : 0;
+        }
+        assertEquals(1, stopCount);
+    }
+
+    LogEvent newLogEvent(String message) {
+        return Log4jLogEvent.newBuilder().setLoggerName("dummy").setMessage(new SimpleMessage(message)).build();
+    }
+}
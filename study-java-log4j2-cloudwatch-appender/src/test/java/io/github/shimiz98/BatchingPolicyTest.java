@@ -0,0 +1,67 @@
+// SPDX-FileCopyrightText: 2025 shimiz98
+// SPDX-License-Identifier: MIT
+package io.github.shimiz98;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class BatchingPolicyTest {
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    void testFixed() {
+        BatchingPolicy testTarget = new BatchingPolicy("Fixed", 2_000, 100, 1_000);
+        testTarget.onArrival(0);
+        testTarget.onArrival(1);
+        testTarget.onRoundTrip(500 * MS);
+        assertEquals(2_000 * MS, testTarget.lingerNanos());
+        assertEquals(100, testTarget.targetBatchEvents());
+    }
+
+    @Test
+    void testAdaptiveQuiet() {
+        BatchingPolicy testTarget = new BatchingPolicy("Adaptive", 2_000, 100, 1_000);
+        // まだログが来ていないときは待たない
+        assertEquals(0, testTarget.lingerNanos());
+        assertEquals(1, testTarget.targetBatchEvents());
+        // 10秒に1個なら、待っても次のログは来ない
+        testTarget.onArrival(0);
+        testTarget.onArrival(10_000 * MS);
+        assertEquals(0, testTarget.lingerNanos());
+    }
+
+    @Test
+    void testAdaptiveBusy() {
+        BatchingPolicy testTarget = new BatchingPolicy("Adaptive", 2_000, 100, 1_000);
+        // 1ms に1個なら、100個溜まる 100ms 待つ
+        for (int i = 0; i <= 10; i++) {
+            testTarget.onArrival(i * MS);
+        }
+        assertEquals(100 * MS, testTarget.lingerNanos());
+        assertEquals(100, testTarget.targetBatchEvents());
+    }
+
+    @Test
+    void testAdaptiveSlo() {
+        BatchingPolicy testTarget = new BatchingPolicy("Adaptive", 2_000, 10_000, 1_000);
+        for (int i = 0; i <= 10; i++) {
+            testTarget.onArrival(i * 10 * MS);
+        }
+        // 10ms に1個で 10000個は 100秒かかるので、SLO(1秒) - 応答時間(400ms) だけ待つ
+        testTarget.onRoundTrip(400 * MS);
+        assertEquals(600 * MS, testTarget.lingerNanos());
+        assertEquals(61, testTarget.targetBatchEvents());
+        // 応答時間だけで SLO を超えたら待たない
+        testTarget.onRoundTrip(5_000 * MS);
+        assertEquals(0, testTarget.lingerNanos());
+    }
+
+    @Test
+    void testInvalid() {
+        assertThrows(IllegalArgumentException.class, () -> new BatchingPolicy("Unknown", 2_000, 100, 1_000));
+    }
+}
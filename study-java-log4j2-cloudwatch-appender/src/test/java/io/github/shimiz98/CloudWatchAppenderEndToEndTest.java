@@ -0,0 +1,153 @@
+// SPDX-FileCopyrightText: 2025 shimiz98
+// SPDX-License-Identifier: MIT
+package io.github.shimiz98;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInfo;
+
+/**
+ * FakeCloudWatchLogsServer に実際の HTTP で送るテスト。(Mockito では確かめられない、SDK の例外や応答の解釈も含めて確かめる)
+ */
+class CloudWatchAppenderEndToEndTest {
+    private FakeCloudWatchLogsServer server;
+
+    @BeforeAll
+    static void setUpBeforeClass() {
+        // SDK の既定の認証情報プロバイダが、最初に system property を見る
+        System.setProperty("aws.accessKeyId", "dummy");
+        System.setProperty("aws.secretAccessKey", "dummy");
+    }
+
+    @BeforeEach
+    void startServer(TestInfo testInfo) throws IOException {
+        System.out.println("===BEGIN junit=== " + testInfo.getDisplayName());
+        server = new FakeCloudWatchLogsServer();
+    }
+
+    @AfterEach
+    void stopServer(TestInfo testInfo) {
+        server.close();
+        System.out.println("====END junit==== " + testInfo.getDisplayName());
+    }
+
+    @Test
+    void testSync() {
+        CloudWatchAppender testTarget = newBuilder().build();
+        testTarget.start();
+        testTarget.append(newLogEvent(11, "111"));
+        testTarget.append(newLogEvent(22, "222"));
+        assertTrue(testTarget.stop(0, TimeUnit.MILLISECONDS));
+
+        assertEquals(Arrays.asList("111", "222"), server.getMessages("myapp-ls"));
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    void testAsync() {
+        CloudWatchAppender testTarget = newBuilder().setSenderMode("Async").build();
+        testTarget.start();
+        testTarget.append(newLogEvent(11, "111"));
+        assertTrue(testTarget.stop(0, TimeUnit.MILLISECONDS));
+
+        assertEquals(Arrays.asList("111"), server.getMessages("myapp-ls"));
+    }
+
+    @Test
+    void testThrottlingRetry() {
+        server.failNext(2, 400, "ThrottlingException");
+        CloudWatchAppender testTarget = newBuilder().build();
+        testTarget.start();
+        testTarget.append(newLogEvent(11, "111"));
+        assertTrue(testTarget.stop(0, TimeUnit.MILLISECONDS));
+
+        assertEquals(Arrays.asList("111"), server.getMessages("myapp-ls"));
+        assertEquals(3, server.getRequestCount());
+        assertEquals(2, testTarget.getMetrics().getRetryCount());
+    }
+
+    @Test
+    void testInvalidParameterNotRetried() {
+        server.failNext(1, 400, "InvalidParameterException");
+        CloudWatchAppender testTarget = newBuilder().build();
+        testTarget.start();
+        testTarget.append(newLogEvent(11, "111"));
+        testTarget.stop(0, TimeUnit.MILLISECONDS);
+
+        assertEquals(1, server.getRequestCount());
+        assertEquals(1, testTarget.getMetrics().getFailedEventCount());
+    }
+
+    @Test
+    void testRejectedLogEvents() {
+        server.setTooOldLogEventEndIndex(1);
+        CloudWatchAppender testTarget = newBuilder().build();
+        testTarget.start();
+        testTarget.append(newLogEvent(11, "111"));
+        testTarget.append(newLogEvent(22, "222"));
+        testTarget.stop(0, TimeUnit.MILLISECONDS);
+
+        assertEquals(Arrays.asList("222"), server.getMessages("myapp-ls"));
+        assertEquals(1, testTarget.getMetrics().getRejectedEventCount());
+    }
+
+    @Test
+    void testRoutingCreatesLogStreams() {
+        CloudWatchAppender testTarget = newBuilder().setLogStreamName("ls-%X{tenant}").build();
+        testTarget.start();
+        testTarget.append(newTenantLogEvent(11, "111", "t1"));
+        testTarget.append(newTenantLogEvent(22, "222", "t2"));
+        assertTrue(testTarget.stop(0, TimeUnit.MILLISECONDS));
+
+        assertEquals(Arrays.asList("111"), server.getMessages("ls-t1"));
+        assertEquals(Arrays.asList("222"), server.getMessages("ls-t2"));
+        assertEquals(2, server.getLogStreams().size());
+    }
+
+    @Test
+    void testDeliveryLatency() {
+        assertEquals(123, FakeCloudWatchLogsServer.parseSentNanoTime("seq=1 sentNanoTime=123 abc"));
+        assertEquals(-123, FakeCloudWatchLogsServer.parseSentNanoTime("sentNanoTime=-123"));
+        assertEquals(-1, FakeCloudWatchLogsServer.parseSentNanoTime("111"));
+
+        server.setLatencyMillis(50);
+        CloudWatchAppender testTarget = newBuilder().build();
+        testTarget.start();
+        testTarget.append(newLogEvent(11, "seq=1 " + FakeCloudWatchLogsServer.SENT_NANO_TIME + System.nanoTime()));
+        assertTrue(testTarget.stop(0, TimeUnit.MILLISECONDS));
+
+        assertEquals(1, server.deliveryLatency.getCount());
+        assertTrue(TimeUnit.MILLISECONDS.toNanos(50) <= server.deliveryLatency.getMax());
+    }
+
+    CloudWatchAppender.Builder<?> newBuilder() {
+        return CloudWatchAppender.newBuilder().setName("dummy").setEndpointUrl(server.getEndpointUrl())
+                .setMaxSendDelayMillis(100).setMaxStopDelayMillis(5_000).setRetryBaseDelayMillis(1)
+                .setRetryMaxDelayMillis(10);
+    }
+
+    LogEvent newLogEvent(long timeMillis, String message) {
+        return Log4jLogEvent.newBuilder().setTimeMillis(timeMillis).setMessage(new SimpleMessage(message))
+                .setLoggerName("dummy").build();
+    }
+
+    LogEvent newTenantLogEvent(long timeMillis, String message, String tenant) {
+        SortedArrayStringMap contextData = new SortedArrayStringMap();
+        contextData.putValue("tenant", tenant);
+        return Log4jLogEvent.newBuilder().setTimeMillis(timeMillis).setMessage(new SimpleMessage(message))
+                .setLoggerName("dummy").setContextData(contextData).build();
+    }
+}
@@ -2,28 +2,61 @@
 // SPDX-License-Identifier: MIT
 package io.github.shimiz98;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.impl.MutableLogEvent;
+import org.apache.logging.log4j.message.ReusableSimpleMessage;
 import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInfo;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.services.cloudwatchlogs.CloudWatchLogsAsyncClient;
 import software.amazon.awssdk.services.cloudwatchlogs.CloudWatchLogsClient;
+import software.amazon.awssdk.services.cloudwatchlogs.model.CreateLogStreamRequest;
 import software.amazon.awssdk.services.cloudwatchlogs.model.InputLogEvent;
 import software.amazon.awssdk.services.cloudwatchlogs.model.PutLogEventsRequest;
 import software.amazon.awssdk.services.cloudwatchlogs.model.PutLogEventsResponse;
+import software.amazon.awssdk.services.cloudwatchlogs.model.RejectedLogEventsInfo;
 
 class CloudWatchAppenderTest {
 
     @Mock
     private CloudWatchLogsClient cwLogsClient;
 
+    @Mock
+    private CloudWatchLogsAsyncClient cwLogsAsyncClient;
+
     @BeforeAll
     static void setUpBeforeClass() throws Exception {
     }
@@ -45,7 +78,8 @@ class CloudWatchAppenderTest {
 
     @Test
     void test() throws InterruptedException {
-        CloudWatchAppender testTarget = CloudWatchAppender.createAppender(null, "dummy");
+        CloudWatchAppender testTarget = CloudWatchAppender.newBuilder().setName("dummy").setRetryBaseDelayMillis(1)
+                .setRetryMaxDelayMillis(10).build();
 
         Mockito.when(cwLogsClient.putLogEvents((PutLogEventsRequest) Mockito.any()))
                 .thenReturn(PutLogEventsResponse.builder().build());
@@ -63,15 +97,421 @@ class CloudWatchAppenderTest {
     }
 
     @Test
-    void testWait() throws InterruptedException {
-        CloudWatchAppender testTarget = CloudWatchAppender.createAppender(null, "dummy");
+    void testBuilder() throws InterruptedException {
+        CloudWatchAppender testTarget = CloudWatchAppender.newBuilder().setName("dummy").setLogGroupName("lg")
+                .setLogStreamName("ls").setMaxCountPerSend(2).setSenderThreads(2).setEndpointUrl("http://localhost:1")
+                .setRetryBaseDelayMillis(1).setRetryMaxDelayMillis(10).build();
+
+        Mockito.when(cwLogsClient.putLogEvents((PutLogEventsRequest) Mockito.any()))
+                .thenReturn(PutLogEventsResponse.builder().build());
+
+        testTarget.start();
+        testTarget.cwLogsClient = cwLogsClient;
+        Log4jLogEvent baseLog = Log4jLogEvent.newBuilder().setLoggerName("dummy").build();
+        testTarget.append(baseLog.asBuilder().setTimeMillis(11).setMessage(new SimpleMessage("111")).build());
+        testTarget.append(baseLog.asBuilder().setTimeMillis(22).setMessage(new SimpleMessage("222")).build());
+        testTarget.append(baseLog.asBuilder().setTimeMillis(33).setMessage(new SimpleMessage("333")).build());
+        testTarget.stop();
+
+        // maxCountPerSend=2 のため2回に分けて送る
+        PutLogEventsRequest req = PutLogEventsRequest.builder().logGroupName("lg").logStreamName("ls").build();
+        Mockito.verify(cwLogsClient, Mockito.times(1)).putLogEvents(
+                req.toBuilder().logEvents(newInputLogEvent(11, "111"), newInputLogEvent(22, "222")).build());
+        Mockito.verify(cwLogsClient, Mockito.times(1)).putLogEvents(
+                req.toBuilder().logEvents(newInputLogEvent(33, "333")).build());
+    }
+
+    @Test
+    void testAdaptiveBatching() throws InterruptedException {
+        CloudWatchAppender testTarget = CloudWatchAppender.newBuilder().setName("dummy").setBatchingMode("Adaptive")
+                .setLatencySloMillis(1_000).build();
+
+        Mockito.when(cwLogsClient.putLogEvents((PutLogEventsRequest) Mockito.any()))
+                .thenReturn(PutLogEventsResponse.builder().build());
+
+        testTarget.start();
+        testTarget.cwLogsClient = cwLogsClient;
+        Log4jLogEvent baseLog = Log4jLogEvent.newBuilder().setLoggerName("dummy").build();
+        testTarget.append(baseLog.asBuilder().setTimeMillis(11).setMessage(new SimpleMessage("111")).build());
+
+        // 閑散としているときは maxSendDelayMillis(2秒) を待たずに送る
+        PutLogEventsRequest req = PutLogEventsRequest.builder().logGroupName("myapp-lg").logStreamName("myapp-ls")
+                .build();
+        Mockito.verify(cwLogsClient, Mockito.timeout(500)).putLogEvents(
+                req.toBuilder().logEvents(newInputLogEvent(11, "111")).build());
+        testTarget.stop();
+    }
+
+    @Test
+    void testAggregation() throws InterruptedException {
+        CloudWatchAppender testTarget = CloudWatchAppender.newBuilder().setName("dummy")
+                .setAggregationWindowMillis(1_000).build();
+
+        Mockito.when(cwLogsClient.putLogEvents((PutLogEventsRequest) Mockito.any()))
+                .thenReturn(PutLogEventsResponse.builder().build());
+
+        testTarget.start();
+        testTarget.cwLogsClient = cwLogsClient;
+        Log4jLogEvent baseLog = Log4jLogEvent.newBuilder().setLoggerName("dummy").build();
+        testTarget.append(baseLog.asBuilder().setTimeMillis(11).setMessage(new SimpleMessage("111")).build());
+        testTarget.append(baseLog.asBuilder().setTimeMillis(22).setMessage(new SimpleMessage("111")).build());
+        testTarget.append(baseLog.asBuilder().setTimeMillis(33).setMessage(new SimpleMessage("333")).build());
+        testTarget.stop();
+
+        PutLogEventsRequest req = PutLogEventsRequest.builder().logGroupName("myapp-lg").logStreamName("myapp-ls")
+                .build();
+        Mockito.verify(cwLogsClient, Mockito.times(1)).putLogEvents(req.toBuilder().logEvents(
+                newInputLogEvent(11, "111 [repeated 2 times in 11ms]"), newInputLogEvent(33, "333")).build());
+        assertEquals(1, testTarget.getMetrics().getAggregatedEventCount());
+        assertEquals(2, testTarget.getMetrics().getSentEventCount());
+    }
+
+    @Test
+    void testMetrics() throws Exception {
+        CloudWatchAppender testTarget = CloudWatchAppender.newBuilder().setName("metrics").setMaxCountPerSend(2)
+                .build();
+
+        Mockito.when(cwLogsClient.putLogEvents((PutLogEventsRequest) Mockito.any())).thenReturn(PutLogEventsResponse
+                .builder().rejectedLogEventsInfo(RejectedLogEventsInfo.builder().tooOldLogEventEndIndex(1).build())
+                .build());
+
+        testTarget.start();
+        testTarget.cwLogsClient = cwLogsClient;
+        Log4jLogEvent baseLog = Log4jLogEvent.newBuilder().setLoggerName("dummy").build();
+        testTarget.append(baseLog.asBuilder().setTimeMillis(11).setMessage(new SimpleMessage("111")).build());
+        testTarget.append(baseLog.asBuilder().setTimeMillis(22).setMessage(new SimpleMessage("222")).build());
+        testTarget.append(baseLog.asBuilder().setTimeMillis(33).setMessage(new SimpleMessage("333")).build());
+
+        CloudWatchAppenderMetrics metrics = testTarget.getMetrics();
+        ObjectName objectName = metrics.getObjectName();
+        assertEquals(3L, ManagementFactory.getPlatformMBeanServer().getAttribute(objectName, "AppendedEventCount"));
+        testTarget.stop();
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(objectName));
+
+        assertEquals(3, metrics.getAppendedEventCount());
+        assertEquals(2, metrics.getBatchCount()); // maxCountPerSend=2
+        assertEquals(2, metrics.getBatchEventsMax());
+        assertEquals(3 * (3 + 26), metrics.batchBytes.getSum());
+        assertEquals(2, metrics.putLogEventsLatency.getCount());
+        assertEquals(3, metrics.getSentEventCount());
+        assertEquals(2, metrics.getRejectedEventCount()); // 各リクエストの先頭の1個
+        assertEquals(0, metrics.getDroppedEventCount());
+    }
+
+    @Test
+    void testCountRejected() {
+        assertEquals(2, CloudWatchAppender.countRejected(
+                RejectedLogEventsInfo.builder().tooOldLogEventEndIndex(2).build(), 10));
+        assertEquals(3, CloudWatchAppender.countRejected(
+                RejectedLogEventsInfo.builder().expiredLogEventEndIndex(1).tooNewLogEventStartIndex(8).build(), 10));
+        assertEquals(10, CloudWatchAppender.countRejected(
+                RejectedLogEventsInfo.builder().tooOldLogEventEndIndex(5).tooNewLogEventStartIndex(3).build(), 10));
+    }
+
+    @Test
+    void testStopDrainsInParallel() throws InterruptedException {
+        CloudWatchAppender testTarget = CloudWatchAppender.newBuilder().setName("dummy").setMaxCountPerSend(1)
+                .setMaxInFlightBatches(4).setMaxStopDelayMillis(5_000).build();
+
+        Mockito.when(cwLogsClient.putLogEvents((PutLogEventsRequest) Mockito.any())).thenAnswer(invocation -> {
+            Thread.sleep(50);
+            return PutLogEventsResponse.builder().build();
+        });
+
+        testTarget.start();
+        testTarget.cwLogsClient = cwLogsClient;
+        Log4jLogEvent baseLog = Log4jLogEvent.newBuilder().setLoggerName("dummy").build();
+        for (int i = 0; i < 20; i++) {
+            testTarget.append(baseLog.asBuilder().setTimeMillis(i).setMessage(new SimpleMessage("m" + i)).build());
+        }
+        long startNanos = System.nanoTime();
+        assertTrue(testTarget.stop(0, TimeUnit.MILLISECONDS));
+
+        // 1件ずつ順に送ると 20 * 50ms かかるが、4並列で送るため早く終わる
+        Mockito.verify(cwLogsClient, Mockito.times(20)).putLogEvents((PutLogEventsRequest) Mockito.any());
+        assertTrue(System.nanoTime() - startNanos < TimeUnit.MILLISECONDS.toNanos(20 * 50));
+    }
+
+    @Test
+    void testStopDeadline() throws InterruptedException {
+        CloudWatchAppender testTarget = CloudWatchAppender.newBuilder().setName("dummy").setMaxCountPerSend(1)
+                .setMaxInFlightBatches(1).setMaxStopDelayMillis(100).build();
+
+        Mockito.when(cwLogsClient.putLogEvents((PutLogEventsRequest) Mockito.any())).thenAnswer(invocation -> {
+            Thread.sleep(300);
+            return PutLogEventsResponse.builder().build();
+        });
+
+        testTarget.start();
+        testTarget.cwLogsClient = cwLogsClient;
+        Log4jLogEvent baseLog = Log4jLogEvent.newBuilder().setLoggerName("dummy").build();
+        for (int i = 0; i < 10; i++) {
+            testTarget.append(baseLog.asBuilder().setTimeMillis(i).setMessage(new SimpleMessage("m" + i)).build());
+        }
+        long startNanos = System.nanoTime();
+        assertFalse(testTarget.stop(0, TimeUnit.MILLISECONDS)); // 期限までに送りきれない
+
+        // 送りきれなくても maxStopDelayMillis で返る
+        assertTrue(System.nanoTime() - startNanos < TimeUnit.MILLISECONDS.toNanos(300));
+        Mockito.verify(cwLogsClient, Mockito.atMost(1)).putLogEvents((PutLogEventsRequest) Mockito.any());
+    }
+
+    @Test
+    void testStopDeadlineSpool(@TempDir Path dir) throws InterruptedException, IOException {
+        CloudWatchAppender testTarget = CloudWatchAppender.newBuilder().setName("dummy").setMaxCountPerSend(1)
+                .setMaxInFlightBatches(1).setMaxStopDelayMillis(100).setSpoolDirectory(dir.toString())
+                .setSpoolSegmentBytes(2_000_000).setSpoolMaxSegments(2).build();
+
+        Mockito.when(cwLogsClient.putLogEvents((PutLogEventsRequest) Mockito.any())).thenAnswer(invocation -> {
+            Thread.sleep(300);
+            return PutLogEventsResponse.builder().build();
+        });
+
+        testTarget.start();
+        testTarget.cwLogsClient = cwLogsClient;
+        Log4jLogEvent baseLog = Log4jLogEvent.newBuilder().setLoggerName("dummy").build();
+        for (int i = 0; i < 10; i++) {
+            testTarget.append(baseLog.asBuilder().setTimeMillis(i).setMessage(new SimpleMessage("m" + i)).build());
+        }
+        assertFalse(testTarget.stop(0, TimeUnit.MILLISECONDS)); // 期限までに送りきれない
+
+        // キューに残ったログは spool に書き、次の start() で送る。(送信中と、キューから取り出し済みのログは除く)
+        LogEventSpool spool = new LogEventSpool(dir, 2_000_000, 2, CloudWatchAppender.newDefaultLayout());
+        assertTrue(8 <= spool.getPendingCount());
+        spool.close();
+    }
+
+    @Test
+    void testBuilderInvalid() {
+        assertThrows(IllegalArgumentException.class,
+                () -> CloudWatchAppender.newBuilder().setName("dummy").setMaxCountPerSend(10_001).build());
+        assertThrows(IllegalArgumentException.class,
+                () -> CloudWatchAppender.newBuilder().setName("dummy").setMaxBytesPerSend(1_048_577).build());
+        assertThrows(IllegalArgumentException.class,
+                () -> CloudWatchAppender.newBuilder().setName("dummy").setSenderMode("Unknown").build());
+        assertThrows(IllegalArgumentException.class,
+                () -> CloudWatchAppender.newBuilder().setName("dummy").setSenderThreads(0).build());
+        assertThrows(IllegalArgumentException.class, () -> CloudWatchAppender.newBuilder().setName("dummy")
+                .setQueueType("RingBuffer").setOverflowPolicy("DropOldest").build());
+        assertThrows(IllegalArgumentException.class, () -> CloudWatchAppender.newBuilder().setName("dummy")
+                .setLogStreamName("ls-%X{tenant}").setLogStreamShards(2).build());
+        assertThrows(IllegalArgumentException.class, () -> CloudWatchAppender.newBuilder().setName("dummy")
+                .setLogStreamName("ls-%X{tenant}").setEmfNamespace("myapp").build());
+        assertThrows(IllegalArgumentException.class, () -> CloudWatchAppender.newBuilder().setName("dummy")
+                .setEmfNamespace("myapp").setEmfDimensions("Thread").build());
+        assertThrows(IllegalArgumentException.class,
+                () -> CloudWatchAppender.newBuilder().setName("dummy").setRawLogMinLevel("Unknown").build());
+        assertThrows(IllegalArgumentException.class,
+                () -> CloudWatchAppender.newBuilder().setName("dummy").setOverflowMinLevel("Unknown").build());
+        assertThrows(IllegalArgumentException.class,
+                () -> CloudWatchAppender.newBuilder().setName("dummy").setRetryBaseDelayMillis(-1).build());
+        assertThrows(IllegalArgumentException.class,
+                () -> CloudWatchAppender.newBuilder().setName("dummy").setRetryMaxDelayMillis(-1).build());
+    }
+
+    @Test
+    void testRingBuffer() throws InterruptedException {
+        CloudWatchAppender testTarget = CloudWatchAppender.newBuilder().setName("dummy").setQueueType("RingBuffer")
+                .setRetryBaseDelayMillis(1).setRetryMaxDelayMillis(10).build();
+
+        Mockito.when(cwLogsClient.putLogEvents((PutLogEventsRequest) Mockito.any()))
+                .thenReturn(PutLogEventsResponse.builder().build());
+
+        testTarget.start();
+        testTarget.cwLogsClient = cwLogsClient;
+        Log4jLogEvent baseLog = Log4jLogEvent.newBuilder().setLoggerName("dummy").build();
+        testTarget.append(baseLog.asBuilder().setTimeMillis(11).setMessage(new SimpleMessage("111")).build());
+        testTarget.append(baseLog.asBuilder().setTimeMillis(22).setMessage(new SimpleMessage("222")).build());
+        testTarget.stop();
+
+        PutLogEventsRequest req = PutLogEventsRequest.builder().logGroupName("myapp-lg").logStreamName("myapp-ls").build();
+        Mockito.verify(cwLogsClient, Mockito.times(1)).putLogEvents(
+                req.toBuilder().logEvents(newInputLogEvent(11, "111"), newInputLogEvent(22, "222")).build());
+    }
+
+    @Test
+    void testReusedLogEvent() throws InterruptedException {
+        CloudWatchAppender testTarget = CloudWatchAppender.newBuilder().setName("dummy").setQueueType("RingBuffer")
+                .setRetryBaseDelayMillis(1).setRetryMaxDelayMillis(10).build();
+
+        Mockito.when(cwLogsClient.putLogEvents((PutLogEventsRequest) Mockito.any()))
+                .thenReturn(PutLogEventsResponse.builder().build());
+
+        testTarget.start();
+        testTarget.cwLogsClient = cwLogsClient;
+        // garbage-free ロガーと同じく、LogEvent と Message を使い回す
+        MutableLogEvent reusedLog = new MutableLogEvent();
+        ReusableSimpleMessage reusedMessage = new ReusableSimpleMessage();
+        reusedLog.setLoggerName("dummy");
+        reusedLog.setTimeMillis(11);
+        reusedMessage.set("111");
+        reusedLog.setMessage(reusedMessage);
+        testTarget.append(reusedLog);
+        reusedLog.setTimeMillis(22);
+        reusedMessage.set("222");
+        reusedLog.setMessage(reusedMessage);
+        testTarget.append(reusedLog);
+        testTarget.stop();
+
+        PutLogEventsRequest req = PutLogEventsRequest.builder().logGroupName("myapp-lg").logStreamName("myapp-ls").build();
+        Mockito.verify(cwLogsClient, Mockito.times(1)).putLogEvents(
+                req.toBuilder().logEvents(newInputLogEvent(11, "111"), newInputLogEvent(22, "222")).build());
+    }
+
+    @Test
+    void testOversizedLogEventTruncate() throws InterruptedException {
+        CloudWatchAppender testTarget = CloudWatchAppender.newBuilder().setName("dummy")
+                .setOversizedLogEventPolicy("Truncate").setRetryBaseDelayMillis(1).setRetryMaxDelayMillis(10).build();
+
+        Mockito.when(cwLogsClient.putLogEvents((PutLogEventsRequest) Mockito.any()))
+                .thenReturn(PutLogEventsResponse.builder().build());
+
+        testTarget.start();
+        testTarget.cwLogsClient = cwLogsClient;
+        String message = repeat("あ", CwLogEventBatch.MAX_EVENT_MESSAGE_BYTES / 3 + 1); // 3バイト文字で上限を超える
+        testTarget.append(Log4jLogEvent.newBuilder().setTimeMillis(11).setMessage(new SimpleMessage(message))
+                .setLoggerName("dummy").build());
+        testTarget.stop();
+
+        PutLogEventsRequest req = PutLogEventsRequest.builder().logGroupName("myapp-lg").logStreamName("myapp-ls").build();
+        Mockito.verify(cwLogsClient, Mockito.times(1)).putLogEvents(req.toBuilder()
+                .logEvents(newInputLogEvent(11, repeat("あ", CwLogEventBatch.MAX_EVENT_MESSAGE_BYTES / 3))).build());
+    }
+
+    @Test
+    void testOversizedLogEventSplit() throws InterruptedException {
+        CloudWatchAppender testTarget = CloudWatchAppender.newBuilder().setName("dummy")
+                .setOversizedLogEventPolicy("Split").setRetryBaseDelayMillis(1).setRetryMaxDelayMillis(10).build();
 
         Mockito.when(cwLogsClient.putLogEvents((PutLogEventsRequest) Mockito.any()))
                 .thenReturn(PutLogEventsResponse.builder().build());
 
+        testTarget.start();
+        testTarget.cwLogsClient = cwLogsClient;
+        String message = repeat("あ", CwLogEventBatch.MAX_EVENT_MESSAGE_BYTES / 3 + 1); // 3バイト文字で上限を超える
+        testTarget.append(Log4jLogEvent.newBuilder().setTimeMillis(11).setMessage(new SimpleMessage(message))
+                .setLoggerName("dummy").build());
+        testTarget.append(Log4jLogEvent.newBuilder().setTimeMillis(22).setMessage(new SimpleMessage("222"))
+                .setLoggerName("dummy").build());
+        testTarget.stop();
+
+        // 1個目の分割でPutLogEventsの上限に達するので、残りは次のPutLogEventsになる
+        PutLogEventsRequest req = PutLogEventsRequest.builder().logGroupName("myapp-lg").logStreamName("myapp-ls").build();
+        Mockito.verify(cwLogsClient, Mockito.times(1)).putLogEvents(req.toBuilder()
+                .logEvents(newInputLogEvent(11, repeat("あ", CwLogEventBatch.MAX_EVENT_MESSAGE_BYTES / 3))).build());
+        Mockito.verify(cwLogsClient, Mockito.times(1)).putLogEvents(req.toBuilder()
+                .logEvents(newInputLogEvent(11, "あ"), newInputLogEvent(22, "222")).build());
+    }
+
+    @Test
+    void testAsyncSortAndShard() throws InterruptedException {
+        CloudWatchAppender testTarget = CloudWatchAppender.newBuilder().setName("dummy")
+                .setOversizedLogEventPolicy("Split").setSenderMode("Async").setMaxInFlightBatches(2)
+                .setLogStreamShards(2).setRetryBaseDelayMillis(1).setRetryMaxDelayMillis(10).build();
+
+        Mockito.when(cwLogsAsyncClient.putLogEvents((PutLogEventsRequest) Mockito.any()))
+                .thenReturn(CompletableFuture.completedFuture(PutLogEventsResponse.builder().build()));
+
+        testTarget.start();
+        testTarget.cwLogsClient = cwLogsClient;
+        testTarget.cwLogsAsyncClient = cwLogsAsyncClient;
         Log4jLogEvent baseLog = Log4jLogEvent.newBuilder().setLoggerName("dummy").build();
+        String message = repeat("a", CwLogEventBatch.MAX_EVENT_MESSAGE_BYTES + 1); // 分割して2回のPutLogEventsになる
+        testTarget.append(baseLog.asBuilder().setTimeMillis(33).setMessage(new SimpleMessage("333")).build());
+        testTarget.append(baseLog.asBuilder().setTimeMillis(11).setMessage(new SimpleMessage(message)).build());
+        testTarget.stop();
+
+        // 2回のPutLogEventsが2個のログストリームに振り分けられ、それぞれタイムスタンプ順に並ぶ
+        PutLogEventsRequest req = PutLogEventsRequest.builder().logGroupName("myapp-lg").build();
+        Mockito.verify(cwLogsAsyncClient, Mockito.times(1)).putLogEvents(req.toBuilder().logStreamName("myapp-ls-0")
+                .logEvents(newInputLogEvent(33, "333")).build());
+        Mockito.verify(cwLogsAsyncClient, Mockito.times(1)).putLogEvents(req.toBuilder().logStreamName("myapp-ls-1")
+                .logEvents(newInputLogEvent(11, message.substring(0, CwLogEventBatch.MAX_EVENT_MESSAGE_BYTES))).build());
+        Mockito.verify(cwLogsAsyncClient, Mockito.times(1)).putLogEvents(req.toBuilder().logStreamName("myapp-ls-0")
+                .logEvents(newInputLogEvent(11, "a")).build());
+        // 振り分け先のログストリームは、最初に送る前に1回だけ作る
+        Mockito.verify(cwLogsClient, Mockito.times(1)).createLogStream(CreateLogStreamRequest.builder()
+                .logGroupName("myapp-lg").logStreamName("myapp-ls-0").build());
+        Mockito.verify(cwLogsClient, Mockito.times(1)).createLogStream(CreateLogStreamRequest.builder()
+                .logGroupName("myapp-lg").logStreamName("myapp-ls-1").build());
+        Mockito.verifyNoMoreInteractions(cwLogsClient);
+    }
 
-        int cfgMaxSendDelay = 2000;
+    @Test
+    void testRetry() throws InterruptedException {
+        CloudWatchAppender testTarget = CloudWatchAppender.newBuilder().setName("dummy").setMaxRetryAttempts(3)
+                .setRetryBaseDelayMillis(1).setRetryMaxDelayMillis(10).build();
+
+        AwsServiceException throttling = AwsServiceException.builder().statusCode(400)
+                .awsErrorDetails(AwsErrorDetails.builder().errorCode("ThrottlingException").build()).build();
+        AwsServiceException invalidParameter = AwsServiceException.builder().statusCode(400)
+                .awsErrorDetails(AwsErrorDetails.builder().errorCode("InvalidParameterException").build()).build();
+        PutLogEventsRequest req = PutLogEventsRequest.builder().logGroupName("myapp-lg").logStreamName("myapp-ls").build();
+        PutLogEventsRequest req1 = req.toBuilder().logEvents(newInputLogEvent(11, "111")).build();
+        PutLogEventsRequest req2 = req.toBuilder().logEvents(newInputLogEvent(22, "222")).build();
+        PutLogEventsRequest req3 = req.toBuilder().logEvents(newInputLogEvent(33, "333")).build();
+        Mockito.when(cwLogsClient.putLogEvents((PutLogEventsRequest) Mockito.any()))
+                .thenReturn(PutLogEventsResponse.builder().build());
+        Mockito.when(cwLogsClient.putLogEvents(req1)).thenThrow(throttling, throttling)
+                .thenReturn(PutLogEventsResponse.builder().build());
+        Mockito.when(cwLogsClient.putLogEvents(req2)).thenThrow(invalidParameter);
+        Mockito.when(cwLogsClient.putLogEvents(req3)).thenThrow(throttling);
+
+        testTarget.start();
+        testTarget.cwLogsClient = cwLogsClient;
+        Log4jLogEvent baseLog = Log4jLogEvent.newBuilder().setLoggerName("dummy").build();
+        String message = repeat("a", CwLogEventBatch.MAX_EVENT_MESSAGE_BYTES); // 1個でPutLogEventsの上限になる
+        testTarget.append(baseLog.asBuilder().setTimeMillis(11).setMessage(new SimpleMessage("111")).build());
+        testTarget.append(baseLog.asBuilder().setTimeMillis(12).setMessage(new SimpleMessage(message)).build());
+        testTarget.append(baseLog.asBuilder().setTimeMillis(22).setMessage(new SimpleMessage("222")).build());
+        testTarget.append(baseLog.asBuilder().setTimeMillis(23).setMessage(new SimpleMessage(message)).build());
+        testTarget.append(baseLog.asBuilder().setTimeMillis(33).setMessage(new SimpleMessage("333")).build());
+        testTarget.stop();
+
+        Mockito.verify(cwLogsClient, Mockito.times(3)).putLogEvents(req1); // スロットリングは成功するまでリトライ
+        Mockito.verify(cwLogsClient, Mockito.times(1)).putLogEvents(req2); // リトライしても無駄なのでリトライしない
+        Mockito.verify(cwLogsClient, Mockito.times(3)).putLogEvents(req3); // maxRetryAttemptsで諦める
+        // 例外でログ転送スレッドが終了せず、後続のログも転送される
+        Mockito.verify(cwLogsClient, Mockito.times(1)).putLogEvents(req.toBuilder().logEvents(newInputLogEvent(12, message)).build());
+        Mockito.verify(cwLogsClient, Mockito.times(1)).putLogEvents(req.toBuilder().logEvents(newInputLogEvent(23, message)).build());
+    }
+
+    @Test
+    void testSpoolReplay(@TempDir Path dir) throws InterruptedException, IOException {
+        // 前回の終了時に送れなかったログ
+        LogEventSpool spool = new LogEventSpool(dir, 2_000_000, 2, CloudWatchAppender.newDefaultLayout());
+        spool.write(Log4jLogEvent.newBuilder().setTimeMillis(11).setMessage(new SimpleMessage("111")).build());
+        spool.close();
+
+        CloudWatchAppender testTarget = CloudWatchAppender.newBuilder().setName("dummy").setRetryBaseDelayMillis(1)
+                .setRetryMaxDelayMillis(10).setSpoolDirectory(dir.toString()).setSpoolSegmentBytes(2_000_000)
+                .setSpoolMaxSegments(2).build();
+
+        Mockito.when(cwLogsClient.putLogEvents((PutLogEventsRequest) Mockito.any()))
+                .thenReturn(PutLogEventsResponse.builder().build());
+
+        testTarget.start();
+        testTarget.cwLogsClient = cwLogsClient;
+        testTarget.append(Log4jLogEvent.newBuilder().setTimeMillis(22).setMessage(new SimpleMessage("222")).build());
+        testTarget.stop();
+
+        PutLogEventsRequest req = PutLogEventsRequest.builder().logGroupName("myapp-lg").logStreamName("myapp-ls").build();
+        Mockito.verify(cwLogsClient, Mockito.times(1)).putLogEvents(
+                req.toBuilder().logEvents(newInputLogEvent(11, "111"), newInputLogEvent(22, "222")).build());
+        // 送信済みのセグメントは削除する
+        assertFalse(new LogEventSpool(dir, 2_000_000, 2, CloudWatchAppender.newDefaultLayout()).hasPending());
+    }
+
+    @Test
+    void testWait() throws InterruptedException {
+        int cfgMaxSendDelay = 200;
+        CloudWatchAppender testTarget = CloudWatchAppender.newBuilder().setName("dummy").setRetryBaseDelayMillis(1)
+                .setRetryMaxDelayMillis(10).setMaxSendDelayMillis(cfgMaxSendDelay).build();
+
+        Mockito.when(cwLogsClient.putLogEvents((PutLogEventsRequest) Mockito.any()))
+                .thenReturn(PutLogEventsResponse.builder().build());
+
+        Log4jLogEvent baseLog = Log4jLogEvent.newBuilder().setLoggerName("dummy").build();
 
         testTarget.start();
         testTarget.cwLogsClient = cwLogsClient;
@@ -80,12 +520,13 @@ class CloudWatchAppenderTest {
         testTarget.append(log1);
         testTarget.append(baseLog.asBuilder().setTimeMillis(22).setMessage(new SimpleMessage("222")).build());
         testTarget.append(baseLog.asBuilder().setTimeMillis(33).setMessage(new SimpleMessage("333")).build());
-        Thread.sleep(cfgMaxSendDelay + 1);
+        PutLogEventsRequest req = PutLogEventsRequest.builder().logGroupName("myapp-lg").logStreamName("myapp-ls")
+                .build();
+        // maxSendDelayMillis の経過で送られるのを待つ。(Thread.sleep() だと、444 が先に append() される場合がある)
+        Mockito.verify(cwLogsClient, Mockito.timeout(cfgMaxSendDelay * 3)).putLogEvents((PutLogEventsRequest) Mockito.any());
         testTarget.append(baseLog.asBuilder().setTimeMillis(44).setMessage(new SimpleMessage("444")).build());
         testTarget.stop();
 
-        PutLogEventsRequest req = PutLogEventsRequest.builder().logGroupName("myapp-lg").logStreamName("myapp-ls")
-                .build();
         Mockito.verify(cwLogsClient, Mockito.times(1)).putLogEvents(req.toBuilder()
                 .logEvents(newInputLogEvent(11, "111"), newInputLogEvent(22, "222"), newInputLogEvent(33, "333"))
                 .build());
@@ -94,6 +535,111 @@ class CloudWatchAppenderTest {
                 .build());
     }
 
+    @Test
+    void testRouting() throws InterruptedException {
+        CloudWatchAppender testTarget = CloudWatchAppender.newBuilder().setName("dummy")
+                .setLogStreamName("ls-%X{tenant}").setRetryBaseDelayMillis(1).setRetryMaxDelayMillis(10).build();
+
+        Mockito.when(cwLogsClient.putLogEvents((PutLogEventsRequest) Mockito.any()))
+                .thenReturn(PutLogEventsResponse.builder().build());
+
+        testTarget.start();
+        testTarget.cwLogsClient = cwLogsClient;
+        testTarget.append(newTenantLogEvent(11, "111", "t1"));
+        testTarget.append(newTenantLogEvent(22, "222", "t2"));
+        testTarget.append(newTenantLogEvent(33, "333", "t1"));
+        assertTrue(testTarget.stop(0, TimeUnit.MILLISECONDS));
+
+        // 送信先ごとに別のバッチで送り、ログストリームは最初の1回だけ作る
+        // (stop() の後は溜まったログから送るので、ls-t1 は1回で送るとは限らない。送信先ごとの SenderLane が並行して送るので、順序も比べない)
+        ArgumentCaptor<PutLogEventsRequest> captor = ArgumentCaptor.forClass(PutLogEventsRequest.class);
+        Mockito.verify(cwLogsClient, Mockito.atLeast(2)).putLogEvents(captor.capture());
+        Map<String, List<InputLogEvent>> sent = new TreeMap<>();
+        for (PutLogEventsRequest req : captor.getAllValues()) {
+            assertEquals("myapp-lg", req.logGroupName());
+            sent.computeIfAbsent(req.logStreamName(), k -> new ArrayList<>()).addAll(req.logEvents());
+        }
+        sent.values().forEach(events -> events.sort(Comparator.comparing(InputLogEvent::timestamp)));
+        assertEquals(Arrays.asList(newInputLogEvent(11, "111"), newInputLogEvent(33, "333")), sent.get("ls-t1"));
+        assertEquals(Arrays.asList(newInputLogEvent(22, "222")), sent.get("ls-t2"));
+        Mockito.verify(cwLogsClient, Mockito.times(1)).createLogStream(
+                CreateLogStreamRequest.builder().logGroupName("myapp-lg").logStreamName("ls-t1").build());
+        Mockito.verify(cwLogsClient, Mockito.times(1)).createLogStream(
+                CreateLogStreamRequest.builder().logGroupName("myapp-lg").logStreamName("ls-t2").build());
+    }
+
+    @Test
+    void testRoutingMaxLogStreams() throws InterruptedException {
+        CloudWatchAppender testTarget = CloudWatchAppender.newBuilder().setName("dummy")
+                .setLogStreamName("ls-%X{tenant}").setMaxLogStreams(1).build();
+
+        Mockito.when(cwLogsClient.putLogEvents((PutLogEventsRequest) Mockito.any()))
+                .thenReturn(PutLogEventsResponse.builder().build());
+
+        testTarget.start();
+        testTarget.cwLogsClient = cwLogsClient;
+        testTarget.append(newTenantLogEvent(11, "111", "t1"));
+        testTarget.append(newTenantLogEvent(22, "222", "t2")); // maxLogStreams を超えたので捨てる
+        testTarget.stop(0, TimeUnit.MILLISECONDS);
+
+        Mockito.verify(cwLogsClient, Mockito.times(1)).putLogEvents((PutLogEventsRequest) Mockito.any());
+        assertEquals(1, testTarget.getMetrics().getDroppedEventCount());
+    }
+
+    @Test
+    void testEmfMetrics() throws InterruptedException {
+        CloudWatchAppender testTarget = CloudWatchAppender.newBuilder().setName("dummy").setEmfNamespace("myapp")
+                .setEmfFields("elapsedMs").setEmfLogStreamName("ls-emf").setRawLogMinLevel("WARN").build();
+
+        Mockito.when(cwLogsClient.putLogEvents((PutLogEventsRequest) Mockito.any()))
+                .thenReturn(PutLogEventsResponse.builder().build());
+
+        testTarget.start();
+        testTarget.cwLogsClient = cwLogsClient;
+        Log4jLogEvent baseLog = Log4jLogEvent.newBuilder().setLoggerName("dummy").build();
+        testTarget.append(baseLog.asBuilder().setTimeMillis(11).setLevel(Level.INFO)
+                .setMessage(new SimpleMessage("111")).build());
+        testTarget.append(baseLog.asBuilder().setTimeMillis(22).setLevel(Level.INFO)
+                .setMessage(new SimpleMessage("222")).build());
+        testTarget.append(baseLog.asBuilder().setTimeMillis(33).setLevel(Level.WARN)
+                .setMessage(new SimpleMessage("333")).build());
+        assertTrue(testTarget.stop(0, TimeUnit.MILLISECONDS));
+
+        // INFO は件数だけを数え、WARN 以上だけをログとして送る。集計は stop() で送る
+        ArgumentCaptor<PutLogEventsRequest> captor = ArgumentCaptor.forClass(PutLogEventsRequest.class);
+        Mockito.verify(cwLogsClient, Mockito.times(2)).putLogEvents(captor.capture());
+        Map<String, List<String>> sent = new TreeMap<>();
+        for (PutLogEventsRequest req : captor.getAllValues()) {
+            for (InputLogEvent event : req.logEvents()) {
+                sent.computeIfAbsent(req.logStreamName(), k -> new ArrayList<>()).add(event.message());
+            }
+        }
+        assertEquals(Arrays.asList("333"), sent.get("myapp-ls"));
+        List<String> documents = sent.get("ls-emf");
+        assertEquals(2, documents.size());
+        assertTrue(documents.stream().anyMatch(d -> d.endsWith(",\"Level\":\"INFO\",\"Count\":2}")), documents.toString());
+        assertTrue(documents.stream().anyMatch(d -> d.endsWith(",\"Level\":\"WARN\",\"Count\":1}")), documents.toString());
+        Mockito.verify(cwLogsClient, Mockito.times(1)).createLogStream(
+                CreateLogStreamRequest.builder().logGroupName("myapp-lg").logStreamName("ls-emf").build());
+        assertEquals(3, testTarget.getMetrics().getSentEventCount());
+        assertEquals(0, testTarget.getMetrics().getEmfDroppedEventCount());
+    }
+
+    LogEvent newTenantLogEvent(long timeMillis, String message, String tenant) {
+        SortedArrayStringMap contextData = new SortedArrayStringMap();
+        contextData.putValue("tenant", tenant);
+        return Log4jLogEvent.newBuilder().setTimeMillis(timeMillis).setMessage(new SimpleMessage(message))
+                .setLoggerName("dummy").setContextData(contextData).build();
+    }
+
+    String repeat(String s, int count) {
+        StringBuilder sb = new StringBuilder(s.length() * count);
+        for (int i = 0; i < count; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
     InputLogEvent newInputLogEvent(long timestamp, String message) {
         return InputLogEvent.builder().timestamp(timestamp).message(message).build();
     }
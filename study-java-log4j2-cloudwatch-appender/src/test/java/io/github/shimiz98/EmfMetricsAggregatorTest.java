@@ -0,0 +1,122 @@
+// SPDX-FileCopyrightText: 2025 shimiz98
+// SPDX-License-Identifier: MIT
+package io.github.shimiz98;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.MarkerManager;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.message.StringMapMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.junit.jupiter.api.Test;
+
+class EmfMetricsAggregatorTest {
+
+    @Test
+    void testFlush() {
+        EmfMetricsAggregator testTarget = new EmfMetricsAggregator("myapp", "Level, Logger", "elapsedMs", 10);
+        testTarget.record(newLogEvent(Level.ERROR, "a.B", new SimpleMessage("x"), "10"));
+        testTarget.record(newLogEvent(Level.ERROR, "a.B", new StringMapMessage().with("elapsedMs", "30"), null));
+        testTarget.record(newLogEvent(Level.ERROR, "a.B", new SimpleMessage("x"), "abc")); // 数値でなければ数だけ数える
+
+        List<String> documents = testTarget.flush(1_000);
+        assertEquals(1, documents.size());
+        assertEquals("{\"_aws\":{\"Timestamp\":1000,\"CloudWatchMetrics\":[{\"Namespace\":\"myapp\","
+                + "\"Dimensions\":[[\"Level\",\"Logger\"]],\"Metrics\":[{\"Name\":\"Count\",\"Unit\":\"Count\"},"
+                + "{\"Name\":\"elapsedMsCount\",\"Unit\":\"Count\"},{\"Name\":\"elapsedMsSum\"},"
+                + "{\"Name\":\"elapsedMsMax\"},{\"Name\":\"elapsedMsP50\"},{\"Name\":\"elapsedMsP99\"}]}]},"
+                + "\"Level\":\"ERROR\",\"Logger\":\"a.B\",\"Count\":3,\"elapsedMsCount\":2,\"elapsedMsSum\":40,"
+                + "\"elapsedMsMax\":30,\"elapsedMsP50\":15,\"elapsedMsP99\":30}", documents.get(0));
+
+        // 送った分は数えない。ログが無かった系列は出力しない
+        assertTrue(testTarget.flush(2_000).isEmpty());
+        testTarget.record(newLogEvent(Level.ERROR, "a.B", new SimpleMessage("x"), null));
+        assertEquals("{\"_aws\":{\"Timestamp\":3000,\"CloudWatchMetrics\":[{\"Namespace\":\"myapp\","
+                + "\"Dimensions\":[[\"Level\",\"Logger\"]],\"Metrics\":[{\"Name\":\"Count\",\"Unit\":\"Count\"}]}]},"
+                + "\"Level\":\"ERROR\",\"Logger\":\"a.B\",\"Count\":1}", testTarget.flush(3_000).get(0));
+    }
+
+    @Test
+    void testSeries() {
+        EmfMetricsAggregator testTarget = new EmfMetricsAggregator("myapp", "Marker", "", 2);
+        testTarget.record(newLogEvent(Level.INFO, "a", new SimpleMessage("x"), null));
+        LogEvent audit = Log4jLogEvent.newBuilder().setLevel(Level.INFO).setLoggerName("a")
+                .setMarker(MarkerManager.getMarker("AUDIT")).setMessage(new SimpleMessage("x")).build();
+        testTarget.record(audit);
+        testTarget.record(audit);
+        testTarget.record(Log4jLogEvent.newBuilder().setLevel(Level.INFO).setLoggerName("a")
+                .setMarker(MarkerManager.getMarker("OTHER")).setMessage(new SimpleMessage("x")).build());
+        assertEquals(2, testTarget.size());
+        assertEquals(1, testTarget.getDroppedEventCount()); // maxSeries を超えた
+
+        List<String> documents = testTarget.flush(1_000);
+        assertEquals(2, documents.size());
+        assertTrue(documents.stream().anyMatch(d -> d.endsWith(",\"Marker\":\"None\",\"Count\":1}")));
+        assertTrue(documents.stream().anyMatch(d -> d.endsWith(",\"Marker\":\"AUDIT\",\"Count\":2}")));
+    }
+
+    @Test
+    void testEvict() {
+        EmfMetricsAggregator testTarget = new EmfMetricsAggregator("myapp", "Logger", "", 2);
+        testTarget.record(newLogEvent(Level.INFO, "a", new SimpleMessage("x"), null));
+        testTarget.record(newLogEvent(Level.INFO, "b", new SimpleMessage("x"), null));
+        testTarget.record(newLogEvent(Level.INFO, "c", new SimpleMessage("x"), null));
+        assertEquals(1, testTarget.getDroppedEventCount());
+        assertEquals(2, testTarget.flush(1_000).size());
+
+        // flush() の間隔の間にログが無かった系列は削除する
+        testTarget.record(newLogEvent(Level.INFO, "a", new SimpleMessage("x"), null));
+        assertEquals(1, testTarget.flush(2_000).size());
+        assertEquals(1, testTarget.size()); // "b" を削除した
+        testTarget.record(newLogEvent(Level.INFO, "c", new SimpleMessage("x"), null)); // 空いたので数える
+        List<String> documents = testTarget.flush(3_000);
+        assertEquals(1, documents.size());
+        assertTrue(documents.get(0).endsWith(",\"Logger\":\"c\",\"Count\":1}"), documents.get(0));
+        assertEquals(1, testTarget.size()); // "a" も削除した
+        assertEquals(1, testTarget.getDroppedEventCount());
+    }
+
+    @Test
+    void testValueOf() {
+        assertEquals(12, EmfMetricsAggregator.valueOf(newLogEvent(Level.INFO, "a", new SimpleMessage("x"), " 12 "), "elapsedMs"));
+        assertEquals(13, EmfMetricsAggregator.valueOf(newLogEvent(Level.INFO, "a", new SimpleMessage("x"), "12.5"), "elapsedMs"));
+        assertEquals(Long.MIN_VALUE, EmfMetricsAggregator.valueOf(newLogEvent(Level.INFO, "a", new SimpleMessage("x"), "NaN"), "elapsedMs"));
+        assertEquals(Long.MIN_VALUE, EmfMetricsAggregator.valueOf(newLogEvent(Level.INFO, "a", new SimpleMessage("x"), null), "elapsedMs"));
+    }
+
+    @Test
+    void testAppendString() {
+        assertEquals("\"a\\\"b\\\\c\\u000a\"", EmfMetricsAggregator.appendString(new StringBuilder(), "a\"b\\c\n").toString());
+    }
+
+    @Test
+    void testInvalid() {
+        assertThrows(IllegalArgumentException.class, () -> new EmfMetricsAggregator(null, "Level", "", 10));
+        assertThrows(IllegalArgumentException.class, () -> new EmfMetricsAggregator("myapp", "Thread", "", 10));
+        assertThrows(IllegalArgumentException.class, () -> new EmfMetricsAggregator("myapp", "Level,Level", "", 10));
+        assertThrows(IllegalArgumentException.class, () -> new EmfMetricsAggregator("myapp", "Level", "Count", 10));
+        assertThrows(IllegalArgumentException.class, () -> new EmfMetricsAggregator("myapp", "Level", "Level", 10));
+        StringBuilder fields = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            fields.append("f").append(i).append(',');
+        }
+        assertThrows(IllegalArgumentException.class, () -> new EmfMetricsAggregator("myapp", "", fields.toString(), 10));
+    }
+
+    LogEvent newLogEvent(Level level, String loggerName, Message message, String elapsedMs) {
+        SortedArrayStringMap contextData = new SortedArrayStringMap();
+        if (elapsedMs != null) {
+            contextData.putValue("elapsedMs", elapsedMs);
+        }
+        return Log4jLogEvent.newBuilder().setLevel(level).setLoggerName(loggerName).setMessage(message)
+                .setContextData(contextData).build();
+    }
+}
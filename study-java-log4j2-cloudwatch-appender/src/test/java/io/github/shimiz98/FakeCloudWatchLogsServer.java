@@ -0,0 +1,288 @@
+// SPDX-FileCopyrightText: 2025 shimiz98
+// SPDX-License-Identifier: MIT
+package io.github.shimiz98;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.layout.template.json.util.JsonReader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * CloudWatch Logs の代わりに PutLogEvents を受け取る、ローカルの HTTP サーバ。(テストと負荷試験用)
+ * <ul>
+ *   <li>AWS JSON 1.1 プロトコルの X-Amz-Target ヘッダで操作を判定する。署名は検証しない。
+ *   <li>PutLogEvents, CreateLogStream, CreateLogGroup だけに応答する。ログストリームが無くても PutLogEvents は受け付ける。
+ *   <li>障害の注入: 応答の遅延(latencyMillis)、ThrottlingException(throttlePercent)、
+ *       ServiceUnavailableException(serverErrorPercent)、rejectedLogEventsInfo(tooOldLogEventEndIndex)。
+ *       failNext() で、次の n 回だけ確実に失敗させることもできる。
+ *   <li>メッセージに "sentNanoTime=数字" を含むログは、受け取るまでの時間(配達遅延)を deliveryLatency に記録する。
+ *       同じ JVM の中で System.nanoTime() を比べるので、appender と同じプロセスで動かすこと。
+ * </ul>
+ * 使用例: endpointUrl に getEndpointUrl() を指定し、system property の aws.accessKeyId と aws.secretAccessKey にダミーを設定する。
+ */
+class FakeCloudWatchLogsServer implements AutoCloseable {
+    static final String SENT_NANO_TIME = "sentNanoTime=";
+    private static final String TARGET_PREFIX = "Logs_20140328.";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private volatile long latencyMillis;
+    private volatile int throttlePercent;
+    private volatile int serverErrorPercent;
+    private volatile int tooOldLogEventEndIndex;
+    private volatile boolean keepEvents = true;
+    private final AtomicInteger failNextCount = new AtomicInteger();
+    private volatile int failNextStatusCode;
+    private volatile String failNextErrorType;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder throttledRequests = new LongAdder();
+    private final LongAdder failedRequests = new LongAdder();
+    private final LongAdder receivedEvents = new LongAdder(); // 受け付けたログの数。rejected は含めない
+    private final LongAdder rejectedEvents = new LongAdder();
+    final LongHistogram deliveryLatency = new LongHistogram();
+    private final Map<String, List<String>> events = new ConcurrentHashMap<>(); // ログストリーム名 → メッセージ
+    private final Set<String> logStreams = ConcurrentHashMap.newKeySet();
+
+    FakeCloudWatchLogsServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        // latencyMillis の間も他のリクエストを受けられるよう、スレッドプールで処理する
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, FakeCloudWatchLogsServer.class.getName());
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    String getEndpointUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    // ===== 障害の注入 =====
+    FakeCloudWatchLogsServer setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+        return this;
+    }
+
+    FakeCloudWatchLogsServer setThrottlePercent(int throttlePercent) {
+        this.throttlePercent = throttlePercent;
+        return this;
+    }
+
+    FakeCloudWatchLogsServer setServerErrorPercent(int serverErrorPercent) {
+        this.serverErrorPercent = serverErrorPercent;
+        return this;
+    }
+
+    /** 0 より大きければ、PutLogEvents ごとに先頭から tooOldLogEventEndIndex 個を古すぎるとして受け付けない */
+    FakeCloudWatchLogsServer setTooOldLogEventEndIndex(int tooOldLogEventEndIndex) {
+        this.tooOldLogEventEndIndex = tooOldLogEventEndIndex;
+        return this;
+    }
+
+    /** false なら受け取ったメッセージを保持しない。(負荷試験でメモリを使いすぎないため) */
+    FakeCloudWatchLogsServer setKeepEvents(boolean keepEvents) {
+        this.keepEvents = keepEvents;
+        return this;
+    }
+
+    /**
+     * 次の count 回の PutLogEvents を失敗させる。
+     *
+     * @param errorType 例: "ThrottlingException"(400), "ServiceUnavailableException"(503), "InvalidParameterException"(400)
+     */
+    void failNext(int count, int statusCode, String errorType) {
+        this.failNextStatusCode = statusCode;
+        this.failNextErrorType = errorType;
+        this.failNextCount.set(count);
+    }
+
+    // ===== 結果 =====
+    long getRequestCount() {
+        return requests.sum();
+    }
+
+    long getThrottledRequestCount() {
+        return throttledRequests.sum();
+    }
+
+    long getFailedRequestCount() {
+        return failedRequests.sum();
+    }
+
+    long getReceivedEventCount() {
+        return receivedEvents.sum();
+    }
+
+    long getRejectedEventCount() {
+        return rejectedEvents.sum();
+    }
+
+    /** ログストリームごとの、受け付けたメッセージ。受け取った順に並ぶ */
+    List<String> getMessages(String logStreamName) {
+        List<String> list = events.get(logStreamName);
+        if (list == null) {
+            return Collections.emptyList();
+        }
+        synchronized (list) {
+            return new ArrayList<>(list);
+        }
+    }
+
+    Set<String> getLogStreams() {
+        return logStreams;
+    }
+
+    // ===== 内部処理 =====
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String target = exchange.getRequestHeaders().getFirst("X-Amz-Target");
+            String body = new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8);
+            if (0 < latencyMillis) {
+                TimeUnit.MILLISECONDS.sleep(latencyMillis);
+            }
+            if ((TARGET_PREFIX + "PutLogEvents").equals(target)) {
+                putLogEvents(exchange, body);
+            } else if ((TARGET_PREFIX + "CreateLogStream").equals(target)) {
+                Map<?, ?> req = (Map<?, ?>) JsonReader.read(body);
+                if (logStreams.add(req.get("logGroupName") + ":" + req.get("logStreamName"))) {
+                    respond(exchange, 200, "{}");
+                } else {
+                    respondError(exchange, 400, "ResourceAlreadyExistsException");
+                }
+            } else if ((TARGET_PREFIX + "CreateLogGroup").equals(target)) {
+                respond(exchange, 200, "{}");
+            } else {
+                respondError(exchange, 400, "UnknownOperationException");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void putLogEvents(HttpExchange exchange, String body) throws IOException {
+        requests.increment();
+        if (0 < failNextCount.getAndUpdate(n -> 0 < n ? n - 1 : 0)) {
+            failedRequests.increment();
+            respondError(exchange, failNextStatusCode, failNextErrorType);
+            return;
+        }
+        int random = ThreadLocalRandom.current().nextInt(100);
+        if (random < throttlePercent) {
+            throttledRequests.increment();
+            respondError(exchange, 400, "ThrottlingException");
+            return;
+        }
+        if (random < throttlePercent + serverErrorPercent) {
+            failedRequests.increment();
+            respondError(exchange, 503, "ServiceUnavailableException");
+            return;
+        }
+        long nowNanos = System.nanoTime();
+        Map<?, ?> req = (Map<?, ?>) JsonReader.read(body);
+        List<?> logEvents = (List<?>) req.get("logEvents");
+        int tooOld = Math.min(tooOldLogEventEndIndex, logEvents.size());
+        List<String> list = keepEvents
+                ? events.computeIfAbsent((String) req.get("logStreamName"), k -> new ArrayList<>())
+                : null;
+        // JsonReader の配列は LinkedList なので、get(i) ではなく順に読む
+        int i = 0;
+        for (Object logEvent : logEvents) {
+            if (i++ < tooOld) {
+                continue;
+            }
+            String message = (String) ((Map<?, ?>) logEvent).get("message");
+            long sentNanoTime = parseSentNanoTime(message);
+            if (0 <= sentNanoTime) {
+                deliveryLatency.record(nowNanos - sentNanoTime);
+            }
+            if (list != null) {
+                synchronized (list) {
+                    list.add(message);
+                }
+            }
+        }
+        receivedEvents.add(logEvents.size() - tooOld);
+        rejectedEvents.add(tooOld);
+        respond(exchange, 200, 0 < tooOld
+                ? "{\"rejectedLogEventsInfo\":{\"tooOldLogEventEndIndex\":" + tooOld + "}}"
+                : "{}");
+    }
+
+    /**
+     * @return "sentNanoTime=数字" の数字。無ければ -1
+     */
+    static long parseSentNanoTime(String message) {
+        int start = message.indexOf(SENT_NANO_TIME);
+        if (start < 0) {
+            return -1;
+        }
+        start += SENT_NANO_TIME.length();
+        int end = start;
+        if (end < message.length() && message.charAt(end) == '-') {
+            end++; // System.nanoTime() は負の値のこともある
+        }
+        while (end < message.length() && Character.isDigit(message.charAt(end))) {
+            end++;
+        }
+        try {
+            return Long.parseLong(message.substring(start, end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void respondError(HttpExchange exchange, int statusCode, String errorType) throws IOException {
+        exchange.getResponseHeaders().add("x-amzn-ErrorType", errorType);
+        respond(exchange, statusCode, "{\"__type\":\"" + errorType + "\",\"message\":\"" + errorType + "\"}");
+    }
+
+    private static void respond(HttpExchange exchange, int statusCode, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/x-amz-json-1.1");
+        exchange.sendResponseHeaders(statusCode, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        for (int n; 0 < (n = in.read(buf)); /* nop */) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,65 @@
+// SPDX-FileCopyrightText: 2025 shimiz98
+// SPDX-License-Identifier: MIT
+package io.github.shimiz98;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import software.amazon.awssdk.services.cloudwatchlogs.model.InputLogEvent;
+
+class LogEventAggregatorTest {
+    private static final String STACK_TRACE = "java.lang.RuntimeException: boom\n\tat a.B.c(B.java:1)\n\tat a.B.d(B.java:2)";
+
+    @Test
+    void testRepeat() {
+        LogEventAggregator testTarget = new LogEventAggregator(1_000, 1_000);
+        List<InputLogEvent> actual = testTarget.aggregate(Arrays.asList(newInputLogEvent(10, "health"),
+                newInputLogEvent(11, "other"), newInputLogEvent(20, "health"), newInputLogEvent(30, "health")));
+        assertEquals(Arrays.asList(newInputLogEvent(10, "health [repeated 3 times in 20ms]"),
+                newInputLogEvent(11, "other")), actual);
+    }
+
+    @Test
+    void testWindow() {
+        LogEventAggregator testTarget = new LogEventAggregator(100, 1_000);
+        List<InputLogEvent> actual = testTarget.aggregate(Arrays.asList(newInputLogEvent(0, "health"),
+                newInputLogEvent(99, "health"), newInputLogEvent(100, "health")));
+        // 100ms 以上離れたログは、別にまとめる
+        assertEquals(Arrays.asList(newInputLogEvent(0, "health [repeated 2 times in 99ms]"),
+                newInputLogEvent(100, "health")), actual);
+    }
+
+    @Test
+    void testTooLong() {
+        LogEventAggregator testTarget = new LogEventAggregator(1_000, 70);
+        List<InputLogEvent> events = Arrays.asList(newInputLogEvent(0, "0123456789"),
+                newInputLogEvent(1, "0123456789"));
+        assertEquals(events, testTarget.aggregate(events));
+    }
+
+    @Test
+    void testStackTrace() {
+        LogEventAggregator testTarget = new LogEventAggregator(1_000, 1_000);
+        String fingerprint = LogEventAggregator.fingerprint(STACK_TRACE,
+                STACK_TRACE.indexOf(LogEventAggregator.STACK_TRACE_START));
+        List<InputLogEvent> actual = testTarget.aggregate(Arrays.asList(newInputLogEvent(0, "error 1\n" + STACK_TRACE),
+                newInputLogEvent(1, "error 2\n" + STACK_TRACE)));
+        assertEquals(Arrays.asList(newInputLogEvent(0, "error 1\n" + STACK_TRACE), newInputLogEvent(1,
+                "error 2\njava.lang.RuntimeException: boom\n\t[stack trace " + fingerprint + " omitted]")), actual);
+
+        // バッチをまたいでも、最初の1個だけスタックトレースを全部送る
+        actual = testTarget.aggregate(Arrays.asList(newInputLogEvent(2, "error 3\n" + STACK_TRACE)));
+        assertEquals(Arrays.asList(newInputLogEvent(2,
+                "error 3\njava.lang.RuntimeException: boom\n\t[stack trace " + fingerprint + " omitted]")), actual);
+        actual = testTarget.aggregate(Arrays.asList(newInputLogEvent(1_000, "error 4\n" + STACK_TRACE)));
+        assertEquals(Arrays.asList(newInputLogEvent(1_000, "error 4\n" + STACK_TRACE)), actual);
+    }
+
+    static InputLogEvent newInputLogEvent(long timestamp, String message) {
+        return InputLogEvent.builder().timestamp(timestamp).message(message).build();
+    }
+}
@@ -0,0 +1,120 @@
+// SPDX-FileCopyrightText: 2025 shimiz98
+// SPDX-License-Identifier: MIT
+package io.github.shimiz98;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.jupiter.api.Test;
+
+class LogEventOverflowPolicyTest {
+    private static final Layout<?> LAYOUT = CloudWatchAppender.newDefaultLayout();
+
+    @Test
+    void testDropNewest() throws InterruptedException {
+        LogEventQueue queue = newFullQueue("111");
+        LogEventOverflowPolicy testTarget = new LogEventOverflowPolicy("DropNewest", 1_000, null, 0);
+        assertFalse(testTarget.overflow(newLogEvent(Level.ERROR, "222"), queue));
+        assertEquals("111", queue.poll(0, TimeUnit.NANOSECONDS).getMessageString());
+        assertEquals(1, testTarget.getOverflowCount());
+        assertEquals(1, testTarget.getDroppedNewestCount());
+    }
+
+    @Test
+    void testBlock() throws InterruptedException {
+        LogEventQueue queue = newFullQueue("111");
+        LogEventOverflowPolicy testTarget = new LogEventOverflowPolicy("Block", 10_000, null, 0);
+        Thread consumer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+                queue.poll(0, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        consumer.start();
+        assertTrue(testTarget.overflow(newLogEvent(Level.INFO, "222"), queue)); // 空くまで待つ
+        assertEquals(1, testTarget.getBlockedCount());
+        consumer.join();
+
+        testTarget = new LogEventOverflowPolicy("Block", 10, null, 0);
+        assertFalse(testTarget.overflow(newLogEvent(Level.INFO, "333"), queue)); // タイムアウト
+        assertEquals(1, testTarget.getDroppedNewestCount());
+    }
+
+    @Test
+    void testDropOldest() throws InterruptedException {
+        LogEventQueue queue = newFullQueue("111");
+        LogEventOverflowPolicy testTarget = new LogEventOverflowPolicy("DropOldest", 1_000, null, 0);
+        assertTrue(testTarget.overflow(newLogEvent(Level.INFO, "222"), queue));
+        assertEquals("222", queue.poll(0, TimeUnit.NANOSECONDS).getMessageString());
+        assertEquals(1, testTarget.getDroppedOldestCount());
+
+        RingBufferLogEventQueue ringBuffer = new RingBufferLogEventQueue(2, LAYOUT);
+        assertThrows(UnsupportedOperationException.class, () -> ringBuffer.discardOldest());
+    }
+
+    @Test
+    void testDropOldestKeepsStopSenderThread() throws InterruptedException {
+        LogEventQueue queue = new ArrayBlockingLogEventQueue(1, LAYOUT);
+        queue.offer(CloudWatchAppender.STOP_SENDER_THREAD_LOG_EVENT);
+        LogEventOverflowPolicy testTarget = new LogEventOverflowPolicy("DropOldest", 1_000, null, 0);
+        assertFalse(testTarget.overflow(newLogEvent(Level.INFO, "222"), queue));
+        assertTrue(queue.poll(0, TimeUnit.NANOSECONDS).isStopSenderThread());
+    }
+
+    @Test
+    void testDropBelowLevel() throws InterruptedException {
+        LogEventQueue queue = newFullQueue("111");
+        LogEventOverflowPolicy testTarget = new LogEventOverflowPolicy("DropBelowLevel", 10, Level.WARN, 0);
+        assertFalse(testTarget.overflow(newLogEvent(Level.INFO, "222"), queue));
+        assertEquals(1, testTarget.getDroppedBelowLevelCount());
+        assertEquals(0, testTarget.getDroppedNewestCount());
+        assertFalse(testTarget.overflow(newLogEvent(Level.WARN, "333"), queue)); // WARN は待つが、タイムアウト
+        assertEquals(1, testTarget.getDroppedBelowLevelCount());
+        assertEquals(1, testTarget.getDroppedNewestCount());
+        assertEquals(2, testTarget.getDroppedCount());
+    }
+
+    @Test
+    void testSample() {
+        LogEventQueue queue = newFullQueue("111");
+        LogEventOverflowPolicy testTarget = new LogEventOverflowPolicy("Sample", 0, null, 0);
+        for (int i = 0; i < 100; i++) {
+            assertFalse(testTarget.overflow(newLogEvent(Level.INFO, "222"), queue));
+        }
+        assertEquals(100, testTarget.getSampledOutCount());
+
+        testTarget = new LogEventOverflowPolicy("Sample", 0, null, 100);
+        assertFalse(testTarget.overflow(newLogEvent(Level.INFO, "222"), queue)); // 待つが、タイムアウト
+        assertEquals(0, testTarget.getSampledOutCount());
+        assertEquals(1, testTarget.getDroppedNewestCount());
+    }
+
+    @Test
+    void testInvalid() {
+        assertThrows(IllegalArgumentException.class, () -> new LogEventOverflowPolicy("Unknown", 0, null, 0));
+        assertThrows(IllegalArgumentException.class, () -> new LogEventOverflowPolicy("Sample", 0, null, 101));
+        assertThrows(IllegalArgumentException.class, () -> new LogEventOverflowPolicy("Block", -1, null, 0));
+    }
+
+    LogEventQueue newFullQueue(String message) {
+        LogEventQueue queue = new ArrayBlockingLogEventQueue(1, LAYOUT);
+        assertTrue(queue.offer(newLogEvent(Level.INFO, message)));
+        return queue;
+    }
+
+    LogEvent newLogEvent(Level level, String message) {
+        return Log4jLogEvent.newBuilder().setLevel(level).setMessage(new SimpleMessage(message))
+                .setLoggerName("dummy").build();
+    }
+}
@@ -0,0 +1,102 @@
+// SPDX-FileCopyrightText: 2025 shimiz98
+// SPDX-License-Identifier: MIT
+package io.github.shimiz98;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.DefaultConfiguration;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.layout.template.json.JsonTemplateLayout;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.jupiter.api.Test;
+
+class LogEventSnapshotTest {
+
+    @Test
+    void testDefaultLayout() {
+        LogEventSnapshot testTarget = new LogEventSnapshot(CloudWatchAppender.newDefaultLayout());
+        testTarget.set(newLogEvent(11, "ログ出力 hello"));
+
+        assertEquals(11, testTarget.getTimeMillis());
+        assertEquals("ログ出力 hello", testTarget.getMessageString());
+        // 日本語は UTF-8 で1文字3バイト
+        assertEquals(4 * 3 + 6, testTarget.getMessageLength());
+    }
+
+    @Test
+    void testPatternLayout() {
+        PatternLayout layout = PatternLayout.newBuilder().withPattern("%p %c - %m")
+                .withCharset(StandardCharsets.UTF_8).build();
+        LogEventSnapshot testTarget = new LogEventSnapshot(layout);
+        testTarget.set(newLogEvent(11, "111"));
+
+        assertEquals("INFO dummy - 111", testTarget.getMessageString());
+    }
+
+    @Test
+    void testJsonTemplateLayout() {
+        JsonTemplateLayout layout = JsonTemplateLayout.newBuilder()
+                .setConfiguration(new DefaultConfiguration())
+                .setEventTemplate("{\"level\": {\"$resolver\": \"level\", \"field\": \"name\"},"
+                        + " \"message\": {\"$resolver\": \"message\", \"stringified\": true}}")
+                .build();
+        LogEventSnapshot testTarget = new LogEventSnapshot(layout);
+        testTarget.set(newLogEvent(11, "日本語"));
+
+        assertEquals("{\"level\":\"INFO\",\"message\":\"日本語\"}", testTarget.getMessageString().trim());
+    }
+
+    @Test
+    void testBufferGrowsAndShrinks() {
+        LogEventSnapshot testTarget = new LogEventSnapshot(CloudWatchAppender.newDefaultLayout());
+        StringBuilder longMessage = new StringBuilder();
+        for (int i = 0; i < 100_000; i++) {
+            longMessage.append('あ');
+        }
+        testTarget.set(newLogEvent(11, longMessage.toString()));
+        assertEquals(300_000, testTarget.getMessageLength());
+        assertEquals(longMessage.toString(), testTarget.getMessageString());
+
+        testTarget.set(newLogEvent(22, "222"));
+        assertEquals("222", testTarget.getMessageString());
+        assertTrue(testTarget.getByteBuffer().capacity() < 300_000);
+    }
+
+    @Test
+    void testBufferIsReusedUpToMaxBytes() {
+        LogEventSnapshot testTarget = new LogEventSnapshot(CloudWatchAppender.newDefaultLayout());
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < 1_000; i++) {
+            message.append('a');
+        }
+        // 初期サイズより大きく、DEFAULT_MAX_BUFFER_BYTES 以下なら、拡張した ByteBuffer を使い回す
+        testTarget.set(newLogEvent(11, message.toString()));
+        ByteBuffer grown = testTarget.getByteBuffer();
+        assertTrue(LogEventSnapshot.DEFAULT_INITIAL_BUFFER_BYTES < grown.capacity());
+        testTarget.set(newLogEvent(22, message.toString()));
+        assertSame(grown, testTarget.getByteBuffer());
+        assertEquals(message.toString(), testTarget.getMessageString());
+    }
+
+    @Test
+    void testStopSenderThread() {
+        LogEventSnapshot testTarget = new LogEventSnapshot(CloudWatchAppender.newDefaultLayout());
+        testTarget.set(CloudWatchAppender.STOP_SENDER_THREAD_LOG_EVENT);
+
+        assertTrue(testTarget.isStopSenderThread());
+        assertEquals(0, testTarget.getMessageLength());
+    }
+
+    LogEvent newLogEvent(long timeMillis, String message) {
+        return Log4jLogEvent.newBuilder().setLoggerName("dummy").setLevel(Level.INFO).setTimeMillis(timeMillis)
+                .setMessage(new SimpleMessage(message)).build();
+    }
+}
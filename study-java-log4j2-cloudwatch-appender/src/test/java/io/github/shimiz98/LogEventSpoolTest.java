@@ -0,0 +1,209 @@
+// SPDX-FileCopyrightText: 2025 shimiz98
+// SPDX-License-Identifier: MIT
+package io.github.shimiz98;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class LogEventSpoolTest {
+    private static final Layout<?> LAYOUT = CloudWatchAppender.newDefaultLayout();
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void testWriteAndRead() throws IOException {
+        LogEventSpool testTarget = new LogEventSpool(dir, 1024, 2, LAYOUT);
+        LogEventSnapshot snapshot = new LogEventSnapshot(LAYOUT);
+        assertFalse(testTarget.hasPending());
+        assertFalse(testTarget.read(snapshot));
+
+        assertTrue(testTarget.write(newLogEvent(11, "111")));
+        assertTrue(testTarget.write(newLogEvent(22, "あいう")));
+        assertEquals(2, testTarget.getPendingCount());
+
+        assertTrue(testTarget.read(snapshot));
+        assertEquals(11, snapshot.getTimeMillis());
+        assertEquals("111", snapshot.getMessageString());
+        assertTrue(testTarget.read(snapshot));
+        assertEquals(22, snapshot.getTimeMillis());
+        assertEquals("あいう", snapshot.getMessageString());
+        assertFalse(testTarget.read(snapshot));
+        assertFalse(testTarget.hasPending());
+        testTarget.close();
+    }
+
+    @Test
+    void testSegmentRollAndFull() throws IOException {
+        // ヘッダ16バイト + (14 + 100) バイトのレコードが2個入る
+        LogEventSpool testTarget = new LogEventSpool(dir, 16 + 114 * 2, 2, LAYOUT);
+        LogEventSnapshot snapshot = new LogEventSnapshot(LAYOUT);
+        String message = repeat("a", 100);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(testTarget.write(newLogEvent(i, message)));
+        }
+        assertEquals(2, countSegments());
+        assertFalse(testTarget.write(newLogEvent(4, message))); // 満杯
+        assertFalse(testTarget.write(newLogEvent(5, repeat("a", 16 + 114 * 2)))); // 1個のセグメントに入らない
+
+        List<LogEventSpool.Record> records = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(testTarget.read(snapshot));
+            records.add(snapshot.getSpoolRecord());
+        }
+        assertEquals(2, snapshot.getTimeMillis());
+        sent(testTarget, records); // 読み終えた1個目のセグメントは削除する
+        assertEquals(1, countSegments());
+        assertTrue(testTarget.write(newLogEvent(6, message)));
+        assertEquals(2, countSegments());
+        testTarget.close();
+    }
+
+    @Test
+    void testDestination() throws IOException {
+        LogRouter router = new LogRouter("lg", "ls-%m", 10);
+        LogEventSpool testTarget = new LogEventSpool(dir, 1024, 2, LAYOUT, router);
+        LogEventSnapshot snapshot = new LogEventSnapshot(LAYOUT);
+        assertTrue(testTarget.write(newLogEvent(11, "111")));
+        testTarget.close();
+
+        // 次の start() で、送信先も復元する
+        testTarget = new LogEventSpool(dir, 1024, 2, LAYOUT, router);
+        assertTrue(testTarget.read(snapshot));
+        assertEquals("111", snapshot.getMessageString());
+        assertEquals("ls-111", snapshot.getDestination().logStreamName);
+        assertSame(router.route(newLogEvent(22, "111")), snapshot.getDestination());
+        testTarget.close();
+    }
+
+    @Test
+    void testReplay() throws IOException {
+        LogEventSpool first = new LogEventSpool(dir, 1024, 2, LAYOUT);
+        LogEventSnapshot snapshot = new LogEventSnapshot(LAYOUT);
+        first.write(newLogEvent(11, "111"));
+        first.write(newLogEvent(22, "222"));
+        first.write(newLogEvent(33, "333"));
+        assertTrue(first.read(snapshot));
+        sent(first, Arrays.asList(snapshot.getSpoolRecord())); // 111 は送信済み
+        assertTrue(first.read(snapshot)); // 222 は送信済みにしていないので再送する
+        first.close();
+
+        LogEventSpool testTarget = new LogEventSpool(dir, 1024, 2, LAYOUT);
+        assertEquals(2, testTarget.getPendingCount());
+        assertTrue(testTarget.write(newLogEvent(44, "444"))); // 新しいセグメントに書く
+        assertEquals(2, countSegments());
+        List<LogEventSpool.Record> records = new ArrayList<>();
+        assertTrue(testTarget.read(snapshot));
+        assertEquals("222", snapshot.getMessageString());
+        records.add(snapshot.getSpoolRecord());
+        assertTrue(testTarget.read(snapshot));
+        assertEquals("333", snapshot.getMessageString());
+        records.add(snapshot.getSpoolRecord());
+        assertTrue(testTarget.read(snapshot));
+        assertEquals("444", snapshot.getMessageString());
+        records.add(snapshot.getSpoolRecord());
+        assertFalse(testTarget.read(snapshot));
+        sent(testTarget, records);
+        assertEquals(1, countSegments());
+        testTarget.close();
+    }
+
+    @Test
+    void testAcknowledge() throws IOException {
+        LogEventSpool testTarget = new LogEventSpool(dir, 1024, 2, LAYOUT);
+        LogEventSnapshot snapshot = new LogEventSnapshot(LAYOUT);
+        testTarget.write(newLogEvent(11, "111"));
+        testTarget.write(newLogEvent(22, "222"));
+        testTarget.write(newLogEvent(33, "333"));
+        assertTrue(testTarget.read(snapshot));
+        List<LogEventSpool.Record> batch1 = Collections.singletonList(snapshot.getSpoolRecord());
+        assertTrue(testTarget.read(snapshot));
+        List<LogEventSpool.Record> batch2 = Collections.singletonList(snapshot.getSpoolRecord());
+        testTarget.sending(batch1, false);
+        testTarget.sending(batch2, false);
+
+        // 先に送り終えても、前のバッチが送信中なら送信済みの位置は進めない
+        testTarget.acknowledge(batch2, true);
+        assertEquals(3, committedCount());
+        // 失敗したら、送信済みの位置まで戻って読み直す
+        testTarget.acknowledge(batch1, false);
+        assertTrue(testTarget.hasPending());
+        assertTrue(testTarget.read(snapshot));
+        assertEquals("111", snapshot.getMessageString());
+        sent(testTarget, Collections.singletonList(snapshot.getSpoolRecord()));
+        assertEquals(2, committedCount());
+        testTarget.acknowledge(batch2, true); // 戻る前に読んだレコードは無視する
+        assertEquals(2, committedCount());
+        assertTrue(testTarget.read(snapshot));
+        assertEquals("222", snapshot.getMessageString());
+        testTarget.close();
+    }
+
+    @Test
+    void testAcknowledgeSplitRecord() throws IOException {
+        LogEventSpool testTarget = new LogEventSpool(dir, 1024, 2, LAYOUT);
+        LogEventSnapshot snapshot = new LogEventSnapshot(LAYOUT);
+        testTarget.write(newLogEvent(11, "111"));
+        assertTrue(testTarget.read(snapshot));
+        // 分割したログを2個のバッチで送る。両方とも送り終えたら送信済みにする
+        List<LogEventSpool.Record> records = Collections.singletonList(snapshot.getSpoolRecord());
+        testTarget.sending(records, true);
+        testTarget.sending(records, false);
+        testTarget.acknowledge(records, true);
+        assertEquals(1, committedCount());
+        testTarget.acknowledge(records, true);
+        assertEquals(0, committedCount());
+        testTarget.close();
+    }
+
+    /** 送信に成功したバッチとして扱う */
+    void sent(LogEventSpool spool, List<LogEventSpool.Record> records) {
+        spool.sending(records, false);
+        spool.acknowledge(records, true);
+    }
+
+    /** ファイルに書いた送信済みの位置から開き直した時 (次の start()) の未送信の件数 */
+    long committedCount() throws IOException {
+        LogEventSpool spool = new LogEventSpool(dir, 1024, 2, LAYOUT);
+        long count = spool.getPendingCount();
+        spool.close();
+        return count;
+    }
+
+    long countSegments() throws IOException {
+        try (Stream<Path> s = Files.list(dir)) {
+            return s.count();
+        }
+    }
+
+    LogEvent newLogEvent(long timeMillis, String message) {
+        return Log4jLogEvent.newBuilder().setTimeMillis(timeMillis).setMessage(new SimpleMessage(message))
+                .setLoggerName("dummy").build();
+    }
+
+    String repeat(String s, int count) {
+        StringBuilder sb = new StringBuilder(s.length() * count);
+        for (int i = 0; i < count; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+}
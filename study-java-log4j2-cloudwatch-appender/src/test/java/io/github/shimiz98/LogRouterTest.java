@@ -0,0 +1,79 @@
+// SPDX-FileCopyrightText: 2025 shimiz98
+// SPDX-License-Identifier: MIT
+package io.github.shimiz98;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.junit.jupiter.api.Test;
+
+class LogRouterTest {
+
+    @Test
+    void testRoute() {
+        assertTrue(LogRouter.isPattern("ls-%X{tenant}"));
+        assertFalse(LogRouter.isPattern("ls"));
+
+        LogRouter testTarget = new LogRouter("lg-%level", "ls-%X{tenant}", 10);
+        LogDestination destination = testTarget.route(newLogEvent(Level.INFO, "t1"));
+        assertEquals("lg-INFO", destination.logGroupName);
+        assertEquals("ls-t1", destination.logStreamName);
+        assertSame(destination, testTarget.route(newLogEvent(Level.INFO, "t1"))); // キャッシュする
+        assertEquals("ls-t2", testTarget.route(newLogEvent(Level.INFO, "t2")).logStreamName);
+        assertSame(destination, testTarget.destinationOf(destination.key));
+        assertEquals(2, testTarget.size());
+
+        // 置き換える前の名前が違っても、置き換えた後が同じなら同じ送信先
+        LogDestination t3 = testTarget.route(newLogEvent(Level.INFO, "t:3"));
+        assertEquals("ls-t_3", t3.logStreamName);
+        assertSame(t3, testTarget.route(newLogEvent(Level.INFO, "t*3")));
+        assertSame(t3, testTarget.route(newLogEvent(Level.INFO, "t:3")));
+        assertEquals(3, testTarget.size());
+        // "\n" を含む MDC でも、LogEventSpool に書いた key から同じ送信先に戻せる
+        LogDestination t4 = testTarget.route(newLogEvent(Level.INFO, "t\n4"));
+        assertEquals("ls-t_4", t4.logStreamName);
+        assertSame(t4, testTarget.destinationOf(t4.key));
+    }
+
+    @Test
+    void testMaxDestinations() {
+        LogRouter testTarget = new LogRouter("lg", "ls-%X{tenant}", 2);
+        LogDestination t1 = testTarget.route(newLogEvent(Level.INFO, "t1"));
+        testTarget.route(newLogEvent(Level.INFO, "t2"));
+        assertNull(testTarget.route(newLogEvent(Level.INFO, "t3")));
+        assertSame(t1, testTarget.route(newLogEvent(Level.INFO, "t1"))); // 既存の送信先には振り分ける
+    }
+
+    @Test
+    void testSanitize() {
+        assertEquals("a_b_c/d#e.f-g", LogRouter.sanitizeLogGroupName("a b:c/d#e.f-g"));
+        assertEquals("_", LogRouter.sanitizeLogGroupName(""));
+        assertEquals("a_b_c d", LogRouter.sanitizeLogStreamName("a:b*c d"));
+        assertEquals("a_b", LogRouter.sanitizeLogStreamName("a\nb")); // LogDestination.key の区切り
+        assertEquals("_", LogRouter.sanitizeLogStreamName(""));
+        assertEquals(LogRouter.MAX_NAME_LENGTH, LogRouter.sanitizeLogStreamName(repeat("a", 600)).length());
+    }
+
+    LogEvent newLogEvent(Level level, String tenant) {
+        SortedArrayStringMap contextData = new SortedArrayStringMap();
+        contextData.putValue("tenant", tenant);
+        return Log4jLogEvent.newBuilder().setLevel(level).setMessage(new SimpleMessage("111"))
+                .setLoggerName("dummy").setContextData(contextData).build();
+    }
+
+    String repeat(String s, int count) {
+        StringBuilder sb = new StringBuilder(s.length() * count);
+        for (int i = 0; i < count; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+}
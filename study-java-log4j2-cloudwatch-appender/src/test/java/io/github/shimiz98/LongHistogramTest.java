@@ -0,0 +1,54 @@
+// SPDX-FileCopyrightText: 2025 shimiz98
+// SPDX-License-Identifier: MIT
+package io.github.shimiz98;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+class LongHistogramTest {
+
+    @Test
+    void testBucketIndex() {
+        assertEquals(0, LongHistogram.bucketIndex(-1));
+        assertEquals(0, LongHistogram.bucketIndex(0));
+        assertEquals(1, LongHistogram.bucketIndex(1));
+        assertEquals(2, LongHistogram.bucketIndex(2));
+        assertEquals(2, LongHistogram.bucketIndex(3));
+        assertEquals(3, LongHistogram.bucketIndex(4));
+        assertEquals(63, LongHistogram.bucketIndex(Long.MAX_VALUE));
+    }
+
+    @Test
+    void testPercentile() {
+        LongHistogram testTarget = new LongHistogram();
+        assertEquals(0, testTarget.getPercentile(99));
+        for (int i = 1; i <= 100; i++) {
+            testTarget.record(i);
+        }
+        assertEquals(100, testTarget.getCount());
+        assertEquals(5050, testTarget.getSum());
+        assertEquals(50.5, testTarget.getMean());
+        assertEquals(100, testTarget.getMax());
+        assertEquals(63, testTarget.getPercentile(50)); // 50 は 32〜63 のバケット
+        assertEquals(100, testTarget.getPercentile(99)); // 99 は 64〜127 のバケットだが、最大値を超えない
+    }
+
+    @Test
+    void testDrain() {
+        LongHistogram testTarget = new LongHistogram();
+        testTarget.record(10);
+        testTarget.record(20);
+        LongHistogram drained = testTarget.drain();
+        assertEquals(2, drained.getCount());
+        assertEquals(30, drained.getSum());
+        assertEquals(20, drained.getMax());
+        assertEquals(20, drained.getPercentile(99));
+        assertEquals(0, testTarget.getCount());
+        assertEquals(0, testTarget.getMax());
+
+        testTarget.record(5);
+        assertEquals(1, testTarget.drain().getCount());
+        assertEquals(2, drained.getCount()); // 移した後の値は変わらない
+    }
+}
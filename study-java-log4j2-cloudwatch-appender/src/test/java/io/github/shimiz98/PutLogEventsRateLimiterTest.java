@@ -0,0 +1,42 @@
+// SPDX-FileCopyrightText: 2025 shimiz98
+// SPDX-License-Identifier: MIT
+package io.github.shimiz98;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class PutLogEventsRateLimiterTest {
+
+    @Test
+    void testRequestsPerSecond() {
+        PutLogEventsRateLimiter testTarget = new PutLogEventsRateLimiter(10, 0);
+        // 1秒分(10回)まではバーストで待たない
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, testTarget.reserve(100));
+        }
+        long wait = testTarget.reserve(100);
+        assertTrue(TimeUnit.MILLISECONDS.toNanos(50) < wait && wait <= TimeUnit.MILLISECONDS.toNanos(100), "wait=" + wait);
+    }
+
+    @Test
+    void testBytesPerSecond() {
+        PutLogEventsRateLimiter testTarget = new PutLogEventsRateLimiter(0, 1_000);
+        assertEquals(0, testTarget.reserve(1_000));
+        long wait = testTarget.reserve(500);
+        assertTrue(TimeUnit.MILLISECONDS.toNanos(400) < wait && wait <= TimeUnit.MILLISECONDS.toNanos(500), "wait=" + wait);
+    }
+
+    @Test
+    void testShared() {
+        assertSame(PutLogEventsRateLimiter.UNLIMITED, PutLogEventsRateLimiter.shared("test-region-0", 0, 0));
+        PutLogEventsRateLimiter rateLimiter1 = PutLogEventsRateLimiter.shared("test-region-1", 10, 0);
+        assertSame(rateLimiter1, PutLogEventsRateLimiter.shared("test-region-1", 10, 0));
+        assertNotSame(rateLimiter1, PutLogEventsRateLimiter.shared("test-region-2", 10, 0));
+    }
+}
@@ -0,0 +1,60 @@
+// SPDX-FileCopyrightText: 2025 shimiz98
+// SPDX-License-Identifier: MIT
+package io.github.shimiz98;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.exception.SdkClientException;
+
+class PutLogEventsRetryPolicyTest {
+
+    @Test
+    void testIsRetryable() {
+        assertTrue(PutLogEventsRetryPolicy.isRetryable(newAwsServiceException(400, "ThrottlingException")));
+        assertTrue(PutLogEventsRetryPolicy.isRetryable(newAwsServiceException(503, "ServiceUnavailableException")));
+        assertTrue(PutLogEventsRetryPolicy.isRetryable(newAwsServiceException(500, "InternalFailure")));
+        assertTrue(PutLogEventsRetryPolicy.isRetryable(SdkClientException.create("connection reset")));
+        assertTrue(PutLogEventsRetryPolicy
+                .isRetryable(new CompletionException(newAwsServiceException(400, "ThrottlingException"))));
+
+        assertFalse(PutLogEventsRetryPolicy.isRetryable(newAwsServiceException(400, "InvalidParameterException")));
+        assertFalse(PutLogEventsRetryPolicy.isRetryable(newAwsServiceException(400, "ResourceNotFoundException")));
+        assertFalse(PutLogEventsRetryPolicy.isRetryable(new IllegalStateException()));
+    }
+
+    @Test
+    void testShouldRetry() {
+        PutLogEventsRetryPolicy testTarget = new PutLogEventsRetryPolicy(3, 100, 1_000);
+        AwsServiceException throttling = newAwsServiceException(400, "ThrottlingException");
+
+        assertTrue(testTarget.shouldRetry(throttling, 1));
+        assertTrue(testTarget.shouldRetry(throttling, 2));
+        assertFalse(testTarget.shouldRetry(throttling, 3));
+    }
+
+    @Test
+    void testDelayNanos() {
+        PutLogEventsRetryPolicy testTarget = new PutLogEventsRetryPolicy(100, 100, 1_000);
+        for (int i = 0; i < 1_000; i++) {
+            long delay1 = testTarget.delayNanos(1);
+            assertTrue(0 <= delay1 && delay1 <= TimeUnit.MILLISECONDS.toNanos(100));
+            long delay3 = testTarget.delayNanos(3);
+            assertTrue(0 <= delay3 && delay3 <= TimeUnit.MILLISECONDS.toNanos(400));
+            long delay99 = testTarget.delayNanos(99); // 上限で頭打ち
+            assertTrue(0 <= delay99 && delay99 <= TimeUnit.MILLISECONDS.toNanos(1_000));
+        }
+    }
+
+    AwsServiceException newAwsServiceException(int statusCode, String errorCode) {
+        return AwsServiceException.builder().statusCode(statusCode)
+                .awsErrorDetails(AwsErrorDetails.builder().errorCode(errorCode).build()).build();
+    }
+}
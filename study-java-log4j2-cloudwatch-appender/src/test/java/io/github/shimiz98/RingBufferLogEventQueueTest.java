@@ -0,0 +1,144 @@
+// SPDX-FileCopyrightText: 2025 shimiz98
+// SPDX-License-Identifier: MIT
+package io.github.shimiz98;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+class RingBufferLogEventQueueTest {
+    private static final Layout<?> LAYOUT = CloudWatchAppender.newDefaultLayout();
+
+    @Test
+    void testCapacity() {
+        assertEquals(2, new RingBufferLogEventQueue(1, LAYOUT).capacity());
+        assertEquals(4, new RingBufferLogEventQueue(3, LAYOUT).capacity());
+        assertEquals(1024, new RingBufferLogEventQueue(999, LAYOUT).capacity());
+        assertEquals(1024, new RingBufferLogEventQueue(1024, LAYOUT).capacity());
+        assertThrows(IllegalArgumentException.class, () -> new RingBufferLogEventQueue(0, LAYOUT));
+    }
+
+    @Test
+    void testOfferAndPoll() throws InterruptedException {
+        RingBufferLogEventQueue testTarget = new RingBufferLogEventQueue(2, LAYOUT);
+        assertTrue(testTarget.offer(newLogEvent("111")));
+        assertTrue(testTarget.offer(newLogEvent("222")));
+        assertFalse(testTarget.offer(newLogEvent("333"))); // 満杯
+        assertEquals(2, testTarget.size());
+
+        assertEquals("111", testTarget.poll(0, TimeUnit.NANOSECONDS).getMessageString());
+        assertEquals("222", testTarget.poll(0, TimeUnit.NANOSECONDS).getMessageString());
+        assertNull(testTarget.poll(1, TimeUnit.MILLISECONDS)); // 空
+        assertEquals(0, testTarget.size());
+    }
+
+    @Test
+    void testPollWakesUpOnOffer() throws InterruptedException {
+        RingBufferLogEventQueue testTarget = new RingBufferLogEventQueue(4, LAYOUT);
+        LogEvent log1 = newLogEvent("111");
+        Thread producer = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            testTarget.offer(log1);
+        });
+        producer.start();
+        assertEquals("111", testTarget.poll(10, TimeUnit.SECONDS).getMessageString());
+        producer.join();
+    }
+
+    @Test
+    void testSlotIsReused() throws InterruptedException {
+        RingBufferLogEventQueue testTarget = new RingBufferLogEventQueue(2, LAYOUT);
+
+        assertTrue(testTarget.offer(newLogEvent("111")));
+        assertTrue(testTarget.offer(newLogEvent("222")));
+        LogEventSnapshot snapshot1 = testTarget.poll(0, TimeUnit.NANOSECONDS);
+        assertFalse(testTarget.offer(newLogEvent("333"))); // poll()したスロットは次のpoll()まで空きに戻らない
+        assertEquals("111", snapshot1.getMessageString());
+
+        assertEquals("222", testTarget.poll(0, TimeUnit.NANOSECONDS).getMessageString());
+        assertTrue(testTarget.offer(newLogEvent("333")));
+        assertSame(snapshot1, testTarget.poll(0, TimeUnit.NANOSECONDS));
+        assertEquals("333", snapshot1.getMessageString());
+    }
+
+    @Test
+    void testOfferFailure() throws InterruptedException {
+        LogEvent failure = newLogEvent("encode failure");
+        Layout<?> layout = Mockito.mock(Layout.class);
+        Mockito.doAnswer(invocation -> {
+            LogEvent event = invocation.getArgument(0);
+            if (event == failure) {
+                throw new IllegalStateException("encode failure");
+            }
+            LAYOUT.encode(event, invocation.getArgument(1));
+            return null;
+        }).when(layout).encode(Mockito.any(), Mockito.any());
+        RingBufferLogEventQueue testTarget = new RingBufferLogEventQueue(2, layout);
+
+        assertTrue(testTarget.offer(newLogEvent("111")));
+        assertThrows(IllegalStateException.class, () -> testTarget.offer(failure));
+        assertFalse(testTarget.offer(newLogEvent("222"))); // 失敗したスロットも、読み飛ばすまでは空かない
+
+        assertEquals("111", testTarget.poll(0, TimeUnit.NANOSECONDS).getMessageString());
+        assertNull(testTarget.poll(0, TimeUnit.NANOSECONDS)); // 失敗したスロットは読み飛ばす
+        assertTrue(testTarget.offer(newLogEvent("222")));
+        assertTrue(testTarget.offer(newLogEvent("333")));
+        assertEquals("222", testTarget.poll(0, TimeUnit.NANOSECONDS).getMessageString());
+        assertEquals("333", testTarget.poll(0, TimeUnit.NANOSECONDS).getMessageString());
+    }
+
+    @Test
+    void testMultiProducer() throws InterruptedException {
+        final int producerCount = 8;
+        final int eventCountPerProducer = 10_000;
+        RingBufferLogEventQueue testTarget = new RingBufferLogEventQueue(64, LAYOUT);
+        LogEvent log1 = newLogEvent("111");
+        CountDownLatch startLatch = new CountDownLatch(1);
+        Thread[] producers = new Thread[producerCount];
+        for (int p = 0; p < producerCount; p++) {
+            producers[p] = new Thread(() -> {
+                try {
+                    startLatch.await();
+                    for (int i = 0; i < eventCountPerProducer; i++) {
+                        assertTrue(testTarget.offer(log1, 10, TimeUnit.SECONDS));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            producers[p].start();
+        }
+        startLatch.countDown();
+
+        int count = 0;
+        while (count < producerCount * eventCountPerProducer) {
+            assertEquals("111", testTarget.poll(10, TimeUnit.SECONDS).getMessageString());
+            count++;
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        assertNull(testTarget.poll(0, TimeUnit.NANOSECONDS));
+    }
+
+    LogEvent newLogEvent(String message) {
+        return Log4jLogEvent.newBuilder().setLoggerName("dummy").setMessage(new SimpleMessage(message)).build();
+    }
+}
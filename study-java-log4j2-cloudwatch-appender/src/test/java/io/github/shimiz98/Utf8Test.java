@@ -0,0 +1,31 @@
+// SPDX-FileCopyrightText: 2025 shimiz98
+// SPDX-License-Identifier: MIT
+package io.github.shimiz98;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class Utf8Test {
+
+    @ParameterizedTest
+    @ValueSource(strings = { "", "abc", "ログ出力", "é", "😀 emoji", "\uD83D unpaired", "mixed あaé😀" })
+    void testEncodedLength(String s) {
+        assertEquals(s.getBytes(StandardCharsets.UTF_8).length, Utf8.encodedLength(s));
+    }
+
+    @Test
+    void testChunkEnd() {
+        byte[] bytes = "aあい".getBytes(StandardCharsets.UTF_8); // 1 + 3 + 3 バイト
+        assertEquals(7, Utf8.chunkEnd(bytes, 0, 7, 7));
+        assertEquals(4, Utf8.chunkEnd(bytes, 0, 7, 6)); // "い" の途中では切らない
+        assertEquals(4, Utf8.chunkEnd(bytes, 0, 7, 4));
+        assertEquals(1, Utf8.chunkEnd(bytes, 0, 7, 3));
+        assertEquals(7, Utf8.chunkEnd(bytes, 4, 7, 3));
+        assertEquals(4, Utf8.chunkEnd(bytes, 1, 7, 2)); // 1文字が上限を超える場合も1文字は含める
+    }
+}
@@ -0,0 +1,113 @@
+package myapp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * 生成した AbcdeReqJsonCodec と、ObjectMapper の Bean へのバインド(リフレクション)で、AbcdeReq の JSON の読み書きを比べる。
+ * <p>
+ * 実行例: mvn -Pjmh test-compile exec:exec -Djmh.args="AbcdeReqJsonCodecBenchmark -prof gc"
+ * <ul>
+ *   <li>どちらも同じ JsonFactory で作った JsonParser/JsonGenerator で、byte[] から読み、byte[] に書く。(違いはバインドだけ)
+ *   <li>@Setup で、両方が同じ JSON を書き、同じ AbcdeReq を読むことを確かめる。
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AbcdeReqJsonCodecBenchmark {
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final JsonFactory jsonFactory = objectMapper.getFactory();
+    private AbcdeReq payload;
+    private byte[] json;
+
+    @Setup
+    public void setUp() throws IOException {
+        payload = newPayload();
+        json = objectMapper.writeValueAsBytes(payload);
+        if (!Arrays.equals(json, codecWrite())) {
+            throw new IllegalStateException("write: " + new String(json) + " " + new String(codecWrite()));
+        }
+        if (!payload.equals(codecRead()) || !payload.equals(reflectiveRead())) {
+            throw new IllegalStateException("read: " + payload + " " + codecRead() + " " + reflectiveRead());
+        }
+    }
+
+    @Benchmark
+    public AbcdeReq codecRead() throws IOException {
+        try (JsonParser parser = jsonFactory.createParser(json)) {
+            return AbcdeReqJsonCodec.read(parser);
+        }
+    }
+
+    @Benchmark
+    public AbcdeReq reflectiveRead() throws IOException {
+        try (JsonParser parser = jsonFactory.createParser(json)) {
+            return objectMapper.readValue(parser, AbcdeReq.class);
+        }
+    }
+
+    @Benchmark
+    public byte[] codecWrite() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(json == null ? 512 : json.length);
+        try (JsonGenerator generator = jsonFactory.createGenerator(out)) {
+            AbcdeReqJsonCodec.write(generator, payload);
+        }
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] reflectiveWrite() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(json == null ? 512 : json.length);
+        try (JsonGenerator generator = jsonFactory.createGenerator(out)) {
+            objectMapper.writeValue(generator, payload);
+        }
+        return out.toByteArray();
+    }
+
+    static AbcdeReq newPayload() {
+        AbcdeReq req = new AbcdeReq();
+        AbcdeReq.kyotsuBu kyotsuBu = req.new kyotsuBu();
+        AbcdeReq.kyotsuBu.ifInfo ifInfo = kyotsuBu.new ifInfo();
+        ifInfo.setIfSeq("0000000001");
+        kyotsuBu.setIfInfo(ifInfo);
+        req.setKyotsuBu(kyotsuBu);
+
+        AbcdeReq.kobetsuBu kobetsuBu = req.new kobetsuBu();
+        AbcdeReq.kobetsuBu.keiyakushaInfo keiyakushaInfo = kobetsuBu.new keiyakushaInfo();
+        keiyakushaInfo.setJyushoCode("131010001");
+        keiyakushaInfo.setBanchi1("1");
+        keiyakushaInfo.setBanchi2("2");
+        keiyakushaInfo.setBanchi3("3");
+        kobetsuBu.setKeiyakushaInfo(keiyakushaInfo);
+        AbcdeReq.kobetsuBu.sekyusakiInfo sekyusakiInfo = kobetsuBu.new sekyusakiInfo();
+        sekyusakiInfo.setJyushoCode("271000001");
+        sekyusakiInfo.setBanchi1("10");
+        sekyusakiInfo.setBanchi2("20");
+        sekyusakiInfo.setBanchi3(null);
+        kobetsuBu.setSekyusakiInfo(sekyusakiInfo);
+        req.setKobetsuBu(kobetsuBu);
+        return req;
+    }
+}
@@ -0,0 +1,107 @@
+package myapp;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.javaparser.ast.CompilationUnit;
+
+import myapp.ApiParamBeanGenerator.ApiEndpointInfo;
+import myapp.ApiParamBeanGenerator.GeneratedSource;
+import myapp.ApiParamBeanGenerator.ParamBeanAst;
+
+/**
+ * ApiParamBeanGenerator の生成を段階ごとに測る。どの段階が大きな仕様書の生成を遅くしているかを見るため、
+ * また、段階ごとの遅れに気付くため。
+ * <p>
+ * 実行例: mvn -Pjmh test-compile exec:exec -Djmh.args="ApiParamBeanGeneratorBenchmark -prof gc"
+ * <ul>
+ *   <li>read: Excel の読み込み。(--reader streaming)
+ *   <li>buildParamBean: Deque に積んだクラスへフィールドを加えて、Bean の AST を作る。
+ *   <li>buildCompilationUnits: Bean のクラスの一覧から、codec と validator の AST を作る。
+ *   <li>print: 3つの CompilationUnit.toString()。
+ *   <li>generate: read から print まで。(Main が Excel 1つごとに呼ぶもの)
+ * </ul>
+ * 各段階の入力は @Setup で前の段階まで済ませたものを使う。AST は作るたびに新しいので、同じ入力を何度使ってもよい。
+ * Excel はリクエストの行数が rows、入れ子の深さが depth。(SpecWorkbooks.write())
+ * rows=100000 は1回の生成に数分かかり、既定の回数では数時間になるので、既定の rows には入れていない。
+ * 測る場合は、回数も減らして別に実行する: -Djmh.args="ApiParamBeanGeneratorBenchmark -p rows=100000 -wi 1 -i 2"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ApiParamBeanGeneratorBenchmark {
+    @Param({ "100", "1000", "10000" })
+    public int rows;
+
+    @Param({ "2", "10" })
+    public int depth;
+
+    private Path inputExcelFile;
+    private ApiParamBeanGenerator generator;
+    private ApiEndpointInfo apiEndpointInfo;
+    private ParamBeanAst paramBean;
+    private List<CompilationUnit> compilationUnits;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        inputExcelFile = Files.createTempFile(ApiParamBeanGeneratorBenchmark.class.getSimpleName(), ".xlsx");
+        SpecWorkbooks.write(inputExcelFile, rows, depth, 0);
+        generator = new ApiParamBeanGenerator(inputExcelFile.resolveSibling("unused"));
+        apiEndpointInfo = generator.read(inputExcelFile);
+        if (apiEndpointInfo.request.size() != rows) {
+            throw new IllegalStateException("rows: expect=" + rows + " actual=" + apiEndpointInfo.request.size());
+        }
+        paramBean = generator.buildParamBean(apiEndpointInfo);
+        compilationUnits = generator.buildCompilationUnits(paramBean);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(inputExcelFile);
+    }
+
+    @Benchmark
+    public ApiEndpointInfo read() {
+        return generator.read(inputExcelFile);
+    }
+
+    @Benchmark
+    public ParamBeanAst buildParamBean() {
+        return generator.buildParamBean(apiEndpointInfo);
+    }
+
+    @Benchmark
+    public List<CompilationUnit> buildCompilationUnits() {
+        return generator.buildCompilationUnits(paramBean);
+    }
+
+    @Benchmark
+    public List<GeneratedSource> print() {
+        return generator.print(compilationUnits);
+    }
+
+    @Benchmark
+    public List<GeneratedSource> generate() {
+        return generator.generate(inputExcelFile);
+    }
+}
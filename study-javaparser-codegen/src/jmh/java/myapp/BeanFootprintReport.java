@@ -0,0 +1,165 @@
+package myapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.openjdk.jol.info.GraphLayout;
+
+import myapp.ApiParamBeanGenerator.GeneratedSource;
+
+/**
+ * --class-style ごとに、深く入れ子になったリクエストの Bean のヒープ上の大きさを JOL で比べる。
+ * <p>
+ * 実行例: mvn -Pjmh test-compile exec:exec -Djmh.main=myapp.BeanFootprintReport -Djmh.args="10 2"
+ * (引数は入れ子の深さと、各階層の string の数)
+ * <ul>
+ *   <li>スタイルごとに、合成した Excel から Bean を生成してコンパイルし、すべての階層に値を入れたインスタンスを1つ作る。
+ *   <li>string の値はすべて同じインスタンスなので、違いはオブジェクトのヘッダ、参照、(inner なら)外側のインスタンスへの参照。
+ * </ul>
+ */
+public class BeanFootprintReport {
+    public static void main(String[] args) throws Exception {
+        int depth = args.length < 1 ? 10 : Integer.parseInt(args[0]);
+        int stringsPerLevel = args.length < 2 ? 2 : Integer.parseInt(args[1]);
+        Path workDir = Files.createTempDirectory(BeanFootprintReport.class.getSimpleName());
+        Path inputExcelFile = workDir.resolve("nested.xlsx");
+        writeNestedWorkbook(inputExcelFile, depth, stringsPerLevel);
+
+        System.out.printf("[INFO] depth=%d stringsPerLevel=%d %s\n", depth, stringsPerLevel,
+                System.getProperty("java.vm.version"));
+        System.out.printf("%-10s %8s %8s %10s\n", "style", "objects", "bytes", "bytes/obj");
+        for (String classStyle : Arrays.asList(ApiParamBeanGenerator.CLASS_STYLE_INNER,
+                ApiParamBeanGenerator.CLASS_STYLE_STATIC, ApiParamBeanGenerator.CLASS_STYLE_IMMUTABLE,
+                ApiParamBeanGenerator.CLASS_STYLE_RECORD)) {
+            Path outputPath = workDir.resolve(classStyle);
+            ApiParamBeanGenerator generator = new ApiParamBeanGenerator(outputPath,
+                    ApiParamBeanGenerator.READER_STREAMING, classStyle);
+            List<Path> sourceFiles = new ArrayList<>();
+            for (GeneratedSource source : generator.generate(inputExcelFile)) {
+                Files.createDirectories(source.path.getParent());
+                Files.writeString(source.path, source.content);
+                sourceFiles.add(source.path);
+            }
+            Path classesDir = compile(sourceFiles, workDir.resolve(classStyle + "-classes"));
+            try (URLClassLoader loader = new GeneratedClassLoader(classesDir)) {
+                Object request = newFilledInstance(loader.loadClass("myapp.AbcdeReq"), null);
+                // 文字列は共有しているので、1つ分を除く
+                GraphLayout layout = GraphLayout.parseInstance(request).subtract(GraphLayout.parseInstance("x"));
+                System.out.printf("%-10s %8d %8d %10.1f\n", classStyle, layout.totalCount(), layout.totalSize(),
+                        (double) layout.totalSize() / layout.totalCount());
+            }
+        }
+    }
+
+    /**
+     * depth 階層の object を1つずつ入れ子にする。各階層に string を stringsPerLevel 個置き、その後に次の階層の object を置く。
+     */
+    static void writeNestedWorkbook(Path file, int depth, int stringsPerLevel) throws IOException {
+        try (SXSSFWorkbook workbook = new SXSSFWorkbook(null, 100, false, true);
+                OutputStream out = Files.newOutputStream(file)) {
+            Sheet api = workbook.createSheet("api");
+            api.createRow(ApiParamBeanGenerator.API_NAME_EN_ROW).createCell(ApiParamBeanGenerator.API_NAME_EN_COL)
+                    .setCellValue("aaa");
+            int r = ApiParamBeanGenerator.REQ_BEGIN_ROW;
+            for (int d = 1; d <= depth; d++) {
+                writeRow(api.createRow(r++), d, "level" + d, "object");
+                for (int i = 1; i <= stringsPerLevel; i++) {
+                    writeRow(api.createRow(r++), d + 1, "item" + d + "_" + i, "string");
+                }
+            }
+            workbook.write(out);
+            workbook.dispose();
+        }
+    }
+
+    private static void writeRow(Row row, int depth, String name, String type) {
+        row.createCell(ApiParamBeanGenerator.REQ_DEPTH_COL).setCellValue(depth);
+        row.createCell(ApiParamBeanGenerator.REQ_NAME_COL).setCellValue(name);
+        row.createCell(ApiParamBeanGenerator.REQ_TYPE_COL).setCellValue(type);
+    }
+
+    /** 生成したソースを、このプロセスのクラスパス(Lombok, Jackson を含む)でコンパイルする */
+    static Path compile(List<Path> sourceFiles, Path classesDir) throws IOException {
+        Files.createDirectories(classesDir);
+        String lombokJar = new File(lombok.Data.class.getProtectionDomain().getCodeSource().getLocation().getPath())
+                .getPath();
+        List<String> args = new ArrayList<>(Arrays.asList("-encoding", "UTF-8", "-nowarn", "-classpath",
+                System.getProperty("java.class.path"), "-processorpath", lombokJar, "-d", classesDir.toString()));
+        args.addAll(sourceFiles.stream().map(Path::toString).collect(Collectors.toList()));
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler.run(null, null, null, args.toArray(new String[0])) != 0) {
+            throw new IllegalStateException("compile failed: " + sourceFiles);
+        }
+        return classesDir;
+    }
+
+    /**
+     * 生成したクラスを先に探すクラスローダー。(jmh プロファイルでは src/main/java-gen の AbcdeReq もクラスパスにあるため)
+     */
+    static class GeneratedClassLoader extends URLClassLoader {
+        GeneratedClassLoader(Path classesDir) throws IOException {
+            super(new URL[] { classesDir.toUri().toURL() }, BeanFootprintReport.class.getClassLoader());
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            synchronized (getClassLoadingLock(name)) {
+                if (name.startsWith("myapp.AbcdeReq")) {
+                    Class<?> c = findLoadedClass(name);
+                    return c != null ? c : findClass(name);
+                }
+                return super.loadClass(name, resolve);
+            }
+        }
+    }
+
+    /**
+     * すべてのフィールドに値を入れたインスタンスを作る。String は "x"、それ以外は入れ子のクラスとして作る。
+     * <ul>
+     *   <li>すべてのフィールドを受け取るコンストラクタ(@Value, record)があれば、それで作る。
+     *   <li>無ければ(@Data)、引数なし、または外側のインスタンスを受け取るコンストラクタで作ってから、フィールドに値を入れる。
+     * </ul>
+     */
+    static Object newFilledInstance(Class<?> type, Object outer) throws ReflectiveOperationException {
+        List<Field> fields = Arrays.stream(type.getDeclaredFields())
+                .filter(f -> !Modifier.isStatic(f.getModifiers()) && !f.isSynthetic()).collect(Collectors.toList());
+        Class<?>[] fieldTypes = fields.stream().map(Field::getType).toArray(Class<?>[]::new);
+        for (Constructor<?> constructor : type.getDeclaredConstructors()) {
+            if (0 < fields.size() && Arrays.equals(constructor.getParameterTypes(), fieldTypes)) {
+                Object[] values = new Object[fields.size()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = fieldTypes[i] == String.class ? "x" : newFilledInstance(fieldTypes[i], null);
+                }
+                constructor.setAccessible(true);
+                return constructor.newInstance(values);
+            }
+        }
+        Constructor<?> constructor = type.getDeclaredConstructors()[0];
+        constructor.setAccessible(true);
+        Object instance = constructor.getParameterCount() == 0 ? constructor.newInstance()
+                : constructor.newInstance(outer);
+        for (Field field : fields) {
+            field.setAccessible(true);
+            field.set(instance, field.getType() == String.class ? "x" : newFilledInstance(field.getType(), instance));
+        }
+        return instance;
+    }
+}
@@ -0,0 +1,77 @@
+package myapp;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import myapp.ApiParamBeanGenerator.ApiEndpointInfo;
+
+/**
+ * Excel の読み込み(--reader streaming と usermodel)の時間とメモリを比べる。
+ * <p>
+ * 実行例: mvn -Pjmh test-compile exec:exec -Djmh.args="SpecWorkbookReaderBenchmark -prof gc"
+ * <ul>
+ *   <li>時間は結果の Score。メモリは -prof gc の gc.alloc.rate.norm (1回の読み込みで割り当てたバイト数)。
+ *   <li>必要なヒープの上限は -jvmArgs -Xmx64m などで小さくして、OutOfMemoryError にならないかで比べる。
+ *   <li>Excel は @Setup で作る。"api" シートのリクエストの行数が apiRows、"api" 以外のシート(仕様書の他の表を想定)の行数が otherSheetRows。
+ *       depth 1 の object の下に、depth 2 の string を9個ずつ並べる。(SpecWorkbooks.write())
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpecWorkbookReaderBenchmark {
+    @Param({ "100", "10000" })
+    public int apiRows;
+
+    @Param({ "0", "100000" })
+    public int otherSheetRows;
+
+    private Path inputExcelFile;
+    private ApiParamBeanGenerator streaming;
+    private ApiParamBeanGenerator usermodel;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        inputExcelFile = Files.createTempFile(SpecWorkbookReaderBenchmark.class.getSimpleName(), ".xlsx");
+        SpecWorkbooks.write(inputExcelFile, apiRows, 2, otherSheetRows);
+        Path outputPath = inputExcelFile.resolveSibling("unused");
+        streaming = new ApiParamBeanGenerator(outputPath, ApiParamBeanGenerator.READER_STREAMING,
+                ApiParamBeanGenerator.CLASS_STYLE_INNER);
+        usermodel = new ApiParamBeanGenerator(outputPath, ApiParamBeanGenerator.READER_USERMODEL,
+                ApiParamBeanGenerator.CLASS_STYLE_INNER);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(inputExcelFile);
+    }
+
+    @Benchmark
+    public ApiEndpointInfo streaming() {
+        return streaming.read(inputExcelFile);
+    }
+
+    @Benchmark
+    public ApiEndpointInfo usermodel() {
+        return usermodel.read(inputExcelFile);
+    }
+}
@@ -0,0 +1,79 @@
+package myapp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+
+/**
+ * ベンチマークの入力にする仕様書の Excel を作る。(ApiParamBeanGeneratorBenchmark、SpecWorkbookReaderBenchmark)
+ * <p>
+ * SXSSF で1行ずつ書くので、大きな Excel でもメモリは少ない。文字列は Excel で保存したものと同じく、共有文字列にする。
+ */
+class SpecWorkbooks {
+    private SpecWorkbooks() {
+    }
+
+    /**
+     * src/api-spec の Excel と同じ位置に、rows 行のリクエストを書く。
+     * <ul>
+     *   <li>depth - 1 階層まで object を入れ子にし、一番内側に string を9個ずつ置く。
+     *   <li>string の後は、閉じる階層の数を変えながら object を開き直す。(depth 階層の木が横にも広がる)
+     *   <li>object の名前は行ごとに違うので、クラス名は重ならない。string は3個に1個が必須で、どれも10文字まで。
+     *   <li>depth が 1 なら、すべて depth 1 の string。
+     *   <li>otherSheetRows が1以上なら、"api" 以外のシート(仕様書の他の表を想定)に、その行数を書く。
+     * </ul>
+     */
+    static void write(Path file, int rows, int depth, int otherSheetRows) throws IOException {
+        try (SXSSFWorkbook workbook = new SXSSFWorkbook(null, 100, false, true);
+                OutputStream out = Files.newOutputStream(file)) {
+            Sheet api = workbook.createSheet("api");
+            api.createRow(ApiParamBeanGenerator.API_NAME_EN_ROW).createCell(ApiParamBeanGenerator.API_NAME_EN_COL)
+                    .setCellValue("aaa");
+            int open = 0; // 開いている object の数
+            int leaves = 0; // 一番内側の object に置いた string の数
+            int groups = 0; // 書いた string のまとまりの数
+            for (int i = 0; i < rows; i++) {
+                Row row = api.createRow(ApiParamBeanGenerator.REQ_BEGIN_ROW + i);
+                row.createCell(1).setCellValue(i + 1); // No
+                if (open < depth - 1) {
+                    open++;
+                    writeRow(row, open, "obj" + i, "object", 1, 0);
+                    continue;
+                }
+                writeRow(row, depth, "item" + i, "string", i % 3 == 0 ? 1 : 0, 10);
+                if (++leaves == 9 && 0 < open) {
+                    leaves = 0;
+                    open -= 1 + groups++ % open;
+                }
+            }
+            if (0 < otherSheetRows) {
+                Sheet other = workbook.createSheet("other");
+                for (int r = 0; r < otherSheetRows; r++) {
+                    Row row = other.createRow(r);
+                    for (int c = 0; c < 10; c++) {
+                        row.createCell(c).setCellValue("cell" + (r % 1000) + "-" + c);
+                    }
+                }
+            }
+            workbook.write(out);
+            workbook.dispose();
+        }
+    }
+
+    private static void writeRow(Row row, int depth, String name, String type, int min, int max) {
+        row.createCell(ApiParamBeanGenerator.REQ_DEPTH_COL).setCellValue(depth);
+        row.createCell(ApiParamBeanGenerator.REQ_NAME_COL).setCellValue(name);
+        row.createCell(ApiParamBeanGenerator.REQ_TYPE_COL).setCellValue(type);
+        if (0 < min) {
+            row.createCell(ApiParamBeanGenerator.REQ_MIN_COL).setCellValue(min);
+        }
+        if (0 < max) {
+            row.createCell(ApiParamBeanGenerator.REQ_MAX_COL).setCellValue(max);
+        }
+    }
+}
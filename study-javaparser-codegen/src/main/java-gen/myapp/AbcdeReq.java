@@ -3,7 +3,7 @@ package myapp;
 import lombok.Data;
 
 @Data
-public class AaaReq {
+public class AbcdeReq {
 
     private kyotsuBu kyotsuBu;
 
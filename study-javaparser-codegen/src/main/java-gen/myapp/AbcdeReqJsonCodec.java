@@ -0,0 +1,295 @@
+package myapp;
+
+import java.io.IOException;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+/**
+ * AbcdeReq の JSON を、リフレクションを使わずに読み書きする。(ApiParamBeanGenerator で生成)
+ * 知らないフィールドは読み飛ばす。null のフィールドも null として書く。
+ */
+public final class AbcdeReqJsonCodec {
+
+    private static final SerializedString FIELD_BANCHI1 = new SerializedString("banchi1");
+
+    private static final SerializedString FIELD_BANCHI2 = new SerializedString("banchi2");
+
+    private static final SerializedString FIELD_BANCHI3 = new SerializedString("banchi3");
+
+    private static final SerializedString FIELD_IF_INFO = new SerializedString("ifInfo");
+
+    private static final SerializedString FIELD_IF_SEQ = new SerializedString("ifSeq");
+
+    private static final SerializedString FIELD_JYUSHO_CODE = new SerializedString("jyushoCode");
+
+    private static final SerializedString FIELD_KEIYAKUSHA_INFO = new SerializedString("keiyakushaInfo");
+
+    private static final SerializedString FIELD_KOBETSU_BU = new SerializedString("kobetsuBu");
+
+    private static final SerializedString FIELD_KYOTSU_BU = new SerializedString("kyotsuBu");
+
+    private static final SerializedString FIELD_SEKYUSAKI_INFO = new SerializedString("sekyusakiInfo");
+
+    private AbcdeReqJsonCodec() {
+    }
+
+    public static void write(JsonGenerator generator, AbcdeReq value) throws IOException {
+        if (value == null) {
+            generator.writeNull();
+            return;
+        }
+        generator.writeStartObject();
+        generator.writeFieldName(FIELD_KYOTSU_BU);
+        writeKyotsuBu(generator, value.getKyotsuBu());
+        generator.writeFieldName(FIELD_KOBETSU_BU);
+        writeKobetsuBu(generator, value.getKobetsuBu());
+        generator.writeEndObject();
+    }
+
+    public static AbcdeReq read(JsonParser parser) throws IOException {
+        if (parser.currentToken() == null) {
+            parser.nextToken();
+        }
+        if (parser.currentToken() == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "expect START_OBJECT: " + parser.currentToken());
+        }
+        AbcdeReq value = new AbcdeReq();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.currentName();
+            parser.nextToken();
+            switch(fieldName) {
+                case "kyotsuBu":
+                    value.setKyotsuBu(readKyotsuBu(parser, value));
+                    break;
+                case "kobetsuBu":
+                    value.setKobetsuBu(readKobetsuBu(parser, value));
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+        return value;
+    }
+
+    private static void writeKyotsuBu(JsonGenerator generator, AbcdeReq.kyotsuBu value) throws IOException {
+        if (value == null) {
+            generator.writeNull();
+            return;
+        }
+        generator.writeStartObject();
+        generator.writeFieldName(FIELD_IF_INFO);
+        writeKyotsuBuIfInfo(generator, value.getIfInfo());
+        generator.writeEndObject();
+    }
+
+    private static AbcdeReq.kyotsuBu readKyotsuBu(JsonParser parser, AbcdeReq outer) throws IOException {
+        if (parser.currentToken() == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "expect START_OBJECT: " + parser.currentToken());
+        }
+        AbcdeReq.kyotsuBu value = outer.new kyotsuBu();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.currentName();
+            parser.nextToken();
+            switch(fieldName) {
+                case "ifInfo":
+                    value.setIfInfo(readKyotsuBuIfInfo(parser, value));
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+        return value;
+    }
+
+    private static void writeKyotsuBuIfInfo(JsonGenerator generator, AbcdeReq.kyotsuBu.ifInfo value) throws IOException {
+        if (value == null) {
+            generator.writeNull();
+            return;
+        }
+        generator.writeStartObject();
+        generator.writeFieldName(FIELD_IF_SEQ);
+        generator.writeString(value.getIfSeq());
+        generator.writeEndObject();
+    }
+
+    private static AbcdeReq.kyotsuBu.ifInfo readKyotsuBuIfInfo(JsonParser parser, AbcdeReq.kyotsuBu outer) throws IOException {
+        if (parser.currentToken() == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "expect START_OBJECT: " + parser.currentToken());
+        }
+        AbcdeReq.kyotsuBu.ifInfo value = outer.new ifInfo();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.currentName();
+            parser.nextToken();
+            switch(fieldName) {
+                case "ifSeq":
+                    value.setIfSeq(readString(parser));
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+        return value;
+    }
+
+    private static void writeKobetsuBu(JsonGenerator generator, AbcdeReq.kobetsuBu value) throws IOException {
+        if (value == null) {
+            generator.writeNull();
+            return;
+        }
+        generator.writeStartObject();
+        generator.writeFieldName(FIELD_KEIYAKUSHA_INFO);
+        writeKobetsuBuKeiyakushaInfo(generator, value.getKeiyakushaInfo());
+        generator.writeFieldName(FIELD_SEKYUSAKI_INFO);
+        writeKobetsuBuSekyusakiInfo(generator, value.getSekyusakiInfo());
+        generator.writeEndObject();
+    }
+
+    private static AbcdeReq.kobetsuBu readKobetsuBu(JsonParser parser, AbcdeReq outer) throws IOException {
+        if (parser.currentToken() == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "expect START_OBJECT: " + parser.currentToken());
+        }
+        AbcdeReq.kobetsuBu value = outer.new kobetsuBu();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.currentName();
+            parser.nextToken();
+            switch(fieldName) {
+                case "keiyakushaInfo":
+                    value.setKeiyakushaInfo(readKobetsuBuKeiyakushaInfo(parser, value));
+                    break;
+                case "sekyusakiInfo":
+                    value.setSekyusakiInfo(readKobetsuBuSekyusakiInfo(parser, value));
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+        return value;
+    }
+
+    private static void writeKobetsuBuKeiyakushaInfo(JsonGenerator generator, AbcdeReq.kobetsuBu.keiyakushaInfo value) throws IOException {
+        if (value == null) {
+            generator.writeNull();
+            return;
+        }
+        generator.writeStartObject();
+        generator.writeFieldName(FIELD_JYUSHO_CODE);
+        generator.writeString(value.getJyushoCode());
+        generator.writeFieldName(FIELD_BANCHI1);
+        generator.writeString(value.getBanchi1());
+        generator.writeFieldName(FIELD_BANCHI2);
+        generator.writeString(value.getBanchi2());
+        generator.writeFieldName(FIELD_BANCHI3);
+        generator.writeString(value.getBanchi3());
+        generator.writeEndObject();
+    }
+
+    private static AbcdeReq.kobetsuBu.keiyakushaInfo readKobetsuBuKeiyakushaInfo(JsonParser parser, AbcdeReq.kobetsuBu outer) throws IOException {
+        if (parser.currentToken() == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "expect START_OBJECT: " + parser.currentToken());
+        }
+        AbcdeReq.kobetsuBu.keiyakushaInfo value = outer.new keiyakushaInfo();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.currentName();
+            parser.nextToken();
+            switch(fieldName) {
+                case "jyushoCode":
+                    value.setJyushoCode(readString(parser));
+                    break;
+                case "banchi1":
+                    value.setBanchi1(readString(parser));
+                    break;
+                case "banchi2":
+                    value.setBanchi2(readString(parser));
+                    break;
+                case "banchi3":
+                    value.setBanchi3(readString(parser));
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+        return value;
+    }
+
+    private static void writeKobetsuBuSekyusakiInfo(JsonGenerator generator, AbcdeReq.kobetsuBu.sekyusakiInfo value) throws IOException {
+        if (value == null) {
+            generator.writeNull();
+            return;
+        }
+        generator.writeStartObject();
+        generator.writeFieldName(FIELD_JYUSHO_CODE);
+        generator.writeString(value.getJyushoCode());
+        generator.writeFieldName(FIELD_BANCHI1);
+        generator.writeString(value.getBanchi1());
+        generator.writeFieldName(FIELD_BANCHI2);
+        generator.writeString(value.getBanchi2());
+        generator.writeFieldName(FIELD_BANCHI3);
+        generator.writeString(value.getBanchi3());
+        generator.writeEndObject();
+    }
+
+    private static AbcdeReq.kobetsuBu.sekyusakiInfo readKobetsuBuSekyusakiInfo(JsonParser parser, AbcdeReq.kobetsuBu outer) throws IOException {
+        if (parser.currentToken() == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "expect START_OBJECT: " + parser.currentToken());
+        }
+        AbcdeReq.kobetsuBu.sekyusakiInfo value = outer.new sekyusakiInfo();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.currentName();
+            parser.nextToken();
+            switch(fieldName) {
+                case "jyushoCode":
+                    value.setJyushoCode(readString(parser));
+                    break;
+                case "banchi1":
+                    value.setBanchi1(readString(parser));
+                    break;
+                case "banchi2":
+                    value.setBanchi2(readString(parser));
+                    break;
+                case "banchi3":
+                    value.setBanchi3(readString(parser));
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+        return value;
+    }
+
+    private static String readString(JsonParser parser) throws IOException {
+        if (parser.currentToken() == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (!parser.currentToken().isScalarValue()) {
+            throw new JsonParseException(parser, "expect string: " + parser.currentToken());
+        }
+        return parser.getText();
+    }
+}
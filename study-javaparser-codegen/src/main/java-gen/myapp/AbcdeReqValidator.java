@@ -0,0 +1,81 @@
+package myapp;
+
+import java.util.List;
+
+/**
+ * AbcdeReq を Excel の min, max で検査する。(ApiParamBeanGenerator で生成)
+ * violations が null なら、最初の違反で false を返す。null でなければ、すべての違反のメッセージを追加する。
+ */
+public final class AbcdeReqValidator {
+
+    private AbcdeReqValidator() {
+    }
+
+    public static boolean validate(AbcdeReq value, List<String> violations) {
+        boolean valid = true;
+        if (value.getKyotsuBu() != null && !validateKyotsuBu(value.getKyotsuBu(), violations)) {
+            if (violations == null) {
+                return false;
+            }
+            valid = false;
+        }
+        if (value.getKobetsuBu() != null && !validateKobetsuBu(value.getKobetsuBu(), violations)) {
+            if (violations == null) {
+                return false;
+            }
+            valid = false;
+        }
+        return valid;
+    }
+
+    private static boolean validateKyotsuBu(AbcdeReq.kyotsuBu value, List<String> violations) {
+        boolean valid = true;
+        if (value.getIfInfo() != null && !validateKyotsuBuIfInfo(value.getIfInfo(), violations)) {
+            if (violations == null) {
+                return false;
+            }
+            valid = false;
+        }
+        return valid;
+    }
+
+    private static boolean validateKyotsuBuIfInfo(AbcdeReq.kyotsuBu.ifInfo value, List<String> violations) {
+        boolean valid = true;
+        return valid;
+    }
+
+    private static boolean validateKobetsuBu(AbcdeReq.kobetsuBu value, List<String> violations) {
+        boolean valid = true;
+        if (value.getKeiyakushaInfo() != null && !validateKobetsuBuKeiyakushaInfo(value.getKeiyakushaInfo(), violations)) {
+            if (violations == null) {
+                return false;
+            }
+            valid = false;
+        }
+        if (value.getSekyusakiInfo() != null && !validateKobetsuBuSekyusakiInfo(value.getSekyusakiInfo(), violations)) {
+            if (violations == null) {
+                return false;
+            }
+            valid = false;
+        }
+        return valid;
+    }
+
+    private static boolean validateKobetsuBuKeiyakushaInfo(AbcdeReq.kobetsuBu.keiyakushaInfo value, List<String> violations) {
+        boolean valid = true;
+        return valid;
+    }
+
+    private static boolean validateKobetsuBuSekyusakiInfo(AbcdeReq.kobetsuBu.sekyusakiInfo value, List<String> violations) {
+        boolean valid = true;
+        return valid;
+    }
+
+    private static boolean isLengthBetween(String value, int min, int max) {
+        if (value == null) {
+            return min == 0;
+        }
+        int length = value.codePointCount(0, value.length());
+        return min <= length && length <= max;
+    }
+}
@@ -2,37 +2,117 @@ package myapp;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
-import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Deque;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.TreeMap;
 import java.util.function.Consumer;
 
+import javax.lang.model.SourceVersion;
+
 import org.apache.poi.EncryptedDocumentException;
+import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.apache.poi.ss.util.CellReference;
 
+import com.github.javaparser.StaticJavaParser;
 import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.Modifier;
 import com.github.javaparser.ast.Modifier.Keyword;
 import com.github.javaparser.ast.NodeList;
 import com.github.javaparser.ast.body.ClassOrInterfaceDeclaration;
+import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.body.RecordDeclaration;
+import com.github.javaparser.ast.body.TypeDeclaration;
 
 public class ApiParamBeanGenerator implements Consumer<Path> {
+    // 生成するソースが変わる変更をしたら上げる。(--incremental で、前回の出力を使わずに生成し直す)
+    static final String GENERATOR_VERSION = "3";
+
+    // Excel を読む方法 (--reader)
+    static final String READER_STREAMING = "streaming"; // "api" シートだけを SAX で読む。(ApiSheetStreamingReader)
+    static final String READER_USERMODEL = "usermodel"; // ワークブック全体を読み込む。(WorkbookFactory)
+
+    // 生成するクラスの形 (--class-style)
+    static final String CLASS_STYLE_INNER = "inner"; // Lombok の @Data の内部クラス。(static でない) クラス名は Excel の名前のまま
+    static final String CLASS_STYLE_STATIC = "static"; // Lombok の @Data の static なクラス
+    static final String CLASS_STYLE_IMMUTABLE = "immutable"; // Lombok の @Value の static なクラス。(final なフィールドと、すべてのフィールドのコンストラクタ)
+    static final String CLASS_STYLE_RECORD = "record";
+
+    // "api" シートの位置 (0 始まり)
+    static final int API_NAME_EN_ROW = 3 - 1;
+    static final int API_NAME_EN_COL = 4 - 1;
+    static final int REQ_BEGIN_ROW = 6 - 1;
+    static final int REQ_DEPTH_COL = 3 - 1;
+    static final int REQ_NAME_COL = 5 - 1;
+    static final int REQ_TYPE_COL = 6 - 1;
+    static final int REQ_MIN_COL = 7 - 1;
+    static final int REQ_MAX_COL = 8 - 1;
+
     final Path outputPath;
+    final String reader;
+    final String classStyle;
 
     public ApiParamBeanGenerator(Path outputPath) {
+        this(outputPath, READER_STREAMING, CLASS_STYLE_INNER);
+    }
+
+    public ApiParamBeanGenerator(Path outputPath, String reader, String classStyle) {
+        if (!reader.equals(READER_STREAMING) && !reader.equals(READER_USERMODEL)) {
+            throw new IllegalArgumentException("reader: expect=\"" + READER_STREAMING + "\" or \"" + READER_USERMODEL
+                    + "\" actual=" + reader);
+        }
+        if (!Arrays.asList(CLASS_STYLE_INNER, CLASS_STYLE_STATIC, CLASS_STYLE_IMMUTABLE, CLASS_STYLE_RECORD)
+                .contains(classStyle)) {
+            throw new IllegalArgumentException("classStyle: expect=\"" + CLASS_STYLE_INNER + "\" or \""
+                    + CLASS_STYLE_STATIC + "\" or \"" + CLASS_STYLE_IMMUTABLE + "\" or \"" + CLASS_STYLE_RECORD
+                    + "\" actual=" + classStyle);
+        }
         this.outputPath = outputPath;
+        this.reader = reader;
+        this.classStyle = classStyle;
+    }
+
+    /** --incremental で、前回と同じ生成をしたかを比べるためのバージョン */
+    String getGeneratorVersion() {
+        return GENERATOR_VERSION + "-" + classStyle;
     }
 
     @Override
     public void accept(Path inputExcelFile) {
+        generate(inputExcelFile).forEach(this::write);
+    }
+
+    /**
+     * Excel を読んで Java のソースを組み立てる。ファイルには書かないので、複数のスレッドから同時に呼んでよい。
+     *
+     * @return Bean と、その JSON の codec
+     */
+    List<GeneratedSource> generate(Path inputExcelFile) {
+        return generateParamBean(read(inputExcelFile));
+    }
+
+    ApiEndpointInfo read(Path inputExcelFile) {
+        if (reader.equals(READER_STREAMING)) {
+            try {
+                return ApiSheetStreamingReader.read(inputExcelFile);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
         try (Workbook workbook = WorkbookFactory.create(inputExcelFile.toFile(), null, true)) {
-            generateParamBean(readSheet(workbook.getSheet("api")));
+            return readSheet(workbook.getSheet("api"));
         } catch (EncryptedDocumentException e) {
             throw new RuntimeException(e);
         } catch (IOException e) {
@@ -40,43 +120,95 @@ public class ApiParamBeanGenerator implements Consumer<Path> {
         }
     }
 
-    ApiEndpointInfo readSheet(Sheet sheet) {
-        final int API_NAME_EN_ROW = 3 - 1;
-        final int API_NAME_EN_COL = 4 - 1;
-        final int REQ_BEGIN_ROW = 6 - 1;
+    /**
+     * 内容が同じファイルは書かない。(更新日時が変わると、生成したソースを使う側がすべて再コンパイルされるため)
+     *
+     * @return 書いた場合は true
+     */
+    boolean write(GeneratedSource source) {
+        byte[] bytes = source.content.getBytes(StandardCharsets.UTF_8);
+        try {
+            if (Files.isRegularFile(source.path) && Arrays.equals(Files.readAllBytes(source.path), bytes)) {
+                return false;
+            }
+            Files.createDirectories(source.path.getParent());
+            Files.write(source.path, bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return true;
+    }
 
+    ApiEndpointInfo readSheet(Sheet sheet) {
         ApiEndpointInfo apiEndpointInfo = new ApiEndpointInfo(sheet.getRow(API_NAME_EN_ROW).getCell(API_NAME_EN_COL).getStringCellValue());
 
 
         for (int r = REQ_BEGIN_ROW; /* nop */ ; r++) {
-            System.out.printf("%d\n", r);
             Row row = sheet.getRow(r);
-            if (row == null || row.getCell(2) == null) {
+            if (row == null || row.getCell(REQ_DEPTH_COL) == null) {
                 break;
             }
-            System.out.printf("%d %s\n", r, row.getCell(2).toString());
             apiEndpointInfo.request.add(new ApiParamInfo( //
-                    row.getCell(4).getStringCellValue(), // name
-                    (int) row.getCell(2).getNumericCellValue(), // depth
-                    row.getCell(5).getStringCellValue(), // type
-                    0, // min
-                    0 // max
+                    row.getCell(REQ_NAME_COL).getStringCellValue(), // name
+                    (int) row.getCell(REQ_DEPTH_COL).getNumericCellValue(), // depth
+                    row.getCell(REQ_TYPE_COL).getStringCellValue(), // type
+                    getConstraint(row.getCell(REQ_MIN_COL)), // min
+                    getConstraint(row.getCell(REQ_MAX_COL)) // max
             ));
         }
         return apiEndpointInfo;
     }
 
-    void generateParamBean(ApiEndpointInfo apiEndpointInfo) throws IOException {
+    /** min, max のセル。空なら 0 (制約なし) */
+    static int getConstraint(Cell cell) {
+        if (cell == null) {
+            return 0;
+        }
+        switch (cell.getCellType()) {
+        case NUMERIC:
+            return (int) cell.getNumericCellValue();
+        case STRING:
+            return parseConstraint(cell.getStringCellValue());
+        case BLANK:
+            return 0;
+        default:
+            throw new IllegalArgumentException(cell.getAddress() + ": " + cell.getCellType());
+        }
+    }
+
+    static int parseConstraint(String value) {
+        return value.isBlank() ? 0 : (int) Double.parseDouble(value.strip());
+    }
+
+    /**
+     * 生成は3段階に分かれる。(ApiParamBeanGeneratorBenchmark で段階ごとに測る)
+     * <ol>
+     * <li>buildParamBean(): リクエストの行を上から順に、Deque に積んだクラスへフィールドとして加える。
+     * <li>buildCompilationUnits(): Bean のクラスの一覧から、codec と validator を組み立てる。
+     * <li>print(): CompilationUnit.toString() でソースにする。
+     * </ol>
+     */
+    List<GeneratedSource> generateParamBean(ApiEndpointInfo apiEndpointInfo) {
+        return print(buildCompilationUnits(buildParamBean(apiEndpointInfo)));
+    }
 
+    ParamBeanAst buildParamBean(ApiEndpointInfo apiEndpointInfo) {
         CompilationUnit compilationUnit = new CompilationUnit();
         compilationUnit.setPackageDeclaration("myapp");
-        ClassOrInterfaceDeclaration classOrInterfaceDeclaration0 = compilationUnit.addClass("AaaReq", Keyword.PUBLIC);
+        TypeDeclaration<?> classOrInterfaceDeclaration0 = newTypeDeclaration(beanName(apiEndpointInfo), true);
+        compilationUnit.addType(classOrInterfaceDeclaration0);
 
-        compilationUnit.addImport("lombok.Data");
+        if (classStyle.equals(CLASS_STYLE_IMMUTABLE)) {
+            compilationUnit.addImport("lombok.Value");
+        } else if (!classStyle.equals(CLASS_STYLE_RECORD)) {
+            compilationUnit.addImport("lombok.Data");
+        }
         //field.addAnnotation("Zzz");
 
+        List<ApiParamJavaInfo> classes = new ArrayList<>(); // codec を生成するクラス。外側が先
         Deque<ApiParamJavaInfo> classDeclarationStack = new ArrayDeque<>();
-        classDeclarationStack.push(new ApiParamJavaInfo(classOrInterfaceDeclaration0));
+        classDeclarationStack.push(new ApiParamJavaInfo(classOrInterfaceDeclaration0, null, null));
+        classes.add(classDeclarationStack.peek());
 
         for (ApiParamInfo pi : apiEndpointInfo.request) {
             try {
@@ -87,17 +219,18 @@ public class ApiParamBeanGenerator implements Consumer<Path> {
     
                 if (classDeclarationStack.size() == pi.depth) {
                     if (pi.type.equals("object")) {
-                        ClassOrInterfaceDeclaration classOrInterfaceDeclaration = new ClassOrInterfaceDeclaration(
-                                new NodeList<>(), false, pi.name);
+                        TypeDeclaration<?> classOrInterfaceDeclaration = newTypeDeclaration(pi.name, false);
                         ApiParamJavaInfo paramJavaInfo = classDeclarationStack.peek();
-                        paramJavaInfo.classDeclaration.addField(classOrInterfaceDeclaration.getNameAsString(), pi.name,
-                                Keyword.PRIVATE);
-                        classOrInterfaceDeclaration.addAnnotation("Data");
+                        addParam(paramJavaInfo, classOrInterfaceDeclaration.getNameAsString(), pi.name);
                         paramJavaInfo.innerClassDeclaration.add(classOrInterfaceDeclaration);
-                        classDeclarationStack.push(new ApiParamJavaInfo(classOrInterfaceDeclaration));
+                        ApiParamJavaInfo innerJavaInfo = new ApiParamJavaInfo(classOrInterfaceDeclaration, paramJavaInfo, pi.name);
+                        paramJavaInfo.params.add(pi);
+                        paramJavaInfo.objectParams.put(pi.name, innerJavaInfo);
+                        classes.add(innerJavaInfo);
+                        classDeclarationStack.push(innerJavaInfo);
                     } else {
-                        classDeclarationStack.peek().classDeclaration.addField(getJavaTypeName(pi.type), pi.name,
-                                Keyword.PRIVATE);
+                        addParam(classDeclarationStack.peek(), getJavaTypeName(pi.type), pi.name);
+                        classDeclarationStack.peek().params.add(pi);
                     }
                 }
             } catch (RuntimeException e) {
@@ -110,17 +243,285 @@ public class ApiParamBeanGenerator implements Consumer<Path> {
             ApiParamJavaInfo paramJavaInfo = classDeclarationStack.pop();
             paramJavaInfo.innerClassDeclaration.forEach(x -> paramJavaInfo.classDeclaration.addMember(x));
         }
-        try {
+        return new ParamBeanAst(compilationUnit, classes);
+    }
+
+    /**
+     * @return Bean, codec, validator の順。Bean の CompilationUnit はそのまま使う
+     */
+    List<CompilationUnit> buildCompilationUnits(ParamBeanAst paramBean) {
+        String packageName = paramBean.compilationUnit.getPackageDeclaration().get().getNameAsString();
+        return Arrays.asList(paramBean.compilationUnit, generateJsonCodec(packageName, paramBean.classes),
+                generateValidator(packageName, paramBean.classes));
+    }
+
+    /**
+     * Bean のクラス名。API名(英)の先頭を大文字にして "Req" を付ける。(例: aaa → AaaReq)
+     * 出力ファイル名になるので、Java の識別子でなければ生成しない。
+     */
+    static String beanName(ApiEndpointInfo apiEndpointInfo) {
+        String name = apiEndpointInfo.name == null ? "" : apiEndpointInfo.name.strip();
+        if (name.isEmpty() || !SourceVersion.isIdentifier(name)) {
+            throw new IllegalArgumentException("invalid api name: "
+                    + new CellReference(API_NAME_EN_ROW, API_NAME_EN_COL).formatAsString() + "=" + apiEndpointInfo.name);
+        }
+        return capitalize(name) + "Req";
+    }
+
+    /** ファイル名は、パッケージと最初の型の名前から決める */
+    List<GeneratedSource> print(List<CompilationUnit> compilationUnits) {
+        List<GeneratedSource> sources = new ArrayList<>();
+        for (CompilationUnit compilationUnit : compilationUnits) {
             Path x = outputPath
                     .resolve(compilationUnit.getPackageDeclaration().get().getNameAsString().replace('.', '/'));
-            Files.createDirectories(x);
-            try (Writer w = Files.newBufferedWriter(x.resolve("AaaReq" + ".java"))) {
-                w.write(compilationUnit.toString());
+            sources.add(new GeneratedSource(x.resolve(compilationUnit.getType(0).getNameAsString() + ".java"),
+                    compilationUnit.toString()));
+        }
+        return sources;
+    }
+
+    /**
+     * classStyle の形のクラスを作る。フィールドは addParam() で加える。
+     *
+     * @param top 一番外側のクラスなら true
+     */
+    TypeDeclaration<?> newTypeDeclaration(String name, boolean top) {
+        if (classStyle.equals(CLASS_STYLE_INNER)) {
+            ClassOrInterfaceDeclaration declaration = new ClassOrInterfaceDeclaration(new NodeList<>(), false, name);
+            if (top) {
+                declaration.addModifier(Keyword.PUBLIC);
+                declaration.addMarkerAnnotation("Data"); // codec が getter/setter を使う
+            } else {
+                declaration.addAnnotation("Data");
             }
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
+            return declaration;
+        }
+        String typeName = top ? name : capitalize(name);
+        if (classStyle.equals(CLASS_STYLE_RECORD)) {
+            // 入れ子の record は、暗黙に static
+            return new RecordDeclaration(new NodeList<>(Modifier.publicModifier()), typeName);
+        }
+        ClassOrInterfaceDeclaration declaration = new ClassOrInterfaceDeclaration(new NodeList<>(), false, typeName);
+        declaration.addModifier(Keyword.PUBLIC);
+        if (!top) {
+            declaration.addModifier(Keyword.STATIC);
+        }
+        declaration.addMarkerAnnotation(classStyle.equals(CLASS_STYLE_IMMUTABLE) ? "Value" : "Data");
+        return declaration;
+    }
+
+    void addParam(ApiParamJavaInfo paramJavaInfo, String typeName, String name) {
+        if (paramJavaInfo.classDeclaration instanceof RecordDeclaration) {
+            ((RecordDeclaration) paramJavaInfo.classDeclaration).addParameter(typeName, name);
+        } else {
+            ((ClassOrInterfaceDeclaration) paramJavaInfo.classDeclaration).addField(typeName, name, Keyword.PRIVATE);
         }
-        System.out.println(compilationUnit.toString());
+    }
+
+    /** getter を呼ぶ式 (例: value.getIfSeq(), record なら value.ifSeq()) */
+    String getterCall(String fieldName) {
+        return classStyle.equals(CLASS_STYLE_RECORD) ? "value." + fieldName + "()"
+                : "value." + getterName(fieldName) + "()";
+    }
+
+    /**
+     * Bean の JSON を Jackson の JsonParser/JsonGenerator で直接読み書きする codec を生成する。
+     * ObjectMapper の Bean へのバインド(リフレクション)と違い、フィールドごとの処理を生成したコードに展開する。
+     * <ul>
+     * <li>書くときは ObjectMapper の既定と同じく、null のフィールドも null として書く。
+     * <li>読むときは、知らないフィールドを読み飛ばす。
+     * <li>@Data のクラスは、作ってから setter で設定する。@Value のクラスと record は、フィールドをローカル変数に読んでから、コンストラクタで作る。
+     * </ul>
+     *
+     * @param classes 外側のクラスが先
+     */
+    CompilationUnit generateJsonCodec(String packageName, List<ApiParamJavaInfo> classes) {
+        String beanName = classes.get(0).typeName;
+        CompilationUnit compilationUnit = new CompilationUnit();
+        compilationUnit.setPackageDeclaration(packageName);
+        compilationUnit.addImport("java.io.IOException");
+        compilationUnit.addImport("com.fasterxml.jackson.core.JsonGenerator");
+        compilationUnit.addImport("com.fasterxml.jackson.core.JsonParseException");
+        compilationUnit.addImport("com.fasterxml.jackson.core.JsonParser");
+        compilationUnit.addImport("com.fasterxml.jackson.core.JsonToken");
+        compilationUnit.addImport("com.fasterxml.jackson.core.io.SerializedString");
+        ClassOrInterfaceDeclaration codec = compilationUnit.addClass(beanName + "JsonCodec", Keyword.PUBLIC,
+                Keyword.FINAL);
+        codec.setJavadocComment(beanName + " の JSON を、リフレクションを使わずに読み書きする。(" + getClass().getSimpleName()
+                + " で生成)\n知らないフィールドは読み飛ばす。null のフィールドも null として書く。");
+        // フィールド名は、ObjectMapper と同じく、エンコード済みのものを書く
+        Map<String, String> fieldNameConstants = new TreeMap<>(); // フィールド名 → 定数の名前
+        classes.forEach(c -> c.params.forEach(pi -> fieldNameConstants.put(pi.name, constantName(pi.name))));
+        fieldNameConstants.forEach((name, constant) -> codec
+                .addFieldWithInitializer("SerializedString", constant,
+                        StaticJavaParser.parseExpression("new SerializedString(\"" + name + "\")"), Keyword.PRIVATE,
+                        Keyword.STATIC, Keyword.FINAL));
+        codec.addConstructor(Keyword.PRIVATE);
+
+        for (ApiParamJavaInfo c : classes) {
+            Keyword access = c.outer == null ? Keyword.PUBLIC : Keyword.PRIVATE;
+
+            StringBuilder write = new StringBuilder("{");
+            write.append("if (value == null) { generator.writeNull(); return; }");
+            write.append("generator.writeStartObject();");
+            for (ApiParamInfo pi : c.params) {
+                ApiParamJavaInfo inner = c.objectParams.get(pi.name);
+                write.append("generator.writeFieldName(").append(fieldNameConstants.get(pi.name)).append(");");
+                if (inner != null) {
+                    write.append("write").append(inner.codecName).append("(generator, ").append(getterCall(pi.name))
+                            .append(");");
+                } else {
+                    write.append("generator.writeString(").append(getterCall(pi.name)).append(");");
+                }
+            }
+            write.append("generator.writeEndObject(); }");
+            MethodDeclaration writeMethod = codec.addMethod("write" + c.codecName, access, Keyword.STATIC);
+            writeMethod.addParameter("JsonGenerator", "generator").addParameter(c.typeName, "value");
+            writeMethod.addThrownException(IOException.class);
+            writeMethod.setBody(StaticJavaParser.parseBlock(write.toString()));
+
+            StringBuilder read = new StringBuilder("{");
+            if (c.outer == null) {
+                read.append("if (parser.currentToken() == null) { parser.nextToken(); }");
+            }
+            read.append("if (parser.currentToken() == JsonToken.VALUE_NULL) { return null; }");
+            read.append("if (parser.currentToken() != JsonToken.START_OBJECT) {"
+                    + " throw new JsonParseException(parser, \"expect START_OBJECT: \" + parser.currentToken()); }");
+            boolean mutable = classStyle.equals(CLASS_STYLE_INNER) || classStyle.equals(CLASS_STYLE_STATIC);
+            if (mutable) {
+                // 内部クラス(static でない)は、外側のインスタンスから作る
+                read.append(c.typeName).append(" value = ")
+                        .append(c.outer != null && classStyle.equals(CLASS_STYLE_INNER) ? "outer.new " : "new ")
+                        .append(classStyle.equals(CLASS_STYLE_INNER) ? c.classDeclaration.getNameAsString() : c.typeName)
+                        .append("();");
+            } else {
+                for (ApiParamInfo pi : c.params) {
+                    ApiParamJavaInfo inner = c.objectParams.get(pi.name);
+                    read.append(inner != null ? inner.typeName : getJavaTypeName(pi.type)).append(" ").append(pi.name)
+                            .append("Value = null;");
+                }
+            }
+            read.append("while (parser.nextToken() == JsonToken.FIELD_NAME) {");
+            read.append("String fieldName = parser.currentName(); parser.nextToken(); switch (fieldName) {");
+            for (ApiParamInfo pi : c.params) {
+                ApiParamJavaInfo inner = c.objectParams.get(pi.name);
+                String readValue = inner == null ? "readString(parser)"
+                        : "read" + inner.codecName + (classStyle.equals(CLASS_STYLE_INNER) ? "(parser, value)" : "(parser)");
+                read.append("case \"").append(pi.name).append("\": ");
+                if (mutable) {
+                    read.append("value.").append(setterName(pi.name)).append("(").append(readValue).append(");");
+                } else {
+                    read.append(pi.name).append("Value = ").append(readValue).append(";");
+                }
+                read.append(" break;");
+            }
+            read.append("default: parser.skipChildren(); break; } }");
+            if (mutable) {
+                read.append("return value; }");
+            } else {
+                StringJoiner args = new StringJoiner(", ", "return new " + c.typeName + "(", "); }");
+                c.params.forEach(pi -> args.add(pi.name + "Value"));
+                read.append(args);
+            }
+            MethodDeclaration readMethod = codec.addMethod("read" + c.codecName, access, Keyword.STATIC);
+            readMethod.setType(c.typeName).addParameter("JsonParser", "parser");
+            if (c.outer != null && classStyle.equals(CLASS_STYLE_INNER)) {
+                readMethod.addParameter(c.outer.typeName, "outer");
+            }
+            readMethod.addThrownException(IOException.class);
+            readMethod.setBody(StaticJavaParser.parseBlock(read.toString()));
+        }
+
+        MethodDeclaration readString = codec.addMethod("readString", Keyword.PRIVATE, Keyword.STATIC);
+        readString.setType(String.class).addParameter("JsonParser", "parser").addThrownException(IOException.class);
+        readString.setBody(StaticJavaParser.parseBlock("{" //
+                + "if (parser.currentToken() == JsonToken.VALUE_NULL) { return null; }" //
+                + "if (!parser.currentToken().isScalarValue()) {" //
+                + " throw new JsonParseException(parser, \"expect string: \" + parser.currentToken()); }" //
+                + "return parser.getText(); }"));
+        return compilationUnit;
+    }
+
+    /**
+     * Excel の min, max から、Bean の検査を生成する。アノテーションとリフレクションを使わず、フィールドごとの検査を直接書く。
+     * <ul>
+     * <li>string: min, max は文字数。(コードポイントで数える)
+     * <li>object: min が 1 以上なら必須。
+     * <li>0 (セルが空) は制約なし。string で min が 1 以上なら、null も違反とする。
+     * <li>違反が無ければ、オブジェクトを作らない。違反のメッセージは定数で、違反があっても violations に追加するだけ。
+     * </ul>
+     *
+     * @param classes 外側のクラスが先
+     */
+    CompilationUnit generateValidator(String packageName, List<ApiParamJavaInfo> classes) {
+        String beanName = classes.get(0).typeName;
+        CompilationUnit compilationUnit = new CompilationUnit();
+        compilationUnit.setPackageDeclaration(packageName);
+        compilationUnit.addImport("java.util.List");
+        ClassOrInterfaceDeclaration validator = compilationUnit.addClass(beanName + "Validator", Keyword.PUBLIC,
+                Keyword.FINAL);
+        validator.setJavadocComment(beanName + " を Excel の min, max で検査する。(" + getClass().getSimpleName()
+                + " で生成)\nviolations が null なら、最初の違反で false を返す。null でなければ、すべての違反のメッセージを追加する。");
+        validator.addConstructor(Keyword.PRIVATE);
+
+        for (ApiParamJavaInfo c : classes) {
+            StringBuilder body = new StringBuilder("{ boolean valid = true;");
+            for (ApiParamInfo pi : c.params) {
+                String path = c.path.isEmpty() ? pi.name : c.path + "." + pi.name;
+                String getter = getterCall(pi.name);
+                String violation = "{ if (violations == null) { return false; } violations.add(\"%s\"); valid = false; }";
+                ApiParamJavaInfo inner = c.objectParams.get(pi.name);
+                if (inner != null) {
+                    if (1 <= pi.min) {
+                        body.append("if (").append(getter).append(" == null) ")
+                                .append(String.format(violation, path + ": required")).append(" else if (");
+                    } else {
+                        body.append("if (").append(getter).append(" != null && ");
+                    }
+                    // 内側のクラスの違反は、内側のメソッドが violations に追加している
+                    body.append("!validate").append(inner.codecName).append("(").append(getter)
+                            .append(", violations)) { if (violations == null) { return false; } valid = false; }");
+                } else if (pi.min != 0 || pi.max != 0) {
+                    String max = pi.max == 0 ? "Integer.MAX_VALUE" : Integer.toString(pi.max);
+                    body.append("if (!isLengthBetween(").append(getter).append(", ").append(pi.min).append(", ")
+                            .append(max).append(")) ")
+                            .append(String.format(violation, path + ": length must be between " + pi.min + " and "
+                                    + (pi.max == 0 ? "unlimited" : pi.max)));
+                }
+            }
+            body.append("return valid; }");
+            MethodDeclaration method = validator.addMethod("validate" + c.codecName,
+                    c.outer == null ? Keyword.PUBLIC : Keyword.PRIVATE, Keyword.STATIC);
+            method.setType(boolean.class).addParameter(c.typeName, "value").addParameter("List<String>", "violations");
+            method.setBody(StaticJavaParser.parseBlock(body.toString()));
+        }
+
+        MethodDeclaration isLengthBetween = validator.addMethod("isLengthBetween", Keyword.PRIVATE, Keyword.STATIC);
+        isLengthBetween.setType(boolean.class).addParameter(String.class, "value").addParameter(int.class, "min")
+                .addParameter(int.class, "max");
+        isLengthBetween.setBody(StaticJavaParser.parseBlock("{" //
+                + "if (value == null) { return min == 0; }" //
+                + "int length = value.codePointCount(0, value.length());" //
+                + "return min <= length && length <= max; }"));
+        return compilationUnit;
+    }
+
+    /** Lombok の @Data が生成する getter の名前 */
+    static String getterName(String fieldName) {
+        return "get" + capitalize(fieldName);
+    }
+
+    static String setterName(String fieldName) {
+        return "set" + capitalize(fieldName);
+    }
+
+    /** 例: jyushoCode → FIELD_JYUSHO_CODE */
+    static String constantName(String fieldName) {
+        return "FIELD_" + fieldName.replaceAll("([a-z0-9])([A-Z])", "$1_$2").toUpperCase(Locale.ROOT);
+    }
+
+    static String capitalize(String name) {
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
     }
 
     String getJavaTypeName(String typeName) {
@@ -153,12 +554,47 @@ public class ApiParamBeanGenerator implements Consumer<Path> {
     }
     */
 
+    static class GeneratedSource {
+        final Path path;
+        final String content;
+
+        GeneratedSource(Path path, String content) {
+            this.path = path;
+            this.content = content;
+        }
+    }
+
+    static class ParamBeanAst {
+        final CompilationUnit compilationUnit;
+        final List<ApiParamJavaInfo> classes; // codec などを生成するクラス。外側が先
+
+        ParamBeanAst(CompilationUnit compilationUnit, List<ApiParamJavaInfo> classes) {
+            this.compilationUnit = compilationUnit;
+            this.classes = classes;
+        }
+    }
+
     static class ApiParamJavaInfo {
-        final ClassOrInterfaceDeclaration classDeclaration;
-        final List<ClassOrInterfaceDeclaration> innerClassDeclaration = new ArrayList<>();
+        final TypeDeclaration<?> classDeclaration;
+        final List<TypeDeclaration<?>> innerClassDeclaration = new ArrayList<>();
+        final ApiParamJavaInfo outer; // 一番外側のクラスなら null
+        final String typeName; // 外側のクラスから書いた型の名前 (例: AaaReq.kobetsuBu)
+        final String codecName; // codec のメソッド名の後ろ (例: KobetsuBu)。一番外側のクラスなら ""
+        final String path; // JSON でのパス (例: kobetsuBu.keiyakushaInfo)。一番外側のクラスなら ""
+        final List<ApiParamInfo> params = new ArrayList<>(); // フィールドの順
+        final Map<String, ApiParamJavaInfo> objectParams = new TreeMap<>(); // object のフィールド名 → そのクラス
 
-        ApiParamJavaInfo(ClassOrInterfaceDeclaration classDeclaration) {
+        /**
+         * @param fieldName 外側のクラスでのフィールド名(JSON のキー)。一番外側のクラスなら null。
+         *            クラス名は classStyle によって先頭が大文字になるので、JSON でのパスはこちらから作る
+         */
+        ApiParamJavaInfo(TypeDeclaration<?> classDeclaration, ApiParamJavaInfo outer, String fieldName) {
             this.classDeclaration = classDeclaration;
+            this.outer = outer;
+            String name = classDeclaration.getNameAsString();
+            this.typeName = outer == null ? name : outer.typeName + "." + name;
+            this.codecName = outer == null ? "" : outer.codecName + capitalize(name);
+            this.path = outer == null ? "" : outer.path.isEmpty() ? fieldName : outer.path + "." + fieldName;
         }
     }
 
@@ -0,0 +1,175 @@
+package myapp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.ss.util.NumberToTextConverter;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler.SheetContentsHandler;
+import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+import myapp.ApiParamBeanGenerator.ApiEndpointInfo;
+import myapp.ApiParamBeanGenerator.ApiParamInfo;
+
+/**
+ * Excel の "api" シートを、ワークブック全体を読み込まずに、SAX で1行ずつ読む。(--reader streaming)
+ * <ul>
+ * <li>メモリに持つのは、共有文字列、書式、読んでいる行だけ。"api" 以外のシートは読まない。
+ * <li>読む位置と終わりの判定は ApiParamBeanGenerator.readSheet() と同じ。リクエストの行が無いか、C列(depth)が空になったら、残りは読まない。
+ * <li>文字列のセルはそのまま、数値のセルは書式(#,##0 など)を適用しない値で受け取る。(RawNumberFormatter)
+ * </ul>
+ */
+class ApiSheetStreamingReader {
+    private static final String SHEET_NAME = "api";
+
+    private ApiSheetStreamingReader() {
+    }
+
+    static ApiEndpointInfo read(Path inputExcelFile) throws IOException {
+        try (OPCPackage pkg = OPCPackage.open(inputExcelFile.toFile(), PackageAccess.READ)) {
+            XSSFReader reader = new XSSFReader(pkg);
+            ReadOnlySharedStringsTable sharedStrings = new ReadOnlySharedStringsTable(pkg);
+            XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator) reader.getSheetsData();
+            while (sheets.hasNext()) {
+                try (InputStream sheet = sheets.next()) {
+                    if (!sheets.getSheetName().equals(SHEET_NAME)) {
+                        continue;
+                    }
+                    RowHandler rowHandler = new RowHandler();
+                    XMLReader xmlReader = XMLHelper.newXMLReader();
+                    xmlReader.setContentHandler(new XSSFSheetXMLHandler(reader.getStylesTable(), sharedStrings,
+                            rowHandler, new RawNumberFormatter(), false));
+                    try {
+                        xmlReader.parse(new InputSource(sheet));
+                    } catch (EndOfRequest e) {
+                        // リクエストの行が終わった。残りの行は読まない
+                    }
+                    return rowHandler.getApiEndpointInfo();
+                }
+            }
+            throw new IllegalArgumentException("sheet not found: " + SHEET_NAME);
+        } catch (OpenXML4JException | SAXException | ParserConfigurationException e) {
+            throw new IOException(inputExcelFile.toString(), e);
+        }
+    }
+
+    /**
+     * 数値のセルを、書式を適用せずに文字列にする。"#,##0" の 2000 が "2,000" になると、usermodel と違って数値として読めないため。
+     * XSSFSheetXMLHandler は、書式のある数値のセルだけ formatRawCellContents() を呼ぶ。
+     */
+    private static class RawNumberFormatter extends DataFormatter {
+        @Override
+        public String formatRawCellContents(double value, int formatIndex, String formatString,
+                boolean use1904Windowing) {
+            return NumberToTextConverter.toText(value);
+        }
+    }
+
+    /** SAX の解析を途中でやめるための例外 */
+    private static class EndOfRequest extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        EndOfRequest() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static class RowHandler implements SheetContentsHandler {
+        private ApiEndpointInfo apiEndpointInfo;
+        private int nextRow = ApiParamBeanGenerator.REQ_BEGIN_ROW;
+        private String depth;
+        private String name;
+        private String type;
+        private String min;
+        private String max;
+
+        @Override
+        public void startRow(int rowNum) {
+            if (ApiParamBeanGenerator.REQ_BEGIN_ROW <= rowNum && rowNum != nextRow) {
+                // 行が無い(値も書式も無い行は、シートの XML に出てこない)
+                throw new EndOfRequest();
+            }
+            depth = null;
+            name = null;
+            type = null;
+            min = null;
+            max = null;
+        }
+
+        @Override
+        public void cell(String cellReference, String formattedValue, XSSFComment comment) {
+            if (cellReference == null) {
+                return;
+            }
+            CellReference ref = new CellReference(cellReference);
+            if (ref.getRow() == ApiParamBeanGenerator.API_NAME_EN_ROW
+                    && ref.getCol() == ApiParamBeanGenerator.API_NAME_EN_COL) {
+                apiEndpointInfo = new ApiEndpointInfo(formattedValue);
+            } else if (ApiParamBeanGenerator.REQ_BEGIN_ROW <= ref.getRow()) {
+                switch (ref.getCol()) {
+                case ApiParamBeanGenerator.REQ_DEPTH_COL:
+                    depth = formattedValue.isEmpty() ? null : formattedValue;
+                    break;
+                case ApiParamBeanGenerator.REQ_NAME_COL:
+                    name = formattedValue;
+                    break;
+                case ApiParamBeanGenerator.REQ_TYPE_COL:
+                    type = formattedValue;
+                    break;
+                case ApiParamBeanGenerator.REQ_MIN_COL:
+                    min = formattedValue;
+                    break;
+                case ApiParamBeanGenerator.REQ_MAX_COL:
+                    max = formattedValue;
+                    break;
+                default:
+                    break;
+                }
+            }
+        }
+
+        @Override
+        public void endRow(int rowNum) {
+            if (rowNum < ApiParamBeanGenerator.REQ_BEGIN_ROW) {
+                return;
+            }
+            if (depth == null) {
+                throw new EndOfRequest();
+            }
+            if (name == null || type == null) {
+                throw new IllegalStateException("row " + (rowNum + 1) + ": name or type is empty");
+            }
+            getApiEndpointInfo().request.add(new ApiParamInfo( //
+                    name, //
+                    (int) Double.parseDouble(depth), //
+                    type, //
+                    min == null ? 0 : ApiParamBeanGenerator.parseConstraint(min), // min
+                    max == null ? 0 : ApiParamBeanGenerator.parseConstraint(max) // max
+            ));
+            nextRow++;
+        }
+
+        ApiEndpointInfo getApiEndpointInfo() {
+            if (apiEndpointInfo == null) {
+                throw new IllegalStateException("api name not found: "
+                        + new CellReference(ApiParamBeanGenerator.API_NAME_EN_ROW, ApiParamBeanGenerator.API_NAME_EN_COL)
+                                .formatAsString());
+            }
+            return apiEndpointInfo;
+        }
+    }
+}
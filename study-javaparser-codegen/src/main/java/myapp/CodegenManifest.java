@@ -0,0 +1,217 @@
+package myapp;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import myapp.ApiParamBeanGenerator.GeneratedSource;
+
+/**
+ * 差分生成(--incremental)のマニフェスト。前回読んだ Excel と、前回書いたファイルのハッシュを記録する。
+ * <ul>
+ * <li>Excel の SHA-256 と、生成のバージョン(ApiParamBeanGenerator.getGeneratorVersion())が前回と同じで、出力ファイルも前回のまま残っていれば、その Excel は読まない。
+ * <li>前回の出力ファイルのうち、今回どの Excel からも生成しないもの(Excel を削除した場合など)は削除する。
+ * <li>生成に失敗した Excel は、前回の出力を残し、次回に生成し直す。
+ * <li>出力ファイルは1つの Excel だけのものとする。ほかの Excel の出力になっているファイルは ownerOf() で分かる。
+ *     (2つの Excel が同じファイルに書くと、それぞれが自分のハッシュを記録し、毎回どちらかが古いとみなされるため)
+ * </ul>
+ * 形式: 1行目が "generator\t{バージョン}"。続けて Excel ごとに "in\t{ハッシュ}\t{パス}" と、その出力ごとに "out\t{ハッシュ}\t{パス}"。
+ * パスは --in, --out からの相対パス。
+ * <p>
+ * --watch では、生成するたびに next() で前回の記録を引き継ぐ。マニフェストのファイルを指定しなければ、保存しない。
+ */
+class CodegenManifest {
+    private static final String FAILED_HASH = "-"; // 生成に失敗した Excel。次回は必ず生成し直す
+
+    private final Path manifestFile;
+    private final Path inputRoot;
+    private final Path outputRoot;
+    private final String generatorVersion;
+    private final Map<String, Entry> previousEntries = new TreeMap<>(); // 入力の相対パス → 前回の記録
+    private final Map<String, Entry> entries = new TreeMap<>(); // 入力の相対パス → 今回の記録
+    private final Map<String, String> owners = new HashMap<>(); // 出力の相対パス → 今回の記録で、それを出力した入力の相対パス
+    private boolean generatorChanged;
+
+    static class Entry {
+        final String inputHash;
+        final Map<String, String> outputs = new TreeMap<>(); // 出力の相対パス → ハッシュ
+
+        Entry(String inputHash) {
+            this.inputHash = inputHash;
+        }
+    }
+
+    /**
+     * @param manifestFile null なら保存しない
+     */
+    CodegenManifest(Path manifestFile, Path inputRoot, Path outputRoot, String generatorVersion) {
+        this.manifestFile = manifestFile;
+        this.inputRoot = inputRoot;
+        this.outputRoot = outputRoot;
+        this.generatorVersion = generatorVersion;
+    }
+
+    /** 今回の記録を前回の記録とした、次の生成のためのマニフェスト */
+    CodegenManifest next() {
+        CodegenManifest manifest = new CodegenManifest(manifestFile, inputRoot, outputRoot, generatorVersion);
+        manifest.previousEntries.putAll(entries);
+        return manifest;
+    }
+
+    /**
+     * マニフェストが無ければ、前回の記録が無いものとする。生成のバージョンが違えば、すべての Excel を生成し直す。
+     */
+    static CodegenManifest load(Path manifestFile, Path inputRoot, Path outputRoot, String generatorVersion)
+            throws IOException {
+        CodegenManifest manifest = new CodegenManifest(manifestFile, inputRoot, outputRoot, generatorVersion);
+        if (!Files.exists(manifestFile)) {
+            return manifest;
+        }
+        List<String> lines = Files.readAllLines(manifestFile);
+        if (lines.isEmpty() || !lines.get(0).equals("generator\t" + generatorVersion)) {
+            // すべて生成し直す。前回の出力は、今回生成しなければ削除するので、読んでおく
+            System.out.printf("[INFO] generator version changed: %s\n", manifestFile);
+            manifest.generatorChanged = true;
+        }
+        Entry entry = null;
+        for (String line : lines.subList(Math.min(1, lines.size()), lines.size())) {
+            String[] fields = line.split("\t", 3);
+            if (fields.length == 3 && fields[0].equals("in")) {
+                entry = new Entry(fields[1]);
+                manifest.previousEntries.put(fields[2], entry);
+            } else if (fields.length == 3 && fields[0].equals("out") && entry != null) {
+                entry.outputs.put(fields[2], fields[1]);
+            } else {
+                throw new IllegalStateException("invalid manifest: " + manifestFile + ": " + line);
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * @return 前回から Excel が変わっておらず、出力ファイルも前回のまま残っていれば true
+     */
+    boolean isUpToDate(Path inputFile, String inputHash) throws IOException {
+        Entry entry = previousEntries.get(relativeInput(inputFile));
+        if (generatorChanged || entry == null || !entry.inputHash.equals(inputHash)) {
+            return false;
+        }
+        for (Map.Entry<String, String> output : entry.outputs.entrySet()) {
+            Path outputFile = outputRoot.resolve(output.getKey());
+            if (!Files.isRegularFile(outputFile) || !sha256(Files.readAllBytes(outputFile)).equals(output.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return 前回、生成に成功した記録があれば true */
+    boolean isRecorded(Path inputFile) {
+        Entry entry = previousEntries.get(relativeInput(inputFile));
+        return !generatorChanged && entry != null && !entry.inputHash.equals(FAILED_HASH);
+    }
+
+    /** 生成しなかった Excel の、前回の記録を引き継ぐ */
+    void keep(Path inputFile) {
+        String input = relativeInput(inputFile);
+        Entry entry = previousEntries.get(input);
+        entries.put(input, entry);
+        entry.outputs.keySet().forEach(output -> owners.putIfAbsent(output, input));
+    }
+
+    /**
+     * @return 今回の記録で、outputFile をほかの Excel が出力していれば、その Excel。(前回から変わらず、生成しなかった Excel も含む)
+     *         なければ null
+     */
+    Path ownerOf(Path inputFile, Path outputFile) {
+        String owner = owners.get(relativeOutput(outputFile));
+        return owner == null || owner.equals(relativeInput(inputFile)) ? null : inputRoot.resolve(owner);
+    }
+
+    void record(Path inputFile, String inputHash, GeneratedSource source) {
+        String input = relativeInput(inputFile);
+        String output = relativeOutput(source.path);
+        String owner = owners.putIfAbsent(output, input);
+        if (owner != null && !owner.equals(input)) {
+            throw new IllegalStateException("same output file as " + inputRoot.resolve(owner) + ": " + source.path);
+        }
+        Entry entry = entries.computeIfAbsent(input, k -> new Entry(inputHash));
+        entry.outputs.put(output, sha256(source.content.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /** 生成に失敗した Excel は、前回の出力を残して、次回に生成し直す */
+    void failed(Path inputFile) {
+        String input = relativeInput(inputFile);
+        Entry entry = new Entry(FAILED_HASH);
+        Entry previous = previousEntries.get(input);
+        if (previous != null) {
+            entry.outputs.putAll(previous.outputs);
+        }
+        entries.put(input, entry);
+    }
+
+    /**
+     * 前回の出力ファイルのうち、今回どの Excel の出力でもないものを削除する。
+     *
+     * @return 削除したファイル
+     */
+    List<Path> deleteStaleOutputs() throws IOException {
+        Set<String> current = new HashSet<>();
+        entries.values().forEach(e -> current.addAll(e.outputs.keySet()));
+        List<Path> deleted = new ArrayList<>();
+        for (Entry entry : previousEntries.values()) {
+            for (String output : entry.outputs.keySet()) {
+                if (!current.contains(output) && Files.deleteIfExists(outputRoot.resolve(output))) {
+                    deleted.add(outputRoot.resolve(output));
+                }
+            }
+        }
+        return deleted;
+    }
+
+    /** 途中で終了しても壊れたマニフェストが残らないよう、一時ファイルに書いてから置き換える */
+    void save() throws IOException {
+        if (manifestFile == null) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("generator\t").append(generatorVersion).append('\n');
+        entries.forEach((input, entry) -> {
+            sb.append("in\t").append(entry.inputHash).append('\t').append(input).append('\n');
+            entry.outputs.forEach((output, hash) -> sb.append("out\t").append(hash).append('\t').append(output).append('\n'));
+        });
+        Path parent = manifestFile.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path tmp = Files.createTempFile(parent, manifestFile.getFileName().toString(), ".tmp");
+        Files.writeString(tmp, sb);
+        Files.move(tmp, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static String sha256(byte[] bytes) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private String relativeInput(Path inputFile) {
+        return inputRoot.relativize(inputFile).toString().replace('\\', '/');
+    }
+
+    private String relativeOutput(Path outputFile) {
+        return outputRoot.relativize(outputFile).toString().replace('\\', '/');
+    }
+}
@@ -1,31 +1,307 @@
 package myapp;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiPredicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import myapp.ApiParamBeanGenerator.GeneratedSource;
 
 public class Main {
-    public static void main(String[] args) throws IOException {
-        if (args.length != 4)
-            throw new IllegalArgumentException("arg count expect=4 actual=" + args.length + " args=" + args);
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 4 || args.length % 2 != 0)
+            throw new IllegalArgumentException("arg count expect=4+2n actual=" + args.length + " args=" + Arrays.toString(args));
         if (!args[0].equals("--in")) {
             throw new IllegalArgumentException("args[0]: expect=\"--in\" actual=" + args[0]);
         }
         if (!args[2].equals("--out")) {
             throw new IllegalArgumentException("args[2]: expect=\"--out\" actual=" + args[2]);
         }
-        
-        ApiParamBeanGenerator apiParamBeanGenerator = new ApiParamBeanGenerator(Paths.get(args[3])); 
-        Files.find(Paths.get(args[1]), Integer.MAX_VALUE, new InputFilePredicate()).forEach(apiParamBeanGenerator);
+        int jobs = 1;
+        Path manifestFile = null; // null なら差分生成しない
+        String reader = ApiParamBeanGenerator.READER_STREAMING;
+        String classStyle = ApiParamBeanGenerator.CLASS_STYLE_INNER;
+        long watchQuietMillis = -1; // 負なら監視しない
+        for (int i = 4; i < args.length; i += 2) {
+            switch (args[i]) {
+            case "--jobs":
+                // 0 なら CPU の数
+                jobs = Integer.parseInt(args[i + 1]);
+                if (jobs < 0) {
+                    throw new IllegalArgumentException("args[" + (i + 1) + "]: expect=0 or more actual=" + args[i + 1]);
+                }
+                if (jobs == 0) {
+                    jobs = Runtime.getRuntime().availableProcessors();
+                }
+                break;
+            case "--incremental":
+                manifestFile = Paths.get(args[i + 1]);
+                break;
+            case "--reader":
+                // streaming または usermodel
+                reader = args[i + 1];
+                break;
+            case "--class-style":
+                // inner, static, immutable, record のどれか
+                classStyle = args[i + 1];
+                break;
+            case "--watch":
+                // 生成した後も終了せず、--in の変更を監視する。値は、イベントが止んでから生成するまでのミリ秒
+                watchQuietMillis = Long.parseLong(args[i + 1]);
+                if (watchQuietMillis < 0) {
+                    throw new IllegalArgumentException("args[" + (i + 1) + "]: expect=0 or more actual=" + args[i + 1]);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("args[" + i + "]: expect=\"--jobs\" or \"--incremental\""
+                        + " or \"--reader\" or \"--class-style\" or \"--watch\" actual=" + args[i]);
+            }
+        }
+
+        long startNanos = System.nanoTime();
+        ApiParamBeanGenerator apiParamBeanGenerator = new ApiParamBeanGenerator(Paths.get(args[3]), reader, classStyle);
+        List<Path> inputFiles = findInputFiles(Paths.get(args[1]));
+        CodegenManifest manifest;
+        if (manifestFile != null) {
+            manifest = CodegenManifest.load(manifestFile, Paths.get(args[1]), Paths.get(args[3]),
+                    apiParamBeanGenerator.getGeneratorVersion());
+        } else if (0 <= watchQuietMillis) {
+            // 監視中に変わった Excel だけを生成し直すため、保存しないマニフェストに記録する
+            manifest = new CodegenManifest(null, Paths.get(args[1]), Paths.get(args[3]),
+                    apiParamBeanGenerator.getGeneratorVersion());
+        } else {
+            manifest = null;
+        }
+        try {
+            generateAll(apiParamBeanGenerator, inputFiles, jobs, manifest, null);
+        } catch (IllegalStateException e) {
+            if (watchQuietMillis < 0) {
+                throw e;
+            }
+            System.err.printf("[ERROR] %s\n", e.getMessage());
+        } finally {
+            System.out.printf("[INFO] elapsed=%dms\n", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        }
+        if (0 <= watchQuietMillis) {
+            watch(apiParamBeanGenerator, Paths.get(args[1]), jobs, manifest, watchQuietMillis);
+        }
+    }
+
+    static List<Path> findInputFiles(Path inputRoot) throws IOException {
+        try (Stream<Path> stream = Files.find(inputRoot, Integer.MAX_VALUE, new InputFilePredicate())) {
+            // Files.find() の順序はファイルシステムによって違うので、ファイル名の順にする
+            return stream.sorted().collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * --in の下のディレクトリを WatchService で監視し、Excel が変わるたびに、変わった Excel だけを生成し直す。(終了しない)
+     * <ul>
+     * <li>Excel などは一時ファイルへの書き込みと名前の変更で保存するので、quietMillis の間イベントが無くなってから、まとめて生成する。
+     * <li>削除された Excel の出力は、ほかの Excel の出力でなければ削除する。(CodegenManifest.deleteStaleOutputs())
+     * <li>イベントがあふれた(OVERFLOW)場合は、すべての Excel のハッシュを前回と比べる。
+     * <li>生成に失敗しても監視を続ける。生成中に Excel やディレクトリが消えるなどの IOException も同じ。
+     * </ul>
+     */
+    static void watch(ApiParamBeanGenerator generator, Path inputRoot, int jobs, CodegenManifest manifest,
+            long quietMillis) throws IOException, InterruptedException {
+        try (WatchService watchService = inputRoot.getFileSystem().newWatchService()) {
+            Map<WatchKey, Path> watchedDirs = new HashMap<>();
+            registerAll(watchService, inputRoot, watchedDirs);
+            System.out.printf("[INFO] watching: %s\n", inputRoot);
+            boolean incomplete = false; // 前回の生成が IOException で途中で終わった
+            while (true) {
+                WatchKey key = watchService.take();
+                Set<Path> changedFiles = new HashSet<>();
+                boolean overflow = incomplete;
+                do {
+                    Path dir = watchedDirs.get(key);
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                            overflow = true;
+                            continue;
+                        }
+                        Path path = dir.resolve((Path) event.context());
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                            // 登録する前にできたファイルのイベントは来ないので、ディレクトリの中身も変わったものとする
+                            try {
+                                registerAll(watchService, path, watchedDirs);
+                                changedFiles.addAll(findInputFiles(path));
+                            } catch (IOException | UncheckedIOException e) {
+                                // すぐに削除や名前の変更をされた。すべての Excel のハッシュを比べる
+                                System.err.printf("[WARN] %s\n", e);
+                                overflow = true;
+                            }
+                        } else if (path.getFileName().toString().endsWith(".xlsx")) {
+                            changedFiles.add(path);
+                        }
+                    }
+                    if (!key.reset()) {
+                        watchedDirs.remove(key); // ディレクトリが削除された
+                    }
+                    key = watchService.poll(quietMillis, TimeUnit.MILLISECONDS);
+                } while (key != null);
+                if (changedFiles.isEmpty() && !overflow) {
+                    continue;
+                }
+
+                long startNanos = System.nanoTime();
+                CodegenManifest next = manifest.next();
+                try {
+                    generateAll(generator, findInputFiles(inputRoot), jobs, next, overflow ? null : changedFiles);
+                    manifest = next;
+                    incomplete = false;
+                } catch (IllegalStateException e) {
+                    // 失敗した Excel も記録してある
+                    System.err.printf("[ERROR] %s\n", e.getMessage());
+                    manifest = next;
+                    incomplete = false;
+                } catch (IOException | UncheckedIOException e) {
+                    // 読む前に Excel が削除された場合など。記録が途中なので前回のマニフェストのままにして、
+                    // 次の変更では、すべての Excel のハッシュを比べる
+                    System.err.printf("[ERROR] %s\n", e);
+                    incomplete = true;
+                }
+                System.out.printf("[INFO] elapsed=%dms changed=%s\n",
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos),
+                        overflow ? "overflow" : changedFiles.size());
+            }
+        }
+    }
+
+    private static void registerAll(WatchService watchService, Path root, Map<WatchKey, Path> watchedDirs)
+            throws IOException {
+        try (Stream<Path> stream = Files.walk(root)) {
+            for (Path dir : (Iterable<Path>) stream.filter(Files::isDirectory)::iterator) {
+                watchedDirs.put(dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), dir);
+            }
+        }
+    }
+
+    /**
+     * Excel の読み込みとソースの組み立ては jobs 個のスレッドで並行して行い、ファイルへの書き込みは入力ファイルの順に、このスレッドで行う。
+     * <ul>
+     * <li>並行数によらず、同じ出力になる。
+     * <li>先の Excel と同じ出力ファイルになる Excel は、書かずに失敗とする。(API名(英)が同じ場合など)
+     *     manifest を指定した場合は、変わっていないので生成しなかった Excel の出力とも比べる。
+     * <li>失敗した Excel があっても残りは続け、最後にまとめて例外を投げる。
+     * <li>manifest を指定した場合は、前回から変わっていない Excel は読まず、どの Excel の出力でもなくなったファイルは削除する。
+     * </ul>
+     *
+     * @param manifest null なら、すべての Excel から生成する
+     * @param changedFiles manifest を指定した場合に、変わった可能性のある Excel。(--watch)
+     *            これ以外の Excel は、前回の記録があれば読まない。null なら、すべての Excel のハッシュを前回と比べる
+     */
+    static void generateAll(ApiParamBeanGenerator generator, List<Path> inputFiles, int jobs,
+            CodegenManifest manifest, Set<Path> changedFiles) throws IOException, InterruptedException {
+        List<Path> targetFiles = new ArrayList<>();
+        Map<Path, String> inputHashes = new HashMap<>();
+        for (Path inputFile : inputFiles) {
+            if (manifest != null) {
+                if (changedFiles != null && !changedFiles.contains(inputFile) && manifest.isRecorded(inputFile)) {
+                    manifest.keep(inputFile);
+                    continue;
+                }
+                String inputHash = CodegenManifest.sha256(Files.readAllBytes(inputFile));
+                if (manifest.isUpToDate(inputFile, inputHash)) {
+                    manifest.keep(inputFile);
+                    continue;
+                }
+                inputHashes.put(inputFile, inputHash);
+            }
+            targetFiles.add(inputFile);
+        }
+
+        List<Throwable> errors = new ArrayList<>();
+        int writtenCount = 0;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(jobs, targetFiles.size())));
+        try {
+            List<Future<List<GeneratedSource>>> futures = new ArrayList<>();
+            for (Path inputFile : targetFiles) {
+                futures.add(executor.submit(() -> generator.generate(inputFile)));
+            }
+            Map<Path, Path> written = new HashMap<>(); // 出力ファイル → 入力ファイル
+            for (int i = 0; i < targetFiles.size(); i++) {
+                Path inputFile = targetFiles.get(i);
+                try {
+                    List<GeneratedSource> sources = futures.get(i).get();
+                    for (GeneratedSource source : sources) {
+                        // 先の Excel の出力を上書きしないよう、1つも書かずに失敗とする
+                        Path previous = written.get(source.path);
+                        if (previous == null && manifest != null) {
+                            previous = manifest.ownerOf(inputFile, source.path);
+                        }
+                        if (previous != null) {
+                            throw new IllegalStateException("same output file as " + previous + ": " + source.path);
+                        }
+                    }
+                    for (GeneratedSource source : sources) {
+                        written.put(source.path, inputFile);
+                        if (generator.write(source)) {
+                            writtenCount++;
+                        }
+                        if (manifest != null) {
+                            manifest.record(inputFile, inputHashes.get(inputFile), source);
+                        }
+                    }
+                } catch (ExecutionException | RuntimeException e) {
+                    Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+                    System.err.printf("[ERROR] %s: %s\n", inputFile, cause);
+                    errors.add(new IllegalStateException(inputFile.toString(), cause));
+                    if (manifest != null) {
+                        manifest.failed(inputFile);
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        int deletedCount = 0;
+        if (manifest != null) {
+            for (Path deleted : manifest.deleteStaleOutputs()) {
+                System.out.printf("[INFO] deleted: %s\n", deleted);
+                deletedCount++;
+            }
+            manifest.save();
+        }
+        System.out.printf("[INFO] input=%d generated=%d written=%d deleted=%d failed=%d\n", inputFiles.size(),
+                targetFiles.size() - errors.size(), writtenCount, deletedCount, errors.size());
+        if (!errors.isEmpty()) {
+            IllegalStateException e = new IllegalStateException(
+                    "failed: " + errors.size() + " of " + inputFiles.size() + " files");
+            errors.forEach(e::addSuppressed);
+            throw e;
+        }
     }
 
     static class InputFilePredicate implements BiPredicate<Path, BasicFileAttributes> {
         @Override
         public boolean test(Path p, BasicFileAttributes a) {
-            if (a.isRegularFile() && p.getFileName().toString().endsWith(".xlsx")) {
+            // "~$" で始まるのは、Excel が開いている間に作るロックファイル
+            String name = p.getFileName().toString();
+            if (a.isRegularFile() && name.endsWith(".xlsx") && !name.startsWith("~$")) {
                 return true;
             } else {
                 return false;